@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the camera preview size from a ladder of supported sizes so that frames are processed
+ * within a target latency.
+ *
+ * <p>Frame latency and dropped frames are collected in windows of {@link #WINDOW_FRAMES} processed
+ * frames. A window that misses the target, or drops too many frames, moves one step down the
+ * ladder. Moving up needs {@link #UPGRADE_WINDOWS} windows in a row whose latency, scaled by the
+ * pixel count of the next size, would still be well within the target, so the size does not
+ * bounce between two steps. The first frames after a switch are ignored, as they include the
+ * camera restart.
+ *
+ * <p>The controller never restarts the camera itself. It marks a change as pending and notifies
+ * its {@link Listener}, and the camera owner applies it with {@link #takePendingSize()} at a point
+ * where restarting is safe.
+ */
+public class AdaptiveResolutionController implements FrameStatsListener {
+
+  /** Notified when a new preview size is pending. */
+  public interface Listener {
+    /** Called on the thread that reported the frame statistics. */
+    void onPreviewSizeChangePending(AdaptiveResolutionController controller);
+  }
+
+  private static final String TAG = "AdaptiveResolution";
+
+  static final int WINDOW_FRAMES = 30;
+  static final int UPGRADE_WINDOWS = 3;
+  private static final int WARMUP_FRAMES = 10;
+
+  // A window misses the target above this factor of it, and allows an upgrade below the second.
+  private static final float DOWNGRADE_LATENCY_FACTOR = 1.15f;
+  private static final float UPGRADE_LATENCY_FACTOR = 0.85f;
+  private static final float DEFAULT_MAX_DROP_RATE = 0.75f;
+
+  private final long targetLatencyMs;
+  private final float maxDropRate;
+
+  // Sizes sorted by ascending pixel count.
+  @GuardedBy("this")
+  private final List<Size> ladder = new ArrayList<>();
+
+  @GuardedBy("this")
+  private int currentIndex = -1;
+
+  @GuardedBy("this")
+  private int pendingIndex = -1;
+
+  @GuardedBy("this")
+  private int warmupFramesLeft = WARMUP_FRAMES;
+
+  @GuardedBy("this")
+  private int windowFrames;
+
+  @GuardedBy("this")
+  private int windowDrops;
+
+  @GuardedBy("this")
+  private long windowLatencyMs;
+
+  @GuardedBy("this")
+  private int goodWindows;
+
+  @Nullable private volatile Listener listener;
+
+  public AdaptiveResolutionController(long targetLatencyMs) {
+    this(targetLatencyMs, DEFAULT_MAX_DROP_RATE);
+  }
+
+  /**
+   * @param targetLatencyMs the frame latency to hold
+   * @param maxDropRate the fraction of camera frames that may be dropped before moving down
+   */
+  public AdaptiveResolutionController(long targetLatencyMs, float maxDropRate) {
+    if (targetLatencyMs <= 0 || maxDropRate <= 0 || maxDropRate > 1) {
+      throw new IllegalArgumentException(
+          "Invalid target: " + targetLatencyMs + " ms, drop rate " + maxDropRate);
+    }
+    this.targetLatencyMs = targetLatencyMs;
+    this.maxDropRate = maxDropRate;
+  }
+
+  public void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the sizes the camera supports, e.g. when it is opened. Keeps the current size if it is
+   * supported, and otherwise starts at the size closest to {@code preferredWidth} x {@code
+   * preferredHeight}.
+   */
+  public synchronized void setLadder(List<Size> sizes, int preferredWidth, int preferredHeight) {
+    Size current = currentIndex >= 0 ? ladder.get(currentIndex) : null;
+    ladder.clear();
+    for (Size size : sizes) {
+      if (!ladder.contains(size)) {
+        ladder.add(size);
+      }
+    }
+    Collections.sort(ladder, (a, b) -> Long.compare(getPixelCount(a), getPixelCount(b)));
+
+    currentIndex = current != null ? ladder.indexOf(current) : -1;
+    if (currentIndex < 0) {
+      int minDiff = Integer.MAX_VALUE;
+      for (int i = 0; i < ladder.size(); i++) {
+        Size size = ladder.get(i);
+        int diff =
+            Math.abs(size.getWidth() - preferredWidth)
+                + Math.abs(size.getHeight() - preferredHeight);
+        if (diff < minDiff) {
+          currentIndex = i;
+          minDiff = diff;
+        }
+      }
+    }
+    pendingIndex = -1;
+    resetWindow(/* warmup= */ true);
+    goodWindows = 0;
+  }
+
+  /** Returns the size the camera should use, or null if no ladder was set. */
+  @Nullable
+  public synchronized Size getCurrentSize() {
+    return currentIndex >= 0 ? ladder.get(currentIndex) : null;
+  }
+
+  /** Returns whether a size change waits to be applied with {@link #takePendingSize()}. */
+  public synchronized boolean hasPendingSize() {
+    return pendingIndex >= 0;
+  }
+
+  /**
+   * Makes the pending size current and returns it, or returns null if there is no pending change.
+   * The caller restarts the camera with the returned size.
+   */
+  @Nullable
+  public synchronized Size takePendingSize() {
+    if (pendingIndex < 0) {
+      return null;
+    }
+    currentIndex = pendingIndex;
+    pendingIndex = -1;
+    resetWindow(/* warmup= */ true);
+    Log.d(TAG, "Switching preview size to " + ladder.get(currentIndex));
+    return ladder.get(currentIndex);
+  }
+
+  @Override
+  public void onFrameProcessed(long frameLatencyMs) {
+    if (addFrame(frameLatencyMs)) {
+      notifyPending();
+    }
+  }
+
+  @Override
+  public synchronized void onFrameDropped() {
+    if (warmupFramesLeft == 0 && pendingIndex < 0) {
+      windowDrops++;
+    }
+  }
+
+  /** Adds a processed frame to the window. Returns true if it made a change pending. */
+  private synchronized boolean addFrame(long frameLatencyMs) {
+    if (currentIndex < 0 || pendingIndex >= 0) {
+      return false;
+    }
+    if (warmupFramesLeft > 0) {
+      warmupFramesLeft--;
+      return false;
+    }
+    windowFrames++;
+    windowLatencyMs += frameLatencyMs;
+    if (windowFrames < WINDOW_FRAMES) {
+      return false;
+    }
+
+    float meanLatencyMs = (float) windowLatencyMs / windowFrames;
+    float dropRate = (float) windowDrops / (windowFrames + windowDrops);
+    resetWindow(/* warmup= */ false);
+
+    if (meanLatencyMs > targetLatencyMs * DOWNGRADE_LATENCY_FACTOR || dropRate > maxDropRate) {
+      goodWindows = 0;
+      if (currentIndex > 0) {
+        pendingIndex = currentIndex - 1;
+        return true;
+      }
+      return false;
+    }
+
+    if (currentIndex + 1 < ladder.size()) {
+      float pixelRatio =
+          (float) getPixelCount(ladder.get(currentIndex + 1))
+              / getPixelCount(ladder.get(currentIndex));
+      if (meanLatencyMs * pixelRatio < targetLatencyMs * UPGRADE_LATENCY_FACTOR) {
+        goodWindows++;
+      } else {
+        goodWindows = 0;
+      }
+      if (goodWindows >= UPGRADE_WINDOWS) {
+        goodWindows = 0;
+        pendingIndex = currentIndex + 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void notifyPending() {
+    Listener currentListener = listener;
+    if (currentListener != null) {
+      currentListener.onPreviewSizeChangePending(this);
+    }
+  }
+
+  @GuardedBy("this")
+  private void resetWindow(boolean warmup) {
+    windowFrames = 0;
+    windowDrops = 0;
+    windowLatencyMs = 0;
+    if (warmup) {
+      warmupFramesLeft = WARMUP_FRAMES;
+    }
+  }
+
+  private static long getPixelCount(Size size) {
+    return (long) size.getWidth() * size.getHeight();
+  }
+}
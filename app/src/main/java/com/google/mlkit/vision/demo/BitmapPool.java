@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.graphics.Bitmap;
+import androidx.annotation.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A byte-budgeted pool of mutable bitmaps, matched by width, height and config.
+ *
+ * <p>Free bitmaps are kept in least recently released order. When the total size goes over the
+ * budget, the least recently released bitmaps are evicted first.
+ *
+ * <p>Evicted bitmaps are dropped rather than recycled: a bitmap that was just released by the
+ * overlay may still be referenced by the last frame the view rendered, and the garbage collector
+ * frees it safely once it is not.
+ */
+public class BitmapPool {
+
+  private final Object lock = new Object();
+  private final long maxSizeBytes;
+
+  // Ordered from least to most recently released.
+  @GuardedBy("lock")
+  private final List<Bitmap> freeBitmaps = new ArrayList<>();
+
+  @GuardedBy("lock")
+  private long sizeBytes;
+
+  @GuardedBy("lock")
+  private long hitCount;
+
+  @GuardedBy("lock")
+  private long missCount;
+
+  @GuardedBy("lock")
+  private long evictionCount;
+
+  public BitmapPool(long maxSizeBytes) {
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Returns a mutable bitmap of the given size and config, reusing a free one if possible. The
+   * content of a reused bitmap is undefined.
+   */
+  public Bitmap acquire(int width, int height, Bitmap.Config config) {
+    synchronized (lock) {
+      // Search from the most recently released end, which is the most likely match.
+      for (int i = freeBitmaps.size() - 1; i >= 0; i--) {
+        Bitmap bitmap = freeBitmaps.get(i);
+        if (bitmap.getWidth() == width
+            && bitmap.getHeight() == height
+            && bitmap.getConfig() == config) {
+          freeBitmaps.remove(i);
+          sizeBytes -= bitmap.getAllocationByteCount();
+          hitCount++;
+          return bitmap;
+        }
+      }
+      missCount++;
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  /** Gives a bitmap back to the pool. Recycled and immutable bitmaps are ignored. */
+  public void release(Bitmap bitmap) {
+    if (bitmap.isRecycled() || !bitmap.isMutable()) {
+      return;
+    }
+    synchronized (lock) {
+      if (freeBitmaps.contains(bitmap)) {
+        return;
+      }
+      freeBitmaps.add(bitmap);
+      sizeBytes += bitmap.getAllocationByteCount();
+      trimToSize(maxSizeBytes);
+    }
+  }
+
+  /** Drops all free bitmaps. */
+  public void clear() {
+    synchronized (lock) {
+      trimToSize(0);
+    }
+  }
+
+  public long getSizeBytes() {
+    synchronized (lock) {
+      return sizeBytes;
+    }
+  }
+
+  public long getHitCount() {
+    synchronized (lock) {
+      return hitCount;
+    }
+  }
+
+  public long getMissCount() {
+    synchronized (lock) {
+      return missCount;
+    }
+  }
+
+  public long getEvictionCount() {
+    synchronized (lock) {
+      return evictionCount;
+    }
+  }
+
+  @GuardedBy("lock")
+  private void trimToSize(long targetSizeBytes) {
+    while (sizeBytes > targetSizeBytes && !freeBitmaps.isEmpty()) {
+      Bitmap evicted = freeBitmaps.remove(0);
+      sizeBytes -= evicted.getAllocationByteCount();
+      evictionCount++;
+    }
+  }
+}
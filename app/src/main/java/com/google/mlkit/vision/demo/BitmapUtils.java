@@ -19,22 +19,33 @@ package com.google.mlkit.vision.demo;
 import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.Image.Plane;
 import android.net.Uri;
 import android.os.Build.VERSION_CODES;
-import android.provider.MediaStore;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.camera.core.ExperimentalGetImage;
 import androidx.camera.core.ImageProxy;
 import androidx.exifinterface.media.ExifInterface;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import com.google.mlkit.vision.demo.frame.ImageTransform;
+import com.google.mlkit.vision.demo.frame.ParallelFrameConverter;
+import com.google.mlkit.vision.demo.frame.PlaneDescriptor;
+import com.google.mlkit.vision.demo.frame.PlaneLayoutCache;
+import com.google.mlkit.vision.demo.frame.YuvPlaneUnpacker;
+import com.google.mlkit.vision.demo.frame.YuvToRgbConverter;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -43,9 +54,149 @@ import java.nio.ByteBuffer;
 public class BitmapUtils {
   private static final String TAG = "BitmapUtils";
 
+  // Used by callers that do not manage their own pool of NV21 buffers.
+  private static final FrameBufferPool sharedFrameBufferPool = new FrameBufferPool();
+
+  // Whether the chroma planes of the current CameraX stream are NV21, see PlaneLayoutCache.
+  private static final PlaneLayoutCache planeLayoutCache = new PlaneLayoutCache();
+
+  // Per-thread ARGB output of the direct NV21 conversion.
+  private static final ThreadLocal<int[]> pixelScratch = new ThreadLocal<>();
+
+  /** Still images are subsampled to at most this many pixels (4MP, 16MB as ARGB_8888). */
+  public static final int DEFAULT_MAX_DECODE_PIXELS = 2048 * 2048;
+
+  // Bytes buffered at the start of a still image so the stream can be rewound after reading the
+  // EXIF data and bounds. Covers the metadata segments of typical JPEG files.
+  private static final int DECODE_MARK_LIMIT = 1024 * 1024;
+
   /** Converts NV21 format byte buffer to bitmap. */
   @Nullable
   public static Bitmap getBitmap(ByteBuffer data, FrameMetadata metadata) {
+    return getBitmap(data, metadata, /* bitmapPool= */ null);
+  }
+
+  /**
+   * Converts NV21 format byte buffer to bitmap. If {@code bitmapPool} is not null, the bitmap is
+   * taken from it.
+   */
+  @Nullable
+  public static Bitmap getBitmap(
+      ByteBuffer data, FrameMetadata metadata, @Nullable BitmapPool bitmapPool) {
+    int width = metadata.getWidth();
+    int height = metadata.getHeight();
+    if (!isDirectlyConvertible(data, width, height)) {
+      return getBitmapViaJpeg(data, metadata);
+    }
+
+    // Convert straight to ARGB instead of going through a JPEG encode and decode, and rotate
+    // while converting so that the upright bitmap is the only one created. Large frames are split
+    // across the performance cores.
+    int rotation = metadata.getRotation();
+    int outputWidth = ImageTransform.getOutputWidth(width, height, rotation);
+    int outputHeight = ImageTransform.getOutputHeight(width, height, rotation);
+    int[] pixels = obtainPixelScratch(width * height);
+    ParallelFrameConverter.getDefault()
+        .nv21ToArgb(
+            data.array(), width, height, rotation, /* flipX= */ false, /* flipY= */ false, pixels);
+    Bitmap bmp = createArgbBitmap(outputWidth, outputHeight, bitmapPool);
+    bmp.setPixels(pixels, 0, outputWidth, 0, 0, outputWidth, outputHeight);
+    return bmp;
+  }
+
+  /**
+   * Converts NV21 format byte buffer to an upright bitmap that is just large enough to fill a view
+   * of {@code viewWidth} x {@code viewHeight}, center cropped the way {@link GraphicOverlay} draws
+   * it. Falls back to a full resolution bitmap if the view is not laid out yet or is larger than
+   * the frame. If {@code bitmapPool} is not null, the bitmap is taken from it.
+   */
+  @Nullable
+  public static Bitmap getPreviewBitmap(
+      ByteBuffer data,
+      FrameMetadata metadata,
+      int viewWidth,
+      int viewHeight,
+      @Nullable BitmapPool bitmapPool) {
+    int rotation = metadata.getRotation();
+    int uprightWidth =
+        ImageTransform.getOutputWidth(metadata.getWidth(), metadata.getHeight(), rotation);
+    int uprightHeight =
+        ImageTransform.getOutputHeight(metadata.getWidth(), metadata.getHeight(), rotation);
+    if (viewWidth <= 0 || viewHeight <= 0) {
+      return getBitmap(data, metadata, bitmapPool);
+    }
+    float scale =
+        Math.max((float) viewWidth / uprightWidth, (float) viewHeight / uprightHeight);
+    if (scale >= 1f) {
+      return getBitmap(data, metadata, bitmapPool);
+    }
+    return getScaledBitmap(
+        data,
+        metadata,
+        (int) Math.ceil(uprightWidth * scale),
+        (int) Math.ceil(uprightHeight * scale),
+        bitmapPool);
+  }
+
+  /**
+   * Converts NV21 format byte buffer to an upright bitmap of {@code targetWidth} x {@code
+   * targetHeight}, e.g. half or a quarter of the upright frame size. The frame is box filtered
+   * over the full footprint of each output pixel while it is converted, so no full resolution
+   * bitmap is created. If {@code bitmapPool} is not null, the bitmap is taken from it.
+   */
+  @Nullable
+  public static Bitmap getScaledBitmap(
+      ByteBuffer data,
+      FrameMetadata metadata,
+      int targetWidth,
+      int targetHeight,
+      @Nullable BitmapPool bitmapPool) {
+    int width = metadata.getWidth();
+    int height = metadata.getHeight();
+    if (!isDirectlyConvertible(data, width, height)) {
+      // The preview graphic scales whatever it gets to the view, so a full size bitmap still works.
+      return getBitmapViaJpeg(data, metadata);
+    }
+
+    int rotation = metadata.getRotation();
+    // Undo the rotation to get the downsampled size in the orientation of the frame.
+    int scaledWidth = ImageTransform.getOutputWidth(targetWidth, targetHeight, rotation);
+    int scaledHeight = ImageTransform.getOutputHeight(targetWidth, targetHeight, rotation);
+    int[] pixels = obtainPixelScratch(targetWidth * targetHeight);
+    YuvToRgbConverter.nv21ToArgbScaled(
+        data.array(),
+        width,
+        height,
+        scaledWidth,
+        scaledHeight,
+        rotation,
+        /* flipX= */ false,
+        /* flipY= */ false,
+        pixels);
+    Bitmap bmp = createArgbBitmap(targetWidth, targetHeight, bitmapPool);
+    bmp.setPixels(pixels, 0, targetWidth, 0, 0, targetWidth, targetHeight);
+    return bmp;
+  }
+
+  private static Bitmap createArgbBitmap(int width, int height, @Nullable BitmapPool bitmapPool) {
+    return bitmapPool != null
+        ? bitmapPool.acquire(width, height, Bitmap.Config.ARGB_8888)
+        : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /** Returns whether the NV21 data can be read straight from the buffer's backing array. */
+  private static boolean isDirectlyConvertible(ByteBuffer data, int width, int height) {
+    return data.hasArray()
+        && data.arrayOffset() == 0
+        && data.array().length >= FrameBufferPool.getNv21Size(width, height);
+  }
+
+  /**
+   * Converts NV21 format byte buffer to bitmap by compressing it to JPEG and decoding it again.
+   * Slower than {@link #getBitmap(ByteBuffer, FrameMetadata)}, but works for any buffer.
+   */
+  @Nullable
+  private static Bitmap getBitmapViaJpeg(ByteBuffer data, FrameMetadata metadata) {
     data.rewind();
     byte[] imageInBuffer = new byte[data.limit()];
     data.get(imageInBuffer, 0, imageInBuffer.length);
@@ -66,24 +217,91 @@ public class BitmapUtils {
     return null;
   }
 
+  private static int[] obtainPixelScratch(int size) {
+    int[] pixels = pixelScratch.get();
+    if (pixels == null || pixels.length < size) {
+      pixels = new int[size];
+      pixelScratch.set(pixels);
+    }
+    return pixels;
+  }
+
   /** Converts a YUV_420_888 image from CameraX API to a bitmap. */
   @RequiresApi(VERSION_CODES.LOLLIPOP)
   @Nullable
   @ExperimentalGetImage
   public static Bitmap getBitmap(ImageProxy image) {
+    return getBitmap(image, sharedFrameBufferPool);
+  }
+
+  /**
+   * Converts a YUV_420_888 image from CameraX API to a bitmap, using an NV21 buffer leased from
+   * {@code pool} for the intermediate copy. The buffer is given back to the pool before returning.
+   */
+  @RequiresApi(VERSION_CODES.LOLLIPOP)
+  @Nullable
+  @ExperimentalGetImage
+  public static Bitmap getBitmap(ImageProxy image, FrameBufferPool pool) {
+    return getPreviewBitmap(
+        image, pool, /* viewWidth= */ 0, /* viewHeight= */ 0, /* bitmapPool= */ null);
+  }
+
+  /**
+   * Converts a YUV_420_888 image from CameraX API to a bitmap sized for a view of {@code
+   * viewWidth} x {@code viewHeight}, see {@link #getPreviewBitmap(ByteBuffer, FrameMetadata, int,
+   * int, BitmapPool)}. The intermediate NV21 buffer is leased from {@code pool} and given back
+   * before returning.
+   */
+  @RequiresApi(VERSION_CODES.LOLLIPOP)
+  @Nullable
+  @ExperimentalGetImage
+  public static Bitmap getPreviewBitmap(
+      ImageProxy image,
+      FrameBufferPool pool,
+      int viewWidth,
+      int viewHeight,
+      @Nullable BitmapPool bitmapPool) {
+    return getPreviewBitmap(
+        image.getImage(),
+        image.getImageInfo().getRotationDegrees(),
+        pool,
+        viewWidth,
+        viewHeight,
+        bitmapPool);
+  }
+
+  /**
+   * Converts a YUV_420_888 image, e.g. from an {@link android.media.ImageReader}, to a bitmap sized
+   * for a view of {@code viewWidth} x {@code viewHeight}, see {@link #getPreviewBitmap(ByteBuffer,
+   * FrameMetadata, int, int, BitmapPool)}. The intermediate NV21 buffer is leased from {@code pool}
+   * and given back before returning.
+   */
+  @Nullable
+  public static Bitmap getPreviewBitmap(
+      Image image,
+      int rotationDegrees,
+      FrameBufferPool pool,
+      int viewWidth,
+      int viewHeight,
+      @Nullable BitmapPool bitmapPool) {
     FrameMetadata frameMetadata =
         new FrameMetadata.Builder()
             .setWidth(image.getWidth())
             .setHeight(image.getHeight())
-            .setRotation(image.getImageInfo().getRotationDegrees())
+            .setRotation(rotationDegrees)
             .build();
 
-    ByteBuffer nv21Buffer =
-        yuv420ThreePlanesToNV21(image.getImage().getPlanes(), image.getWidth(), image.getHeight());
-    return getBitmap(nv21Buffer, frameMetadata);
+    FrameBuffer nv21Buffer =
+        yuv420ThreePlanesToNV21(image.getPlanes(), image.getWidth(), image.getHeight(), pool);
+    try {
+      return getPreviewBitmap(
+          nv21Buffer.getByteBuffer(), frameMetadata, viewWidth, viewHeight, bitmapPool);
+    } finally {
+      nv21Buffer.release();
+    }
   }
 
-  /** Rotates a bitmap if it is converted from a bytebuffer. */
+  /** Rotates a bitmap if it is converted from a bytebuffer through the JPEG fallback. */
   private static Bitmap rotateBitmap(
       Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
     Matrix matrix = new Matrix();
@@ -103,180 +321,263 @@ public class BitmapUtils {
     return rotatedBitmap;
   }
 
+  /**
+   * Decodes the image at {@code imageUri} and applies its EXIF orientation, capped at {@link
+   * #DEFAULT_MAX_DECODE_PIXELS} pixels.
+   */
   @Nullable
   public static Bitmap getBitmapFromContentUri(ContentResolver contentResolver, Uri imageUri)
       throws IOException {
-    Bitmap decodedBitmap = MediaStore.Images.Media.getBitmap(contentResolver, imageUri);
-    if (decodedBitmap == null) {
-      return null;
-    }
-    int orientation = getExifOrientationTag(contentResolver, imageUri);
-
-    int rotationDegrees = 0;
-    boolean flipX = false;
-    boolean flipY = false;
-    // See e.g. https://magnushoff.com/articles/jpeg-orientation/ for a detailed explanation on each
-    // orientation.
-    switch (orientation) {
-      case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
-        flipX = true;
-        break;
-      case ExifInterface.ORIENTATION_ROTATE_90:
-        rotationDegrees = 90;
-        break;
-      case ExifInterface.ORIENTATION_TRANSPOSE:
-        rotationDegrees = 90;
-        flipX = true;
-        break;
-      case ExifInterface.ORIENTATION_ROTATE_180:
-        rotationDegrees = 180;
-        break;
-      case ExifInterface.ORIENTATION_FLIP_VERTICAL:
-        flipY = true;
-        break;
-      case ExifInterface.ORIENTATION_ROTATE_270:
-        rotationDegrees = -90;
-        break;
-      case ExifInterface.ORIENTATION_TRANSVERSE:
-        rotationDegrees = -90;
-        flipX = true;
-        break;
-      case ExifInterface.ORIENTATION_UNDEFINED:
-      case ExifInterface.ORIENTATION_NORMAL:
-      default:
-        // No transformations necessary in this case.
-    }
-
-    return rotateBitmap(decodedBitmap, rotationDegrees, flipX, flipY);
+    return getBitmapFromContentUri(
+        contentResolver,
+        imageUri,
+        /* targetWidth= */ 0,
+        /* targetHeight= */ 0,
+        DEFAULT_MAX_DECODE_PIXELS);
   }
 
-  private static int getExifOrientationTag(ContentResolver resolver, Uri imageUri) {
-    // We only support parsing EXIF orientation tag from local file on the device.
-    // See also:
-    // https://android-developers.googleblog.com/2016/12/introducing-the-exifinterface-support-library.html
-    if (!ContentResolver.SCHEME_CONTENT.equals(imageUri.getScheme())
-        && !ContentResolver.SCHEME_FILE.equals(imageUri.getScheme())) {
-      return 0;
-    }
+  /**
+   * Decodes the image at {@code imageUri} and applies its EXIF orientation.
+   *
+   * <p>The image is subsampled by the largest power of two that still covers {@code targetWidth} x
+   * {@code targetHeight} (the upright size the caller needs, or 0 for no preference), and further
+   * until it has at most {@code maxPixels} pixels. The EXIF orientation and the image bounds are
+   * parsed from the buffered start of the stream, which is then rewound for the decode, so the
+   * image is normally opened only once. At most two bitmaps of {@code maxPixels} pixels are alive
+   * at the same time: the decoded one and its upright copy.
+   */
+  @Nullable
+  public static Bitmap getBitmapFromContentUri(
+      ContentResolver contentResolver,
+      Uri imageUri,
+      int targetWidth,
+      int targetHeight,
+      int maxPixels)
+      throws IOException {
+    InputStream inputStream = openMarkedStream(contentResolver, imageUri);
+    try {
+      int orientation = ExifInterface.ORIENTATION_NORMAL;
+      // We only support parsing EXIF orientation tag from local file on the device.
+      // See also:
+      // https://android-developers.googleblog.com/2016/12/introducing-the-exifinterface-support-library.html
+      if (ContentResolver.SCHEME_CONTENT.equals(imageUri.getScheme())
+          || ContentResolver.SCHEME_FILE.equals(imageUri.getScheme())) {
+        try {
+          orientation =
+              new ExifInterface(inputStream)
+                  .getAttributeInt(
+                      ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+          Log.e(TAG, "failed to read rotation meta data: " + imageUri, e);
+        }
+        inputStream = rewind(inputStream, contentResolver, imageUri);
+      }
 
-    ExifInterface exif;
-    try (InputStream inputStream = resolver.openInputStream(imageUri)) {
-      if (inputStream == null) {
-        return 0;
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeStream(inputStream, null, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        return null;
+      }
+      inputStream = rewind(inputStream, contentResolver, imageUri);
+
+      int rotationDegrees = 0;
+      boolean flipX = false;
+      boolean flipY = false;
+      // See e.g. https://magnushoff.com/articles/jpeg-orientation/ for a detailed explanation on
+      // each orientation.
+      switch (orientation) {
+        case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+          flipX = true;
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_90:
+          rotationDegrees = 90;
+          break;
+        case ExifInterface.ORIENTATION_TRANSPOSE:
+          rotationDegrees = 90;
+          flipX = true;
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_180:
+          rotationDegrees = 180;
+          break;
+        case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+          flipY = true;
+          break;
+        case ExifInterface.ORIENTATION_ROTATE_270:
+          rotationDegrees = -90;
+          break;
+        case ExifInterface.ORIENTATION_TRANSVERSE:
+          rotationDegrees = -90;
+          flipX = true;
+          break;
+        case ExifInterface.ORIENTATION_UNDEFINED:
+        case ExifInterface.ORIENTATION_NORMAL:
+        default:
+          // No transformations necessary in this case.
       }
 
-      exif = new ExifInterface(inputStream);
-    } catch (IOException e) {
-      Log.e(TAG, "failed to open file to read rotation meta data: " + imageUri, e);
-      return 0;
+      // The target is upright, so map it back onto the stored image before comparing.
+      options.inSampleSize =
+          calculateInSampleSize(
+              options.outWidth,
+              options.outHeight,
+              ImageTransform.getOutputWidth(targetWidth, targetHeight, rotationDegrees),
+              ImageTransform.getOutputHeight(targetWidth, targetHeight, rotationDegrees),
+              maxPixels);
+      options.inJustDecodeBounds = false;
+      Bitmap decodedBitmap = BitmapFactory.decodeStream(inputStream, null, options);
+      if (decodedBitmap == null) {
+        return null;
+      }
+      return transformBitmap(decodedBitmap, rotationDegrees, flipX, flipY);
+    } finally {
+      inputStream.close();
     }
-
-    return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
   }
 
   /**
-   * Converts YUV_420_888 to NV21 bytebuffer.
-   *
-   * <p>The NV21 format consists of a single byte array containing the Y, U and V values. For an
-   * image of size S, the first S positions of the array contain all the Y values. The remaining
-   * positions contain interleaved V and U values. U and V are subsampled by a factor of 2 in both
-   * dimensions, so there are S/4 U values and S/4 V values. In summary, the NV21 array will contain
-   * S Y values followed by S/4 VU values: YYYYYYYYYYYYYY(...)YVUVUVUVU(...)VU
-   *
-   * <p>YUV_420_888 is a generic format that can describe any YUV image where U and V are subsampled
-   * by a factor of 2 in both dimensions. {@link Image#getPlanes} returns an array with the Y, U and
-   * V planes. The Y plane is guaranteed not to be interleaved, so we can just copy its values into
-   * the first part of the NV21 array. The U and V planes may already have the representation in the
-   * NV21 format. This happens if the planes share the same buffer, the V buffer is one position
-   * before the U buffer and the planes have a pixelStride of 2. If this is case, we can just copy
-   * them to the NV21 array.
+   * Returns the largest power of two sample size that keeps a {@code width} x {@code height} image
+   * at least {@code targetWidth} x {@code targetHeight}, raised until the sampled image has at most
+   * {@code maxPixels} pixels. A target size of 0 means no lower bound in that dimension.
    */
-  private static ByteBuffer yuv420ThreePlanesToNV21(
-      Plane[] yuv420888planes, int width, int height) {
-    int imageSize = width * height;
-    byte[] out = new byte[imageSize + 2 * (imageSize / 4)];
-
-    if (areUVPlanesNV21(yuv420888planes, width, height)) {
-      // Copy the Y values.
-      yuv420888planes[0].getBuffer().get(out, 0, imageSize);
-
-      ByteBuffer uBuffer = yuv420888planes[1].getBuffer();
-      ByteBuffer vBuffer = yuv420888planes[2].getBuffer();
-      // Get the first V value from the V buffer, since the U buffer does not contain it.
-      vBuffer.get(out, imageSize, 1);
-      // Copy the first U value and the remaining VU values from the U buffer.
-      uBuffer.get(out, imageSize + 1, 2 * imageSize / 4 - 1);
-    } else {
-      // Fallback to copying the UV values one by one, which is slower but also works.
-      // Unpack Y.
-      unpackPlane(yuv420888planes[0], width, height, out, 0, 1);
-      // Unpack U.
-      unpackPlane(yuv420888planes[1], width, height, out, imageSize + 1, 2);
-      // Unpack V.
-      unpackPlane(yuv420888planes[2], width, height, out, imageSize, 2);
+  static int calculateInSampleSize(
+      int width, int height, int targetWidth, int targetHeight, int maxPixels) {
+    int sampleSize = 1;
+    if (targetWidth > 0 || targetHeight > 0) {
+      while (width / (sampleSize * 2) >= targetWidth
+          && height / (sampleSize * 2) >= targetHeight) {
+        sampleSize *= 2;
+      }
     }
-
-    return ByteBuffer.wrap(out);
+    // The decoder rounds sampled sizes up, so do the same when checking the cap.
+    while ((long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize)
+        > maxPixels) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
   }
 
-  /** Checks if the UV plane buffers of a YUV_420_888 image are in the NV21 format. */
-  private static boolean areUVPlanesNV21(Plane[] planes, int width, int height) {
-    int imageSize = width * height;
+  private static InputStream openMarkedStream(ContentResolver resolver, Uri imageUri)
+      throws IOException {
+    InputStream inputStream = resolver.openInputStream(imageUri);
+    if (inputStream == null) {
+      throw new FileNotFoundException("Unable to open " + imageUri);
+    }
+    InputStream bufferedStream = new BufferedInputStream(inputStream);
+    bufferedStream.mark(DECODE_MARK_LIMIT);
+    return bufferedStream;
+  }
 
-    ByteBuffer uBuffer = planes[1].getBuffer();
-    ByteBuffer vBuffer = planes[2].getBuffer();
+  /**
+   * Rewinds a stream opened by {@link #openMarkedStream} to the start of the image. If more than
+   * {@link #DECODE_MARK_LIMIT} bytes were read, the image is opened again instead.
+   */
+  private static InputStream rewind(
+      InputStream inputStream, ContentResolver resolver, Uri imageUri) throws IOException {
+    try {
+      inputStream.reset();
+      inputStream.mark(DECODE_MARK_LIMIT);
+      return inputStream;
+    } catch (IOException e) {
+      inputStream.close();
+      return openMarkedStream(resolver, imageUri);
+    }
+  }
 
-    // Backup buffer properties.
-    int vBufferPosition = vBuffer.position();
-    int uBufferLimit = uBuffer.limit();
+  /**
+   * Rotates and mirrors a decoded bitmap by drawing it into a bitmap of the upright size. The
+   * source bitmap is recycled if a new one is created.
+   */
+  private static Bitmap transformBitmap(
+      Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
+    if (ImageTransform.isIdentity(rotationDegrees, flipX, flipY)) {
+      return bitmap;
+    }
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    Matrix matrix = new Matrix();
+    matrix.postRotate(rotationDegrees);
+    matrix.postScale(flipX ? -1.0f : 1.0f, flipY ? -1.0f : 1.0f);
+    // Move the transformed image back to the origin.
+    RectF bounds = new RectF(0, 0, width, height);
+    matrix.mapRect(bounds);
+    matrix.postTranslate(-bounds.left, -bounds.top);
+
+    // Drawing avoids an intermediate pixel array, so only the source and the output are alive.
+    Bitmap.Config config =
+        bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+    Bitmap transformedBitmap =
+        Bitmap.createBitmap(
+            ImageTransform.getOutputWidth(width, height, rotationDegrees),
+            ImageTransform.getOutputHeight(width, height, rotationDegrees),
+            config);
+    new Canvas(transformedBitmap).drawBitmap(bitmap, matrix, null);
+    bitmap.recycle();
+    return transformedBitmap;
+  }
 
-    // Advance the V buffer by 1 byte, since the U buffer will not contain the first V value.
-    vBuffer.position(vBufferPosition + 1);
-    // Chop off the last byte of the U buffer, since the V buffer will not contain the last U value.
-    uBuffer.limit(uBufferLimit - 1);
+  /**
+   * Forgets the cached chroma plane layout, e.g. when the camera is reopened, so the next frame is
+   * checked again.
+   */
+  public static void invalidatePlaneLayoutCache() {
+    planeLayoutCache.invalidate();
+  }
 
-    // Check that the buffers are equal and have the expected number of elements.
-    boolean areNV21 =
-        (vBuffer.remaining() == (2 * imageSize / 4 - 2)) && (vBuffer.compareTo(uBuffer) == 0);
+  /**
+   * Converts YUV_420_888 to an NV21 frame buffer, see {@link YuvPlaneUnpacker#toNv21}. Whether the
+   * U and V planes are NV21 is cached per stream configuration, see {@link PlaneLayoutCache}.
+   *
+   * <p>The output is written into a buffer leased from {@code pool}. Callers must {@link
+   * FrameBuffer#release()} it once they are done with the NV21 data.
+   */
+  public static FrameBuffer yuv420ThreePlanesToNV21(
+      Plane[] yuv420888planes, int width, int height, FrameBufferPool pool) {
+    return YuvPlaneUnpacker.toNv21(
+        toPlaneDescriptors(yuv420888planes), width, height, pool, planeLayoutCache);
+  }
 
-    // Restore buffers to their initial state.
-    vBuffer.position(vBufferPosition);
-    uBuffer.limit(uBufferLimit);
+  /** Describes the planes of an {@link Image} to the conversion code in the frame module. */
+  static PlaneDescriptor[] toPlaneDescriptors(Plane[] yuv420888planes) {
+    PlaneDescriptor[] planes = new PlaneDescriptor[yuv420888planes.length];
+    for (int i = 0; i < planes.length; i++) {
+      planes[i] = new ImagePlane(yuv420888planes[i]);
+    }
+    return planes;
+  }
 
-    return areNV21;
+  /** Describes one plane of an {@link Image} to the code in the frame module. */
+  public static PlaneDescriptor toPlaneDescriptor(Plane plane) {
+    return new ImagePlane(plane);
   }
 
   /**
-   * Unpack an image plane into a byte array.
-   *
-   * <p>The input plane data will be copied in 'out', starting at 'offset' and every pixel will be
-   * spaced by 'pixelStride'. Note that there is no row padding on the output.
+   * Describes a plane of an {@link Image} to the conversion code. The conversion moves the
+   * position of the buffer, so it gets its own view, and the detector can read the same plane at
+   * the same time.
    */
-  private static void unpackPlane(
-      Plane plane, int width, int height, byte[] out, int offset, int pixelStride) {
-    ByteBuffer buffer = plane.getBuffer();
-    buffer.rewind();
-
-    // Compute the size of the current plane.
-    // We assume that it has the aspect ratio as the original image.
-    int numRow = (buffer.limit() + plane.getRowStride() - 1) / plane.getRowStride();
-    if (numRow == 0) {
-      return;
+  private static final class ImagePlane implements PlaneDescriptor {
+    private final Plane plane;
+    private final ByteBuffer buffer;
+
+    ImagePlane(Plane plane) {
+      this.plane = plane;
+      this.buffer = plane.getBuffer().duplicate();
     }
-    int scaleFactor = height / numRow;
-    int numCol = width / scaleFactor;
-
-    // Extract the data in the output buffer.
-    int outputPos = offset;
-    int rowStart = 0;
-    for (int row = 0; row < numRow; row++) {
-      int inputPos = rowStart;
-      for (int col = 0; col < numCol; col++) {
-        out[outputPos] = buffer.get(inputPos);
-        outputPos += pixelStride;
-        inputPos += plane.getPixelStride();
-      }
-      rowStart += plane.getRowStride();
+
+    @Override
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public int getRowStride() {
+      return plane.getRowStride();
+    }
+
+    @Override
+    public int getPixelStride() {
+      return plane.getPixelStride();
     }
   }
 }
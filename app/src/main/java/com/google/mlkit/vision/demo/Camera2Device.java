@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.media.Image;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.io.IOException;
+
+/**
+ * The camera hardware behind a {@link Camera2Source}. Keeping it behind this interface lets the
+ * frame scheduling of the source run against a fake device.
+ */
+public interface Camera2Device {
+
+  /** Receives the events of an open device, on a thread owned by the device. */
+  interface Listener {
+    /** Called when at least one new image can be acquired. */
+    void onImageAvailable();
+
+    /** Called when the camera fails or is disconnected, after which no images arrive anymore. */
+    void onError(Exception e);
+  }
+
+  /**
+   * Opens the camera with the given facing and starts streaming YUV_420_888 images of a supported
+   * size close to the requested one. Blocks until the stream is configured.
+   *
+   * @param facing one of {@link CameraSource#CAMERA_FACING_BACK} or {@link
+   *     CameraSource#CAMERA_FACING_FRONT}
+   * @return the size of the streamed images
+   * @throws IOException if the camera could not be opened or configured
+   */
+  Size open(int facing, int requestedWidth, int requestedHeight, Listener listener)
+      throws IOException;
+
+  /** Returns the clockwise rotation that makes the images upright on the current display. */
+  int getRotationDegrees();
+
+  /**
+   * Acquires the newest image, dropping any older one that was not acquired yet, or returns null
+   * if there is none. The caller must close the image.
+   */
+  @Nullable
+  Image acquireLatestImage();
+
+  /** Stops streaming and closes the camera. Images that were not closed yet become invalid. */
+  void close();
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.Manifest;
+import android.app.Activity;
+import android.media.Image;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresPermission;
+import com.google.android.gms.common.images.Size;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams camera frames to a {@link VisionImageProcessor} with the Camera2 API, as a replacement
+ * for the Camera1 based {@link CameraSource}.
+ *
+ * <p>Frames arrive as YUV_420_888 {@link Image}s from a {@link Camera2Device} and go to {@link
+ * VisionImageProcessor#processMediaImage} as they are, without the NV21 copy Camera1 needs. At most
+ * one image is with the processor at a time. Images that arrive meanwhile stay in the device, and
+ * once the processor is done only the newest of them is processed, so detection always runs on the
+ * latest frame.
+ */
+public class Camera2Source {
+
+  public static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH = 640;
+  public static final int DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT = 480;
+
+  private static final String TAG = "MIDemoApp:Camera2Source";
+
+  // How long stop() waits for the processor to hand back its image before closing the device.
+  private static final long STOP_TIMEOUT_MS = 1000;
+
+  private final Camera2Device device;
+  private final GraphicOverlay graphicOverlay;
+  private final Executor processingExecutor;
+  @Nullable private final ExecutorService ownedExecutor;
+
+  private final Object processorLock = new Object();
+  private volatile VisionImageProcessor frameProcessor;
+
+  private int facing = CameraSource.CAMERA_FACING_BACK;
+  private int requestedPreviewWidth = DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH;
+  private int requestedPreviewHeight = DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT;
+  @Nullable private volatile Size previewSize;
+
+  // This lock guards the scheduling state below.
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private boolean active;
+
+  // Whether an image is with the processor, or about to be acquired for it.
+  @GuardedBy("lock")
+  private boolean imageInFlight;
+
+  // Whether the device reported new images while an image was in flight.
+  @GuardedBy("lock")
+  private boolean imagePending;
+
+  public Camera2Source(Activity activity, GraphicOverlay overlay) {
+    this(
+        new ImageReaderCameraDevice(activity),
+        overlay,
+        Executors.newSingleThreadExecutor(),
+        /* ownsExecutor= */ true);
+  }
+
+  /**
+   * Creates a source for {@code device} that hands images to the processor on {@code
+   * processingExecutor}, e.g. a fake device and a direct executor.
+   */
+  Camera2Source(Camera2Device device, GraphicOverlay overlay, Executor processingExecutor) {
+    this(device, overlay, processingExecutor, /* ownsExecutor= */ false);
+  }
+
+  private Camera2Source(
+      Camera2Device device,
+      GraphicOverlay overlay,
+      Executor processingExecutor,
+      boolean ownsExecutor) {
+    this.device = device;
+    this.graphicOverlay = overlay;
+    this.processingExecutor = processingExecutor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) processingExecutor : null;
+    graphicOverlay.clear();
+  }
+
+  // ==============================================================================================
+  // Public
+  // ==============================================================================================
+
+  /** Stops the camera and releases the resources of the camera and underlying detector. */
+  public void release() {
+    synchronized (processorLock) {
+      stop();
+      graphicOverlay.clear();
+
+      if (frameProcessor != null) {
+        frameProcessor.stop();
+      }
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Opens the camera and starts sending frames to the underlying detector. The frames are not
+   * displayed, except by processors that draw them onto the graphic overlay.
+   *
+   * @throws IOException if the camera could not be opened
+   */
+  @RequiresPermission(Manifest.permission.CAMERA)
+  public synchronized Camera2Source start() throws IOException {
+    synchronized (lock) {
+      if (active) {
+        return this;
+      }
+      active = true;
+    }
+    Size size;
+    try {
+      size =
+          device.open(
+              facing,
+              requestedPreviewWidth,
+              requestedPreviewHeight,
+              new Camera2Device.Listener() {
+                @Override
+                public void onImageAvailable() {
+                  Camera2Source.this.onImageAvailable();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                  Log.e(TAG, "Camera failed.", e);
+                }
+              });
+    } catch (IOException | RuntimeException e) {
+      synchronized (lock) {
+        active = false;
+      }
+      throw e;
+    }
+    previewSize = size;
+
+    int rotationDegrees = device.getRotationDegrees();
+    boolean isImageFlipped = facing == CameraSource.CAMERA_FACING_FRONT;
+    if (rotationDegrees == 90 || rotationDegrees == 270) {
+      graphicOverlay.setImageSourceInfo(size.getHeight(), size.getWidth(), isImageFlipped);
+    } else {
+      graphicOverlay.setImageSourceInfo(size.getWidth(), size.getHeight(), isImageFlipped);
+    }
+    return this;
+  }
+
+  /**
+   * Closes the camera and stops sending frames to the underlying frame detector. Waits for the
+   * processor to finish with its current image first, as closing the camera invalidates it.
+   *
+   * <p>This camera source may be restarted again by calling {@link #start()}.
+   */
+  public synchronized void stop() {
+    synchronized (lock) {
+      active = false;
+      imagePending = false;
+      long deadlineMs = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+      long remainingMs;
+      while (imageInFlight && (remainingMs = deadlineMs - System.currentTimeMillis()) > 0) {
+        try {
+          lock.wait(remainingMs);
+        } catch (InterruptedException e) {
+          Log.d(TAG, "Interrupted while waiting for the processor.");
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      if (imageInFlight) {
+        Log.w(TAG, "Closing the camera while the processor still holds an image.");
+      }
+    }
+    device.close();
+  }
+
+  /** Changes the facing of the camera, which takes effect on the next {@link #start()}. */
+  public synchronized void setFacing(int facing) {
+    if ((facing != CameraSource.CAMERA_FACING_BACK)
+        && (facing != CameraSource.CAMERA_FACING_FRONT)) {
+      throw new IllegalArgumentException("Invalid camera: " + facing);
+    }
+    this.facing = facing;
+  }
+
+  /** Sets the preferred frame size, which takes effect on the next {@link #start()}. */
+  public synchronized void setRequestedPreviewSize(int width, int height) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Invalid preview size: " + width + "x" + height);
+    }
+    requestedPreviewWidth = width;
+    requestedPreviewHeight = height;
+  }
+
+  /** Returns the frame size that is currently in use by the underlying camera. */
+  @Nullable
+  public Size getPreviewSize() {
+    return previewSize;
+  }
+
+  /**
+   * Returns the selected camera; one of {@link CameraSource#CAMERA_FACING_BACK} or {@link
+   * CameraSource#CAMERA_FACING_FRONT}.
+   */
+  public int getCameraFacing() {
+    return facing;
+  }
+
+  public void setMachineLearningFrameProcessor(VisionImageProcessor processor) {
+    synchronized (processorLock) {
+      graphicOverlay.clear();
+      if (frameProcessor != null) {
+        frameProcessor.stop();
+      }
+      frameProcessor = processor;
+    }
+  }
+
+  // ==============================================================================================
+  // Frame scheduling
+  // ==============================================================================================
+
+  /** Called by the device when new images can be acquired. */
+  private void onImageAvailable() {
+    synchronized (lock) {
+      if (!active) {
+        return;
+      }
+      if (imageInFlight) {
+        // Picked up once the processor is done, see onImageDone().
+        imagePending = true;
+        return;
+      }
+      imageInFlight = true;
+    }
+    processingExecutor.execute(this::processLatestImage);
+  }
+
+  /** Hands the newest image of the device to the processor. Runs on the processing executor. */
+  private void processLatestImage() {
+    Image image = null;
+    synchronized (lock) {
+      if (active) {
+        imagePending = false;
+        try {
+          image = device.acquireLatestImage();
+        } catch (IllegalStateException e) {
+          Log.e(TAG, "Failed to acquire image.", e);
+        }
+      }
+    }
+    if (image == null) {
+      onImageDone();
+      return;
+    }
+
+    Image acquiredImage = image;
+    AtomicBoolean done = new AtomicBoolean();
+    Runnable onImageDone =
+        () -> {
+          if (done.compareAndSet(false, true)) {
+            acquiredImage.close();
+            onImageDone();
+          }
+        };
+    VisionImageProcessor processor = frameProcessor;
+    if (processor == null) {
+      onImageDone.run();
+      return;
+    }
+    try {
+      processor.processMediaImage(
+          acquiredImage, device.getRotationDegrees(), graphicOverlay, onImageDone);
+    } catch (Exception e) {
+      Log.e(TAG, "Exception thrown from receiver.", e);
+      onImageDone.run();
+    }
+  }
+
+  /** Called once the processor no longer needs its image. Schedules the next one, if any. */
+  private void onImageDone() {
+    synchronized (lock) {
+      if (!active || !imagePending) {
+        imageInFlight = false;
+        // Wakes up stop() if it waits for the image.
+        lock.notifyAll();
+        return;
+      }
+    }
+    processingExecutor.execute(this::processLatestImage);
+  }
+}
@@ -18,20 +18,41 @@ package com.google.mlkit.vision.demo;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import com.google.mlkit.vision.demo.GraphicOverlay.Graphic;
 
-/** Draw camera image to background. */
+/**
+ * Draw camera image to background. The bitmap may be smaller than the image size set on the
+ * overlay, in which case it is scaled up to cover the same area. The bitmap is given back to the
+ * overlay's {@link BitmapPool} once the graphic is released.
+ */
 public class CameraImageGraphic extends Graphic {
 
+  private final GraphicOverlay overlay;
   private final Bitmap bitmap;
+  private final Matrix drawMatrix = new Matrix();
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
   public CameraImageGraphic(GraphicOverlay overlay, Bitmap bitmap) {
     super(overlay);
+    this.overlay = overlay;
     this.bitmap = bitmap;
   }
 
   @Override
   public void draw(Canvas canvas) {
-    canvas.drawBitmap(bitmap, getTransformationMatrix(), null);
+    drawMatrix.set(getTransformationMatrix());
+    if (overlay.getImageWidth() > 0 && overlay.getImageHeight() > 0) {
+      drawMatrix.preScale(
+          (float) overlay.getImageWidth() / bitmap.getWidth(),
+          (float) overlay.getImageHeight() / bitmap.getHeight());
+    }
+    canvas.drawBitmap(bitmap, drawMatrix, paint);
+  }
+
+  @Override
+  protected void release() {
+    overlay.getBitmapPool().release(bitmap);
   }
 }
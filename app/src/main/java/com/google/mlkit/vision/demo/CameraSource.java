@@ -32,11 +32,11 @@ import android.view.WindowManager;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 import com.google.android.gms.common.images.Size;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameMailbox;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
@@ -84,6 +84,9 @@ public class CameraSource {
   private static final float REQUESTED_FPS = 30.0f;
   private static final boolean REQUESTED_AUTO_FOCUS = true;
 
+  public static final int DEFAULT_PREVIEW_BUFFER_DEPTH = 4;
+  public static final int DEFAULT_MAX_PREVIEW_BUFFER_DEPTH = 8;
+
   // This instance needs to be held onto to avoid GC of its underlying resources. Even though it
   // isn't used outside of the method that creates it, it still must have hard references maintained
   // to it.
@@ -100,18 +103,28 @@ public class CameraSource {
   private final FrameProcessingRunnable processingRunnable;
   private final Object processorLock = new Object();
 
-  private VisionImageProcessor frameProcessor;
+  // Guarded by processorLock for writes. The processing thread reads it without locking; a processor
+  // that was replaced or stopped in the meantime ignores the frame.
+  private volatile VisionImageProcessor frameProcessor;
 
   /**
-   * Map to convert between a byte array, received from the camera, and its associated byte buffer.
-   * We use byte buffers internally because this is a more efficient way to call into native code
-   * later (avoids a potential copy).
-   *
-   * <p><b>Note:</b> uses IdentityHashMap here instead of HashMap because the behavior of an array's
-   * equals, hashCode and toString methods is both useless and unexpected. IdentityHashMap enforces
-   * identity ('==') check on the keys.
+   * Preview buffers of the current camera session, or of the last one once the camera is stopped.
+   * Frame buffers are leased to the processors and only go back to the camera once every consumer
+   * has released them, so the camera never overwrites a frame that is still being read.
    */
-  private final IdentityHashMap<byte[], ByteBuffer> bytesToByteBuffer = new IdentityHashMap<>();
+  @Nullable private volatile PreviewBufferRing previewBufferRing;
+
+  // Picks the preview size when the user did not set one, see setResolutionController().
+  @Nullable private AdaptiveResolutionController resolutionController;
+
+  // Picks the preview frame rate instead of REQUESTED_FPS, see setFrameRateGovernor().
+  @Nullable private FrameRateGovernor frameRateGovernor;
+
+  // Keeps the last seconds of frames for post-mortem replay, see setFrameRecorder().
+  @Nullable private volatile RollingFrameRecorder frameRecorder;
+
+  private int previewBufferDepth = DEFAULT_PREVIEW_BUFFER_DEPTH;
+  private int maxPreviewBufferDepth = DEFAULT_MAX_PREVIEW_BUFFER_DEPTH;
 
   public CameraSource(Activity activity, GraphicOverlay overlay) {
     this.activity = activity;
@@ -205,6 +218,14 @@ public class CameraSource {
       processingThread = null;
     }
 
+    // Release the reference to any image buffers, since these will no longer be in use. Buffers that
+    // consumers still hold are dropped when they are released, instead of going back to the camera.
+    PreviewBufferRing ring = previewBufferRing;
+    if (ring != null) {
+      ring.close();
+      Log.d(TAG, "Preview frames: " + ring.getStats());
+    }
+
     if (camera != null) {
       camera.stopPreview();
       camera.setPreviewCallbackWithBuffer(null);
@@ -218,9 +239,71 @@ public class CameraSource {
       camera.release();
       camera = null;
     }
+  }
+
+  /**
+   * Sets how many preview buffers are allocated when the camera starts, and how many there may be
+   * while processors hold on to frames. Takes effect right away if the camera is running.
+   */
+  public synchronized void setPreviewBufferDepth(int depth, int maxDepth) {
+    if (depth < 1 || maxDepth < depth || maxDepth > PreviewBufferRing.MAX_SLOTS) {
+      throw new IllegalArgumentException("Invalid preview buffer depth: " + depth + ", " + maxDepth);
+    }
+    previewBufferDepth = depth;
+    maxPreviewBufferDepth = maxDepth;
+    PreviewBufferRing ring = previewBufferRing;
+    if (camera != null && ring != null) {
+      ring.setDepth(depth, maxDepth);
+    }
+  }
 
-    // Release the reference to any image buffers, since these will no longer be in use.
-    bytesToByteBuffer.clear();
+  /**
+   * Returns the frame counts of the current camera session, or of the last one if the camera is
+   * stopped, or null if the camera was never started.
+   */
+  @Nullable
+  public PreviewBufferRing.Stats getFrameStats() {
+    PreviewBufferRing ring = previewBufferRing;
+    return ring != null ? ring.getStats() : null;
+  }
+
+  /**
+   * Lets {@code controller} pick the preview size from {@link #generateValidPreviewSizeList}
+   * whenever the camera starts, unless a preview size is set in the preferences. The new size is
+   * used on the next start, see {@link CameraSourcePreview#restart()}.
+   */
+  public synchronized void setResolutionController(
+      @Nullable AdaptiveResolutionController controller) {
+    resolutionController = controller;
+  }
+
+  @Nullable
+  public synchronized AdaptiveResolutionController getResolutionController() {
+    return resolutionController;
+  }
+
+  /**
+   * Lets {@code governor} pick the preview frame rate, instead of always requesting 30 fps. New
+   * rates are applied to the running camera right away. The governor needs the frame statistics
+   * of the processor, see {@link
+   * com.google.mlkit.vision.demo.java.VisionProcessorBase#addFrameStatsListener}.
+   */
+  public synchronized void setFrameRateGovernor(@Nullable FrameRateGovernor governor) {
+    if (frameRateGovernor != null) {
+      frameRateGovernor.setListener(null);
+    }
+    frameRateGovernor = governor;
+    if (governor != null) {
+      governor.setListener(this::setPreviewFrameRate);
+    }
+  }
+
+  /**
+   * Offers every preview frame to {@code recorder}, which keeps the recent ones within its own
+   * budget. The recorder only takes a reference to each frame on the processing thread.
+   */
+  public void setFrameRecorder(@Nullable RollingFrameRecorder recorder) {
+    frameRecorder = recorder;
   }
 
   /** Changes the facing of the camera. */
@@ -299,6 +382,9 @@ public class CameraSource {
     Camera camera = Camera.open(requestedCameraId);
 
     SizePair sizePair = PreferenceUtils.getCameraPreviewSizePair(activity, requestedCameraId);
+    if (sizePair == null && resolutionController != null) {
+      sizePair = selectAdaptiveSizePair(camera, resolutionController);
+    }
     if (sizePair == null) {
       sizePair =
           selectSizePair(
@@ -314,7 +400,12 @@ public class CameraSource {
     previewSize = sizePair.preview;
     Log.v(TAG, "Camera preview size: " + previewSize);
 
-    int[] previewFpsRange = selectPreviewFpsRange(camera, REQUESTED_FPS);
+    float requestedFps = REQUESTED_FPS;
+    if (frameRateGovernor != null) {
+      frameRateGovernor.reset();
+      requestedFps = frameRateGovernor.getTargetFps();
+    }
+    int[] previewFpsRange = selectPreviewFpsRange(camera, requestedFps);
     if (previewFpsRange == null) {
       throw new IOException("Could not find suitable preview frames per second range.");
     }
@@ -358,15 +449,68 @@ public class CameraSource {
     // one thread for acquiring images, and another thread for calling into user code.  If only
     // three buffers are used, then the camera will spew thousands of warning messages when
     // detection takes a non-trivial amount of time.
+    //
+    // Processors may hold on to frames for longer, in which case more buffers are added as needed.
+    // The number of buffers can be tuned with setPreviewBufferDepth().
     camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
-    camera.addCallbackBuffer(createPreviewBuffer(previewSize));
+    previewBufferRing =
+        new PreviewBufferRing(
+            camera,
+            previewSize.getWidth(),
+            previewSize.getHeight(),
+            previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000.0f,
+            previewBufferDepth,
+            maxPreviewBufferDepth);
 
     return camera;
   }
 
+  /** Hands the valid preview sizes to {@code controller} and returns the pair of its current size. */
+  @Nullable
+  private static SizePair selectAdaptiveSizePair(
+      Camera camera, AdaptiveResolutionController controller) {
+    List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
+    List<Size> ladder = new ArrayList<>(validPreviewSizes.size());
+    for (SizePair sizePair : validPreviewSizes) {
+      ladder.add(sizePair.preview);
+    }
+    controller.setLadder(
+        ladder, DEFAULT_REQUESTED_CAMERA_PREVIEW_WIDTH, DEFAULT_REQUESTED_CAMERA_PREVIEW_HEIGHT);
+    Size size = controller.getCurrentSize();
+    for (SizePair sizePair : validPreviewSizes) {
+      if (sizePair.preview.equals(size)) {
+        return sizePair;
+      }
+    }
+    return null;
+  }
+
+  /** Switches the running camera to the supported frame rate range closest to {@code fps}. */
+  private synchronized void setPreviewFrameRate(float fps) {
+    if (camera == null) {
+      return;
+    }
+    int[] previewFpsRange = selectPreviewFpsRange(camera, fps);
+    if (previewFpsRange == null) {
+      return;
+    }
+    Camera.Parameters parameters = camera.getParameters();
+    parameters.setPreviewFpsRange(
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+        previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    try {
+      camera.setParameters(parameters);
+    } catch (RuntimeException e) {
+      // Some devices only take a new range when the preview is restarted.
+      Log.w(TAG, "Camera rejected preview frame rate " + fps, e);
+      return;
+    }
+    PreviewBufferRing ring = previewBufferRing;
+    if (ring != null) {
+      ring.setFrameRate(previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000.0f);
+    }
+  }
+
   /**
    * Gets the id for the camera specified by the direction it is facing. Returns -1 if no such
    * camera was found.
@@ -566,32 +710,6 @@ public class CameraSource {
     parameters.setRotation(this.rotationDegrees);
   }
 
-  /**
-   * Creates one buffer for the camera preview callback. The size of the buffer is based off of the
-   * camera preview size and the format of the camera image.
-   *
-   * @return a new preview buffer of the appropriate size for the current camera settings
-   */
-  @SuppressLint("InlinedApi")
-  private byte[] createPreviewBuffer(Size previewSize) {
-    int bitsPerPixel = ImageFormat.getBitsPerPixel(IMAGE_FORMAT);
-    long sizeInBits = (long) previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-    int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-    // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-    // should guarantee that there will be an array to work with.
-    byte[] byteArray = new byte[bufferSize];
-    ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-    if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-      // I don't think that this will ever happen.  But if it does, then we wouldn't be
-      // passing the preview content to the underlying detector later.
-      throw new IllegalStateException("Failed to create valid buffer for camera source.");
-    }
-
-    bytesToByteBuffer.put(byteArray, buffer);
-    return byteArray;
-  }
-
   // ==============================================================================================
   // Frame processing
   // ==============================================================================================
@@ -600,7 +718,7 @@ public class CameraSource {
   private class CameraPreviewCallback implements Camera.PreviewCallback {
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-      processingRunnable.setNextFrame(data, camera);
+      processingRunnable.setNextFrame(data);
     }
   }
 
@@ -623,51 +741,53 @@ public class CameraSource {
    * frames come in, the most recent frame is held onto as pending. As soon as detection and its
    * associated processing is done for the previous frame, detection on the mostly recently received
    * frame will immediately start on the same thread.
+   *
+   * <p>The pending frame is handed over through a lock-free {@link FrameMailbox}, so the camera
+   * callback thread never blocks on the processing thread.
    */
   private class FrameProcessingRunnable implements Runnable {
 
-    // This lock guards all of the member variables below.
-    private final Object lock = new Object();
-    private boolean active = true;
-
-    // These pending variables hold the state associated with the new frame awaiting processing.
-    private ByteBuffer pendingFrameData;
+    // Holds the new frame awaiting processing.
+    private final FrameMailbox<FrameBuffer> pendingFrame = new FrameMailbox<>();
 
     FrameProcessingRunnable() {}
 
-    /** Marks the runnable as active/not active. Signals any blocked threads to continue. */
+    /** Marks the runnable as active/not active. Wakes up the processing thread if it waits. */
     void setActive(boolean active) {
-      synchronized (lock) {
-        this.active = active;
-        lock.notifyAll();
+      FrameBuffer unprocessed = active ? pendingFrame.open() : pendingFrame.close();
+      if (unprocessed != null) {
+        unprocessed.release();
       }
     }
 
     /**
-     * Sets the frame data received from the camera. This adds the previous unused frame buffer (if
-     * present) back to the camera, and keeps a pending reference to the frame data for future use.
+     * Sets the frame data received from the camera. This releases the previous unused frame buffer
+     * (if present), which gives it back to the camera, and keeps a pending lease on the frame data
+     * for future use.
      */
-    @SuppressWarnings("ByteBufferBackingArray")
-    void setNextFrame(byte[] data, Camera camera) {
-      synchronized (lock) {
-        if (pendingFrameData != null) {
-          camera.addCallbackBuffer(pendingFrameData.array());
-          pendingFrameData = null;
-        }
+    void setNextFrame(byte[] data) {
+      PreviewBufferRing ring = previewBufferRing;
+      if (ring == null) {
+        return;
+      }
+      FrameBuffer frame = ring.onPreviewFrame(data);
+      if (frame == null) {
+        Log.d(
+            TAG,
+            "Skipping frame. Could not find FrameBuffer associated with the image "
+                + "data from the camera.");
+        return;
+      }
 
-        if (!bytesToByteBuffer.containsKey(data)) {
-          Log.d(
-              TAG,
-              "Skipping frame. Could not find ByteBuffer associated with the image "
-                  + "data from the camera.");
-          return;
+      // This also wakes the processor thread if it is waiting on the next frame (see below).
+      FrameBuffer displaced = pendingFrame.post(frame.lease());
+      if (displaced != null) {
+        if (displaced != frame) {
+          ring.onFrameDroppedBusy();
         }
-
-        pendingFrameData = bytesToByteBuffer.get(data);
-
-        // Notify the processor thread if it is waiting on the next frame (see below).
-        lock.notifyAll();
+        displaced.release();
       }
+      ring.ensureFreeBuffers();
     }
 
     /**
@@ -684,47 +804,29 @@ public class CameraSource {
      * FPS setting above to allow for some idle time in between frames.
      */
     @SuppressLint("InlinedApi")
-    @SuppressWarnings({"GuardedBy", "ByteBufferBackingArray"})
     @Override
     public void run() {
-      ByteBuffer data;
-
       while (true) {
-        synchronized (lock) {
-          while (active && (pendingFrameData == null)) {
-            try {
-              // Wait for the next frame to be received from the camera, since we
-              // don't have it yet.
-              lock.wait();
-            } catch (InterruptedException e) {
-              Log.d(TAG, "Frame processing loop terminated.", e);
-              return;
-            }
-          }
-
-          if (!active) {
-            // Exit the loop once this camera source is stopped or released.  We check
-            // this here, immediately after the wait() above, to handle the case where
-            // setActive(false) had been called, triggering the termination of this
-            // loop.
-            return;
-          }
-
-          // Hold onto the frame data locally, so that we can use this for detection
-          // below.  We need to clear pendingFrameData to ensure that this buffer isn't
-          // recycled back to the camera before we are done using that data.
-          data = pendingFrameData;
-          pendingFrameData = null;
+        // Wait for the next frame to be received from the camera, if we don't have it yet. Hold
+        // onto the frame data locally, so that we can use this for detection below. Taking it out
+        // of the mailbox ensures that this buffer isn't recycled back to the camera before we are
+        // done using that data.
+        FrameBuffer frame = pendingFrame.take();
+        if (frame == null) {
+          // Exit the loop once this camera source is stopped or released.
+          Log.d(TAG, "Frame processing loop terminated.");
+          return;
         }
 
-        // The code below needs to run outside of synchronization, because this will allow
-        // the camera to add pending frame(s) while we are running detection on the current
-        // frame.
-
         try {
-          synchronized (processorLock) {
-            frameProcessor.processByteBuffer(
-                data,
+          RollingFrameRecorder recorder = frameRecorder;
+          if (recorder != null) {
+            recorder.offer(frame, rotationDegrees);
+          }
+          VisionImageProcessor processor = frameProcessor;
+          if (processor != null) {
+            processor.processFrameBuffer(
+                frame,
                 new FrameMetadata.Builder()
                     .setWidth(previewSize.getWidth())
                     .setHeight(previewSize.getHeight())
@@ -735,7 +837,9 @@ public class CameraSource {
         } catch (Exception t) {
           Log.e(TAG, "Exception thrown from receiver.", t);
         } finally {
-          camera.addCallbackBuffer(data.array());
+          // The processor holds its own reference for as long as it reads the frame, so the
+          // buffer only goes back to the camera once it is done.
+          frame.release();
         }
       }
     }
@@ -61,6 +61,10 @@ public class CameraSourcePreview extends ViewGroup {
 
   public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException {
     this.overlay = overlay;
+    AdaptiveResolutionController controller = cameraSource.getResolutionController();
+    if (controller != null) {
+      controller.setListener(pendingController -> post(this::applyPendingPreviewSize));
+    }
     start(cameraSource);
   }
 
@@ -70,6 +74,33 @@ public class CameraSourcePreview extends ViewGroup {
     }
   }
 
+  /**
+   * Restarts the camera, e.g. to apply a new preview size. Stopping waits for the processing thread,
+   * and frames still held by the detector are dropped once released, so this is safe at any time on
+   * the main thread.
+   */
+  public void restart() throws IOException {
+    if (cameraSource == null) {
+      return;
+    }
+    cameraSource.stop();
+    startRequested = true;
+    startIfReady();
+  }
+
+  private void applyPendingPreviewSize() {
+    AdaptiveResolutionController controller =
+        cameraSource != null ? cameraSource.getResolutionController() : null;
+    if (controller == null || controller.takePendingSize() == null) {
+      return;
+    }
+    try {
+      restart();
+    } catch (IOException e) {
+      Log.e(TAG, "Could not restart camera source.", e);
+    }
+  }
+
   public void release() {
     if (cameraSource != null) {
       cameraSource.release();
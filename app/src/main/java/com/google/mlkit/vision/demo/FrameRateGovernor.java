@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.content.Context;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Picks the camera frame rate from the rate at which the detector actually delivers results, and
+ * lowers it further while the device is hot, where Android reports its thermal status.
+ *
+ * <p>Capturing frames the detector cannot consume only costs power and heat: each of them is
+ * filled, copied and dropped. Every {@link #EVALUATION_PERIOD_MS} the governor measures the result
+ * rate and asks for a little more than that. If the detector kept up with every frame, it probes
+ * a higher rate instead, since the measured rate was then limited by the camera. Changes smaller
+ * than {@link #MIN_CHANGE_FRACTION} of the current rate are ignored, so the camera is not
+ * reconfigured for noise.
+ */
+public class FrameRateGovernor implements FrameStatsListener {
+
+  /** Notified when the camera should switch to a new frame rate. */
+  public interface Listener {
+    /** Called on the thread that reported the frame statistics. */
+    void onFrameRateChanged(float fps);
+  }
+
+  private static final String TAG = "FrameRateGovernor";
+
+  static final long EVALUATION_PERIOD_MS = 2000;
+  static final float MIN_CHANGE_FRACTION = 0.2f;
+
+  // Capture a bit faster than results are delivered, so the detector never waits for a frame.
+  private static final float HEADROOM = 1.25f;
+  private static final float PROBE_FACTOR = 1.5f;
+  // Below this share of dropped frames the detector counts as keeping up with the camera.
+  private static final float KEEPING_UP_DROP_RATE = 0.05f;
+
+  private final float minFps;
+  private final float maxFps;
+  @Nullable private final PowerManager powerManager;
+  @Nullable private volatile Listener listener;
+
+  @GuardedBy("this")
+  private float targetFps;
+
+  @GuardedBy("this")
+  private long periodStartMs;
+
+  @GuardedBy("this")
+  private int framesProcessed;
+
+  @GuardedBy("this")
+  private int framesDropped;
+
+  /** Creates a governor that starts at {@code maxFps} and never goes below {@code minFps}. */
+  public FrameRateGovernor(Context context, float minFps, float maxFps) {
+    if (minFps <= 0 || maxFps < minFps) {
+      throw new IllegalArgumentException("Invalid frame rate range: " + minFps + ", " + maxFps);
+    }
+    this.minFps = minFps;
+    this.maxFps = maxFps;
+    this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    targetFps = maxFps;
+  }
+
+  public void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns the frame rate the camera should use. */
+  public synchronized float getTargetFps() {
+    return targetFps;
+  }
+
+  /** Starts a new measurement, e.g. after the camera was restarted. */
+  public synchronized void reset() {
+    periodStartMs = 0;
+    framesProcessed = 0;
+    framesDropped = 0;
+  }
+
+  @Override
+  public void onFrameProcessed(long frameLatencyMs) {
+    float newFps = addFrame(SystemClock.elapsedRealtime());
+    Listener currentListener = listener;
+    if (newFps > 0 && currentListener != null) {
+      currentListener.onFrameRateChanged(newFps);
+    }
+  }
+
+  @Override
+  public synchronized void onFrameDropped() {
+    if (periodStartMs != 0) {
+      framesDropped++;
+    }
+  }
+
+  /** Counts a processed frame. Returns the new target frame rate if it changed, or 0. */
+  private synchronized float addFrame(long nowMs) {
+    if (periodStartMs == 0) {
+      periodStartMs = nowMs;
+      return 0;
+    }
+    framesProcessed++;
+    long elapsedMs = nowMs - periodStartMs;
+    if (elapsedMs < EVALUATION_PERIOD_MS) {
+      return 0;
+    }
+
+    float resultFps = framesProcessed * 1000f / elapsedMs;
+    float dropRate = (float) framesDropped / (framesProcessed + framesDropped);
+    periodStartMs = nowMs;
+    framesProcessed = 0;
+    framesDropped = 0;
+
+    float desiredFps =
+        dropRate < KEEPING_UP_DROP_RATE ? targetFps * PROBE_FACTOR : resultFps * HEADROOM;
+    desiredFps = Math.max(minFps, Math.min(Math.min(desiredFps, getThermalCapFps()), maxFps));
+    if (Math.abs(desiredFps - targetFps) < Math.max(1f, targetFps * MIN_CHANGE_FRACTION)) {
+      return 0;
+    }
+    Log.d(
+        TAG,
+        "Frame rate " + targetFps + " -> " + desiredFps + ", detector delivered " + resultFps);
+    targetFps = desiredFps;
+    return desiredFps;
+  }
+
+  /** Returns the highest frame rate the thermal status allows. */
+  private float getThermalCapFps() {
+    if (powerManager == null || VERSION.SDK_INT < VERSION_CODES.Q) {
+      return maxFps;
+    }
+    int thermalStatus = powerManager.getCurrentThermalStatus();
+    if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+      return minFps;
+    } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+      return maxFps / 2;
+    } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+      return maxFps * 2 / 3;
+    }
+    return maxFps;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.camera.core.ExperimentalGetImage;
+import androidx.camera.core.ImageProxy;
+import com.google.mlkit.common.MlKitException;
+import com.google.mlkit.vision.demo.frame.CaptureFileWriter;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the camera frames passing through to another {@link VisionImageProcessor} into a capture
+ * file, which {@link ReplayFrameSource} can play back later.
+ *
+ * <p>Frames are written on a background thread, so recording does not slow down the camera. The
+ * recorder holds a reference to each queued frame until it is written. If the disk falls behind
+ * by more than {@code maxQueuedFrames} frames, further frames are skipped rather than stalling the
+ * camera, and counted in {@link #getSkippedFrameCount()}. Still images are not recorded.
+ */
+public class FrameRecordingProcessor implements VisionImageProcessor {
+
+  private static final String TAG = "FrameRecordingProcessor";
+  private static final int DEFAULT_MAX_QUEUED_FRAMES = 8;
+  private static final long STOP_TIMEOUT_MS = 5000;
+
+  private final VisionImageProcessor delegate;
+  private final CaptureFileWriter writer;
+  private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+  private final Semaphore queuedFrames;
+  // Copies of CameraX and Camera2 images, which must be closed before they are written.
+  private final FrameBufferPool copyPool = new FrameBufferPool();
+
+  @GuardedBy("this")
+  private int skippedFrameCount;
+
+  @GuardedBy("this")
+  @Nullable
+  private IOException writeError;
+
+  /** Starts recording into {@code captureFile}, replacing any existing file. */
+  public FrameRecordingProcessor(VisionImageProcessor delegate, File captureFile)
+      throws IOException {
+    this(delegate, captureFile, DEFAULT_MAX_QUEUED_FRAMES);
+  }
+
+  public FrameRecordingProcessor(
+      VisionImageProcessor delegate, File captureFile, int maxQueuedFrames) throws IOException {
+    if (maxQueuedFrames <= 0) {
+      throw new IllegalArgumentException("Invalid queue size: " + maxQueuedFrames);
+    }
+    this.delegate = delegate;
+    this.writer = new CaptureFileWriter(captureFile);
+    this.queuedFrames = new Semaphore(maxQueuedFrames);
+  }
+
+  @Override
+  public void processBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+    delegate.processBitmap(bitmap, graphicOverlay);
+  }
+
+  @Override
+  public void processByteBuffer(
+      ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
+      throws MlKitException {
+    if (queuedFrames.tryAcquire()) {
+      FrameBuffer copy = copyPool.acquire(frameMetadata.getWidth(), frameMetadata.getHeight());
+      data.duplicate().get(copy.array(), 0, Math.min(data.remaining(), copy.array().length));
+      enqueue(copy, frameMetadata.getRotation(), SystemClock.elapsedRealtimeNanos());
+    } else {
+      onFrameSkipped();
+    }
+    delegate.processByteBuffer(data, frameMetadata, graphicOverlay);
+  }
+
+  @Override
+  public void processFrameBuffer(
+      FrameBuffer frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
+      throws MlKitException {
+    if (queuedFrames.tryAcquire()) {
+      enqueue(frame.retain(), frameMetadata.getRotation(), SystemClock.elapsedRealtimeNanos());
+    } else {
+      onFrameSkipped();
+    }
+    delegate.processFrameBuffer(frame, frameMetadata, graphicOverlay);
+  }
+
+  @Override
+  @ExperimentalGetImage
+  public void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay)
+      throws MlKitException {
+    recordImage(
+        image.getImage(),
+        image.getImageInfo().getRotationDegrees(),
+        image.getImageInfo().getTimestamp());
+    delegate.processImageProxy(image, graphicOverlay);
+  }
+
+  @Override
+  public void processMediaImage(
+      Image image, int rotationDegrees, GraphicOverlay graphicOverlay, Runnable onImageDone)
+      throws MlKitException {
+    recordImage(image, rotationDegrees, image.getTimestamp());
+    delegate.processMediaImage(image, rotationDegrees, graphicOverlay, onImageDone);
+  }
+
+  /**
+   * Stops the underlying processor and finishes writing the capture file. Frames still queued are
+   * written first.
+   */
+  @Override
+  public void stop() {
+    delegate.stop();
+    writerExecutor.shutdown();
+    try {
+      if (!writerExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        Log.w(TAG, "Timed out writing queued frames.");
+        writerExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      writerExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      onWriteError(e);
+    }
+    Log.d(
+        TAG,
+        "Recorded " + writer.getFrameCount() + " frames, skipped " + getSkippedFrameCount());
+  }
+
+  /** Returns the number of frames skipped because the writer fell behind or failed. */
+  public synchronized int getSkippedFrameCount() {
+    return skippedFrameCount;
+  }
+
+  /** Returns the first error writing the capture file, or null if there was none. */
+  @Nullable
+  public synchronized IOException getWriteError() {
+    return writeError;
+  }
+
+  private void recordImage(@Nullable Image image, int rotationDegrees, long timestampNs) {
+    if (image == null || !queuedFrames.tryAcquire()) {
+      onFrameSkipped();
+      return;
+    }
+    FrameBuffer copy =
+        BitmapUtils.yuv420ThreePlanesToNV21(
+            image.getPlanes(), image.getWidth(), image.getHeight(), copyPool);
+    enqueue(copy, rotationDegrees, timestampNs);
+  }
+
+  /** Writes {@code frame} in the background and releases it. Takes a queue permit. */
+  private void enqueue(FrameBuffer frame, int rotationDegrees, long timestampNs) {
+    try {
+      writerExecutor.execute(
+          () -> {
+            try {
+              if (getWriteError() == null) {
+                writer.writeFrame(frame, rotationDegrees, timestampNs);
+              } else {
+                onFrameSkipped();
+              }
+            } catch (IOException e) {
+              onWriteError(e);
+              onFrameSkipped();
+            } finally {
+              frame.release();
+              queuedFrames.release();
+            }
+          });
+    } catch (RuntimeException e) {
+      // The processor was stopped.
+      frame.release();
+      queuedFrames.release();
+      onFrameSkipped();
+    }
+  }
+
+  private synchronized void onFrameSkipped() {
+    skippedFrameCount++;
+  }
+
+  private synchronized void onWriteError(IOException e) {
+    if (writeError == null) {
+      Log.e(TAG, "Failed to write capture file.", e);
+      writeError = e;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+/** Receives per-frame statistics of a live preview processor. */
+public interface FrameStatsListener {
+
+  /**
+   * Called when the results of a frame are delivered, with the time from receiving the frame until
+   * then.
+   */
+  void onFrameProcessed(long frameLatencyMs);
+
+  /** Called when a frame is dropped without detection, e.g. because the detector was busy. */
+  void onFrameDropped();
+}
@@ -27,6 +27,7 @@ import android.util.AttributeSet;
 import android.view.View;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
+import com.google.mlkit.vision.demo.frame.SpanRecorder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,8 +51,17 @@ import java.util.List;
  * </ol>
  */
 public class GraphicOverlay extends View {
+  // Enough for a few screen sized ARGB_8888 preview bitmaps.
+  private static final long BITMAP_POOL_SIZE_BYTES = 24L * 1024 * 1024;
+
   private final Object lock = new Object();
   private final List<Graphic> graphics = new ArrayList<>();
+  // Graphics that were replaced after being drawn. The last drawing may still reference their
+  // bitmaps, so they are released only once the next drawing is done, see onDraw().
+  private final List<Graphic> retiredGraphics = new ArrayList<>();
+  // Whether the current graphics were drawn since they were set.
+  private boolean graphicsDrawn;
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE_BYTES);
   // Matrix for transforming from image coordinates to overlay view coordinates.
   private final Matrix transformationMatrix = new Matrix();
 
@@ -96,6 +106,13 @@ public class GraphicOverlay extends View {
      */
     public abstract void draw(Canvas canvas);
 
+    /**
+     * Called once the overlay has dropped this graphic, e.g. on {@link GraphicOverlay#clear()}, and
+     * no drawing refers to it anymore. Subclasses can give resources such as bitmaps back to the
+     * overlay here.
+     */
+    protected void release() {}
+
     protected void drawRect(
         Canvas canvas, float left, float top, float right, float bottom, Paint paint) {
       canvas.drawRect(left, top, right, bottom, paint);
@@ -219,7 +236,7 @@ public class GraphicOverlay extends View {
   /** Removes all graphics from the overlay. */
   public void clear() {
     synchronized (lock) {
-      graphics.clear();
+      retireGraphics();
     }
     postInvalidate();
   }
@@ -231,14 +248,66 @@ public class GraphicOverlay extends View {
     }
   }
 
+  /**
+   * Replaces all graphics of the overlay with those of {@code frame} in one step and redraws the
+   * overlay.
+   */
+  public void publish(OverlayFrame frame) {
+    synchronized (lock) {
+      retireGraphics();
+      graphics.addAll(frame.getGraphics());
+    }
+    postInvalidate();
+  }
+
   /** Removes a graphic from the overlay. */
   public void remove(Graphic graphic) {
     synchronized (lock) {
-      graphics.remove(graphic);
+      if (graphics.remove(graphic)) {
+        retire(graphic);
+      }
     }
     postInvalidate();
   }
 
+  /** Drops all current graphics, see {@link #retire(Graphic)}. Must hold the lock. */
+  private void retireGraphics() {
+    for (int i = 0; i < graphics.size(); i++) {
+      retire(graphics.get(i));
+    }
+    graphics.clear();
+    graphicsDrawn = false;
+  }
+
+  /**
+   * Releases a dropped graphic, or if it was drawn, keeps it until the next drawing no longer
+   * refers to it. Graphics that were replaced before they were ever drawn are released right away,
+   * so at most one drawn set of graphics waits here. Must hold the lock.
+   */
+  private void retire(Graphic graphic) {
+    if (graphicsDrawn) {
+      retiredGraphics.add(graphic);
+    } else {
+      graphic.release();
+    }
+  }
+
+  /** Releases the graphics kept by {@link #retire(Graphic)}. Must hold the lock. */
+  private void releaseRetiredGraphics() {
+    for (int i = 0; i < retiredGraphics.size(); i++) {
+      retiredGraphics.get(i).release();
+    }
+    retiredGraphics.clear();
+  }
+
+  /**
+   * Returns the pool that bitmaps drawn by this overlay's graphics are taken from and given back
+   * to. The pool is emptied when the overlay is detached from its window.
+   */
+  public BitmapPool getBitmapPool() {
+    return bitmapPool;
+  }
+
   /**
    * Sets the source information of the image being processed by detectors, including size and
    * whether it is flipped, which informs how to transform image coordinates later.
@@ -297,17 +366,37 @@ public class GraphicOverlay extends View {
     needUpdateTransformation = false;
   }
 
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    synchronized (lock) {
+      // Nothing is drawn anymore, so nothing refers to the graphics.
+      graphicsDrawn = false;
+      retireGraphics();
+      releaseRetiredGraphics();
+    }
+    bitmapPool.clear();
+  }
+
   /** Draws the overlay with its associated graphic objects. */
   @Override
   protected void onDraw(Canvas canvas) {
     super.onDraw(canvas);
 
-    synchronized (lock) {
-      updateTransformationIfNeeded();
-
-      for (Graphic graphic : graphics) {
-        graphic.draw(canvas);
+    long drawStartNs = PipelineTracer.beginSection(PipelineTracer.OVERLAY_DRAW);
+    try {
+      synchronized (lock) {
+        updateTransformationIfNeeded();
+
+        for (Graphic graphic : graphics) {
+          graphic.draw(canvas);
+        }
+        graphicsDrawn = true;
+        // This drawing replaces the last one, the only one the retired graphics were part of.
+        releaseRetiredGraphics();
       }
+    } finally {
+      PipelineTracer.endSection(PipelineTracer.OVERLAY_DRAW, drawStartNs, SpanRecorder.NO_FRAME);
     }
   }
 }
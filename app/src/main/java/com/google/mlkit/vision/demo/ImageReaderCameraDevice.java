@@ -0,0 +1,317 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import android.view.WindowManager;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.android.gms.common.images.Size;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Camera2Device} that streams YUV_420_888 images from a Camera2 camera into an {@link
+ * ImageReader}. The camera only renders into the reader, so unlike {@link CameraSource} it needs no
+ * dummy preview surface.
+ */
+public class ImageReaderCameraDevice implements Camera2Device {
+
+  private static final String TAG = "MIDemoApp:Camera2";
+
+  // One image in the processor, one the camera writes into, and one that acquireLatestImage() uses
+  // to skip over older images.
+  private static final int MAX_IMAGES = 3;
+  private static final long OPEN_TIMEOUT_MS = 2500;
+
+  private final Context context;
+  private final CameraManager cameraManager;
+
+  @GuardedBy("this")
+  @Nullable
+  private HandlerThread cameraThread;
+
+  @GuardedBy("this")
+  @Nullable
+  private CameraDevice cameraDevice;
+
+  @GuardedBy("this")
+  @Nullable
+  private CameraCaptureSession captureSession;
+
+  @GuardedBy("this")
+  @Nullable
+  private ImageReader imageReader;
+
+  private volatile int rotationDegrees;
+
+  public ImageReaderCameraDevice(Context context) {
+    this.context = context.getApplicationContext();
+    cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+  }
+
+  @Override
+  @SuppressWarnings("MissingPermission") // Callers hold the camera permission, see Camera2Source.
+  public synchronized Size open(
+      int facing, int requestedWidth, int requestedHeight, Listener listener) throws IOException {
+    if (cameraDevice != null) {
+      throw new IllegalStateException("Camera is already open");
+    }
+    try {
+      String cameraId = findCameraId(facing);
+      CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+      Size size = selectSize(characteristics, requestedWidth, requestedHeight);
+      rotationDegrees = computeRotationDegrees(characteristics);
+
+      cameraThread = new HandlerThread("Camera2Device");
+      cameraThread.start();
+      Handler handler = new Handler(cameraThread.getLooper());
+
+      imageReader =
+          ImageReader.newInstance(
+              size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+      imageReader.setOnImageAvailableListener(reader -> listener.onImageAvailable(), handler);
+      Surface surface = imageReader.getSurface();
+
+      cameraDevice = openCamera(cameraId, listener, handler);
+      captureSession = createCaptureSession(cameraDevice, surface, handler);
+
+      CaptureRequest.Builder request =
+          cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      request.addTarget(surface);
+      request.set(
+          CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+      captureSession.setRepeatingRequest(request.build(), /* listener= */ null, handler);
+      Log.d(TAG, "Streaming " + size + " from camera " + cameraId);
+      return size;
+    } catch (CameraAccessException | IOException | RuntimeException e) {
+      close();
+      throw e instanceof IOException
+          ? (IOException) e
+          : new IOException("Failed to open camera: " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public int getRotationDegrees() {
+    return rotationDegrees;
+  }
+
+  @Override
+  @Nullable
+  public synchronized Image acquireLatestImage() {
+    return imageReader != null ? imageReader.acquireLatestImage() : null;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (captureSession != null) {
+      captureSession.close();
+      captureSession = null;
+    }
+    if (cameraDevice != null) {
+      cameraDevice.close();
+      cameraDevice = null;
+    }
+    if (imageReader != null) {
+      imageReader.close();
+      imageReader = null;
+    }
+    if (cameraThread != null) {
+      cameraThread.quitSafely();
+      cameraThread = null;
+    }
+  }
+
+  private String findCameraId(int facing) throws CameraAccessException, IOException {
+    int lensFacing =
+        facing == CameraSource.CAMERA_FACING_FRONT
+            ? CameraCharacteristics.LENS_FACING_FRONT
+            : CameraCharacteristics.LENS_FACING_BACK;
+    for (String cameraId : cameraManager.getCameraIdList()) {
+      Integer cameraFacing =
+          cameraManager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.LENS_FACING);
+      if (cameraFacing != null && cameraFacing == lensFacing) {
+        return cameraId;
+      }
+    }
+    throw new IOException("Could not find requested camera.");
+  }
+
+  /** Selects the supported YUV_420_888 size that is closest to the requested size. */
+  private static Size selectSize(
+      CameraCharacteristics characteristics, int requestedWidth, int requestedHeight)
+      throws IOException {
+    StreamConfigurationMap map =
+        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    android.util.Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+    if (sizes == null || sizes.length == 0) {
+      throw new IOException("Camera does not stream YUV_420_888 images.");
+    }
+    android.util.Size selectedSize = null;
+    int minDiff = Integer.MAX_VALUE;
+    for (android.util.Size size : sizes) {
+      int diff =
+          Math.abs(size.getWidth() - requestedWidth) + Math.abs(size.getHeight() - requestedHeight);
+      if (diff < minDiff) {
+        selectedSize = size;
+        minDiff = diff;
+      }
+    }
+    return new Size(selectedSize.getWidth(), selectedSize.getHeight());
+  }
+
+  /** Calculates the rotation of the camera images, like {@link CameraSource} does for Camera1. */
+  private int computeRotationDegrees(CameraCharacteristics characteristics) {
+    WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+    int degrees = 0;
+    int rotation = windowManager.getDefaultDisplay().getRotation();
+    switch (rotation) {
+      case Surface.ROTATION_0:
+        degrees = 0;
+        break;
+      case Surface.ROTATION_90:
+        degrees = 90;
+        break;
+      case Surface.ROTATION_180:
+        degrees = 180;
+        break;
+      case Surface.ROTATION_270:
+        degrees = 270;
+        break;
+      default:
+        Log.e(TAG, "Bad rotation value: " + rotation);
+    }
+
+    Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    int orientation = sensorOrientation != null ? sensorOrientation : 0;
+    Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+    if (lensFacing != null && lensFacing == CameraCharacteristics.LENS_FACING_FRONT) {
+      return (orientation + degrees) % 360;
+    }
+    return (orientation - degrees + 360) % 360;
+  }
+
+  private CameraDevice openCamera(String cameraId, Listener listener, Handler handler)
+      throws CameraAccessException, IOException {
+    CountDownLatch opened = new CountDownLatch(1);
+    AtomicReference<CameraDevice> openedDevice = new AtomicReference<>();
+    // Set if open() gives up waiting, so a camera that opens later is closed right away.
+    AtomicBoolean abandoned = new AtomicBoolean();
+    cameraManager.openCamera(
+        cameraId,
+        new CameraDevice.StateCallback() {
+          @Override
+          public void onOpened(CameraDevice device) {
+            openedDevice.set(device);
+            if (abandoned.get()) {
+              device.close();
+            }
+            opened.countDown();
+          }
+
+          @Override
+          public void onDisconnected(CameraDevice device) {
+            onFailure(device, new IOException("Camera " + cameraId + " was disconnected."));
+          }
+
+          @Override
+          public void onError(CameraDevice device, int error) {
+            onFailure(device, new IOException("Camera " + cameraId + " failed: " + error));
+          }
+
+          private void onFailure(CameraDevice device, IOException e) {
+            device.close();
+            if (opened.getCount() == 0) {
+              listener.onError(e);
+            }
+            opened.countDown();
+          }
+        },
+        handler);
+    boolean done = await(opened);
+    CameraDevice device = openedDevice.get();
+    if (!done) {
+      abandoned.set(true);
+      if (device != null) {
+        device.close();
+      }
+      throw new IOException("Timed out opening camera " + cameraId);
+    }
+    if (device == null) {
+      throw new IOException("Failed to open camera " + cameraId);
+    }
+    return device;
+  }
+
+  private static CameraCaptureSession createCaptureSession(
+      CameraDevice device, Surface surface, Handler handler)
+      throws CameraAccessException, IOException {
+    CountDownLatch configured = new CountDownLatch(1);
+    AtomicReference<CameraCaptureSession> configuredSession = new AtomicReference<>();
+    device.createCaptureSession(
+        Collections.singletonList(surface),
+        new CameraCaptureSession.StateCallback() {
+          @Override
+          public void onConfigured(CameraCaptureSession session) {
+            configuredSession.set(session);
+            configured.countDown();
+          }
+
+          @Override
+          public void onConfigureFailed(CameraCaptureSession session) {
+            configured.countDown();
+          }
+        },
+        handler);
+    // Closing the camera also closes a session that is configured after the timeout.
+    CameraCaptureSession session = await(configured) ? configuredSession.get() : null;
+    if (session == null) {
+      throw new IOException("Failed to configure camera capture session.");
+    }
+    return session;
+  }
+
+  /** Waits for a camera callback. Returns false if it did not arrive in time. */
+  private static boolean await(CountDownLatch latch) throws IOException {
+    try {
+      return latch.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while opening camera.", e);
+    }
+  }
+}
@@ -20,6 +20,9 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.frame.LatencyHistogram;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /** Graphic instance for rendering inference info (latency, FPS, resolution) in an overlay view. */
 public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
@@ -34,6 +37,8 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
 
   // Only valid when a stream of input images is being processed. Null for single image mode.
   @Nullable private final Integer framesPerSecond;
+  // Frame latency percentiles over a longer window, if available.
+  @Nullable private final LatencyHistogram.Snapshot frameLatencyPercentiles;
   private boolean showLatencyInfo = true;
 
   public InferenceInfoGraphic(
@@ -41,11 +46,21 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
       long frameLatency,
       long detectorLatency,
       @Nullable Integer framesPerSecond) {
+    this(overlay, frameLatency, detectorLatency, framesPerSecond, null);
+  }
+
+  public InferenceInfoGraphic(
+      GraphicOverlay overlay,
+      long frameLatency,
+      long detectorLatency,
+      @Nullable Integer framesPerSecond,
+      @Nullable LatencyHistogram.Snapshot frameLatencyPercentiles) {
     super(overlay);
     this.overlay = overlay;
     this.frameLatency = frameLatency;
     this.detectorLatency = detectorLatency;
     this.framesPerSecond = framesPerSecond;
+    this.frameLatencyPercentiles = frameLatencyPercentiles;
     textPaint = new Paint();
     textPaint.setColor(TEXT_COLOR);
     textPaint.setTextSize(TEXT_SIZE);
@@ -85,5 +100,22 @@ public class InferenceInfoGraphic extends GraphicOverlay.Graphic {
     }
     canvas.drawText(
         "Detector latency: " + detectorLatency + " ms", x, y + TEXT_SIZE * 2, textPaint);
+    if (frameLatencyPercentiles != null && frameLatencyPercentiles.getCount() > 0) {
+      canvas.drawText(
+          String.format(
+              Locale.US,
+              "p50/p90/p99/p99.9: %d/%d/%d/%d ms",
+              toMillis(frameLatencyPercentiles.getValueAtPercentile(50)),
+              toMillis(frameLatencyPercentiles.getValueAtPercentile(90)),
+              toMillis(frameLatencyPercentiles.getValueAtPercentile(99)),
+              toMillis(frameLatencyPercentiles.getValueAtPercentile(99.9))),
+          x,
+          y + TEXT_SIZE * 3,
+          textPaint);
+    }
+  }
+
+  private static long toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
   }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import com.google.mlkit.vision.demo.GraphicOverlay.Graphic;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The graphics of one update of a {@link GraphicOverlay}. Frames are built on any thread and then
+ * replace everything the overlay shows at once, see {@link GraphicOverlay#publish(OverlayFrame)},
+ * so the view never draws a half built update.
+ */
+public final class OverlayFrame {
+
+  private final List<Graphic> graphics;
+
+  private OverlayFrame(List<Graphic> graphics) {
+    this.graphics = Collections.unmodifiableList(graphics);
+  }
+
+  List<Graphic> getGraphics() {
+    return graphics;
+  }
+
+  /** Collects the graphics of a frame. Must only be used by one thread at a time. */
+  public static final class Builder {
+    private final GraphicOverlay overlay;
+    private final List<Graphic> graphics = new ArrayList<>();
+
+    public Builder(GraphicOverlay overlay) {
+      this.overlay = overlay;
+    }
+
+    /** Returns the overlay the frame is built for, which graphics are created with. */
+    public GraphicOverlay getOverlay() {
+      return overlay;
+    }
+
+    public Builder add(Graphic graphic) {
+      graphics.add(graphic);
+      return this;
+    }
+
+    public OverlayFrame build() {
+      return new OverlayFrame(new ArrayList<>(graphics));
+    }
+  }
+}
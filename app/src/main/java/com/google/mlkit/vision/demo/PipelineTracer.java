@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import androidx.annotation.WorkerThread;
+import com.google.mlkit.vision.demo.frame.SpanRecorder;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Traces the stages of the frame pipeline, both as {@link Trace} sections for systrace and
+ * Perfetto and into an in-process {@link SpanRecorder}, so that a slow session can be inspected
+ * without attaching a profiler, see {@link #writeChromeTrace(File)}.
+ *
+ * <p>Spans of the same frame share a frame id; the processors use the frame's start timestamp.
+ * Timestamps come from {@link SystemClock#elapsedRealtimeNanos()}.
+ */
+public final class PipelineTracer {
+
+  public static final String CONVERT_BITMAP = "convertPreviewBitmap";
+  public static final String CREATE_INPUT_IMAGE = "createInputImage";
+  public static final String DETECT = "detect";
+  public static final String RESULT_QUEUE = "resultQueue";
+  public static final String ON_SUCCESS = "onSuccess";
+  public static final String MAIN_THREAD_QUEUE = "mainThreadQueue";
+  public static final String PUBLISH = "publishOverlayFrame";
+  public static final String OVERLAY_DRAW = "GraphicOverlay.onDraw";
+
+  // About 30 seconds of a 30 fps pipeline with a handful of spans per frame.
+  private static final int CAPACITY = 8192;
+
+  private static final SpanRecorder recorder = new SpanRecorder(CAPACITY);
+
+  private PipelineTracer() {}
+
+  /**
+   * Starts a section on the calling thread and returns its start time. Must be ended on the same
+   * thread with {@link #endSection}, innermost section first.
+   */
+  public static long beginSection(String name) {
+    Trace.beginSection(name);
+    return SystemClock.elapsedRealtimeNanos();
+  }
+
+  /** Ends the innermost section of the calling thread, which was started at {@code beginNanos}. */
+  public static void endSection(String name, long beginNanos, long frameId) {
+    recorder.record(name, beginNanos, SystemClock.elapsedRealtimeNanos(), frameId);
+    Trace.endSection();
+  }
+
+  /** Starts a span that may end on another thread, and returns its start time. */
+  public static long beginAsyncSection(String name, long frameId) {
+    if (VERSION.SDK_INT >= VERSION_CODES.Q) {
+      Trace.beginAsyncSection(name, (int) frameId);
+    }
+    return SystemClock.elapsedRealtimeNanos();
+  }
+
+  /** Ends a span started with {@link #beginAsyncSection}. */
+  public static void endAsyncSection(String name, long beginNanos, long frameId) {
+    recorder.record(name, beginNanos, SystemClock.elapsedRealtimeNanos(), frameId);
+    if (VERSION.SDK_INT >= VERSION_CODES.Q) {
+      Trace.endAsyncSection(name, (int) frameId);
+    }
+  }
+
+  /** Records a span that is only known once it is over, e.g. time spent waiting in a queue. */
+  public static void recordSpan(String name, long beginNanos, long endNanos, long frameId) {
+    recorder.record(name, beginNanos, endNanos, frameId);
+  }
+
+  /**
+   * Writes the most recent spans to {@code file} as Chrome trace JSON, which Perfetto and {@code
+   * chrome://tracing} can open. Returns the number of spans written.
+   */
+  @WorkerThread
+  public static int writeChromeTrace(File file) throws IOException {
+    try (Writer writer =
+        new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+      return recorder.writeChromeTrace(writer, Process.myPid());
+    }
+  }
+}
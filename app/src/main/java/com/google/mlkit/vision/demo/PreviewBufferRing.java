@@ -0,0 +1,288 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo;
+
+import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import java.util.Locale;
+
+/**
+ * A ring of preallocated Camera1 preview buffers, leased to the frame processors as {@link
+ * FrameBuffer}s. Buffers go back to the camera once their last reference is released.
+ *
+ * <p>Every buffer carries its slot index in two bytes past the end of the frame data, which the
+ * camera never writes, so the buffer delivered by the camera is found without hashing. The tag is
+ * verified by identity and a linear scan over the slots is the fallback.
+ *
+ * <p>The ring starts with {@code depth} buffers. While consumers hold on to so many frames that the
+ * camera is running out of free buffers, more are added, up to {@code maxDepth}. Both can be
+ * changed at runtime; surplus buffers are freed as they come back.
+ */
+public final class PreviewBufferRing {
+
+  /** The largest supported number of buffers. */
+  public static final int MAX_SLOTS = 32;
+
+  // The camera needs this many free buffers to keep delivering frames, see CameraSource.
+  private static final int MIN_FREE_CAMERA_BUFFERS = 2;
+  private static final int SLOT_TAG_BYTES = 2;
+
+  /** Frame counts of a preview session. */
+  public static final class Stats {
+    private final long framesReceived;
+    private final long framesDroppedBusy;
+    private final long framesDroppedNoBuffer;
+    private final int bufferCount;
+
+    Stats(long framesReceived, long framesDroppedBusy, long framesDroppedNoBuffer, int bufferCount) {
+      this.framesReceived = framesReceived;
+      this.framesDroppedBusy = framesDroppedBusy;
+      this.framesDroppedNoBuffer = framesDroppedNoBuffer;
+      this.bufferCount = bufferCount;
+    }
+
+    /** Returns the number of frames the camera delivered. */
+    public long getFramesReceived() {
+      return framesReceived;
+    }
+
+    /** Returns the number of delivered frames replaced by a newer one before being processed. */
+    public long getFramesDroppedBusy() {
+      return framesDroppedBusy;
+    }
+
+    /**
+     * Returns the estimated number of frames the camera skipped because all buffers were leased,
+     * based on how long it had no free buffer and the preview frame rate.
+     */
+    public long getFramesDroppedNoBuffer() {
+      return framesDroppedNoBuffer;
+    }
+
+    /** Returns the number of buffers in the ring. */
+    public int getBufferCount() {
+      return bufferCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "received=%d, droppedBusy=%d, droppedNoBuffer=%d, buffers=%d",
+          framesReceived,
+          framesDroppedBusy,
+          framesDroppedNoBuffer,
+          bufferCount);
+    }
+  }
+
+  private final Object lock = new Object();
+  private final Camera camera;
+  private final int width;
+  private final int height;
+  private final int bufferSize;
+  @GuardedBy("lock")
+  private long frameIntervalNs;
+
+  // Slots of freed buffers are null and reused by the next added buffer.
+  @GuardedBy("lock")
+  private final FrameBuffer[] slots = new FrameBuffer[MAX_SLOTS];
+
+  @GuardedBy("lock")
+  private int bufferCount;
+
+  @GuardedBy("lock")
+  private int depth;
+
+  @GuardedBy("lock")
+  private int maxDepth;
+
+  // The number of buffers queued in the camera, waiting to be filled.
+  @GuardedBy("lock")
+  private int buffersInCamera;
+
+  // When the camera ran out of free buffers, or 0 if it has some.
+  @GuardedBy("lock")
+  private long starvedSinceNs;
+
+  @GuardedBy("lock")
+  private boolean closed;
+
+  @GuardedBy("lock")
+  private long framesReceived;
+
+  @GuardedBy("lock")
+  private long framesDroppedBusy;
+
+  @GuardedBy("lock")
+  private long framesDroppedNoBuffer;
+
+  /**
+   * Allocates {@code depth} buffers for {@code width} x {@code height} NV21 frames and queues them
+   * in {@code camera}.
+   */
+  @SuppressLint("InlinedApi")
+  PreviewBufferRing(Camera camera, int width, int height, float fps, int depth, int maxDepth) {
+    this.camera = camera;
+    this.width = width;
+    this.height = height;
+    long sizeInBits = (long) width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+    this.bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1 + SLOT_TAG_BYTES;
+    setFrameRate(fps);
+    setDepth(depth, maxDepth);
+  }
+
+  /** Sets the frame rate of the camera, which is used to estimate frames lost to starvation. */
+  public void setFrameRate(float fps) {
+    if (fps <= 0) {
+      throw new IllegalArgumentException("Invalid frame rate: " + fps);
+    }
+    synchronized (lock) {
+      frameIntervalNs = (long) (1_000_000_000L / fps);
+    }
+  }
+
+  /**
+   * Sets the number of preallocated buffers and the number the ring may grow to. Missing buffers
+   * are added right away, surplus ones are freed when they come back.
+   */
+  public void setDepth(int depth, int maxDepth) {
+    if (depth < 1 || maxDepth < depth || maxDepth > MAX_SLOTS) {
+      throw new IllegalArgumentException("Invalid preview buffer depth: " + depth + ", " + maxDepth);
+    }
+    synchronized (lock) {
+      this.depth = depth;
+      this.maxDepth = maxDepth;
+      while (!closed && bufferCount < depth) {
+        addBuffer();
+      }
+    }
+  }
+
+  /**
+   * Returns the buffer the camera delivered {@code data} in, or null if it is not part of this
+   * ring. The returned buffer is not leased yet.
+   */
+  @Nullable
+  FrameBuffer onPreviewFrame(byte[] data) {
+    synchronized (lock) {
+      framesReceived++;
+      int slot = findSlot(data);
+      if (slot < 0) {
+        return null;
+      }
+      buffersInCamera--;
+      if (buffersInCamera == 0) {
+        starvedSinceNs = System.nanoTime();
+      }
+      return slots[slot];
+    }
+  }
+
+  /** Records a delivered frame that was replaced by a newer one before it was processed. */
+  void onFrameDroppedBusy() {
+    synchronized (lock) {
+      framesDroppedBusy++;
+    }
+  }
+
+  /** Adds a buffer if the camera is running low on free ones and the ring may still grow. */
+  void ensureFreeBuffers() {
+    synchronized (lock) {
+      if (!closed && buffersInCamera < MIN_FREE_CAMERA_BUFFERS && bufferCount < maxDepth) {
+        addBuffer();
+      }
+    }
+  }
+
+  /** Stops queueing buffers in the camera. Buffers released afterwards are dropped. */
+  void close() {
+    synchronized (lock) {
+      closed = true;
+      for (int i = 0; i < slots.length; i++) {
+        slots[i] = null;
+      }
+      bufferCount = 0;
+      buffersInCamera = 0;
+    }
+  }
+
+  public Stats getStats() {
+    synchronized (lock) {
+      return new Stats(framesReceived, framesDroppedBusy, framesDroppedNoBuffer, bufferCount);
+    }
+  }
+
+  private void recycle(FrameBuffer buffer) {
+    synchronized (lock) {
+      int slot = findSlot(buffer.array());
+      if (closed || slot < 0) {
+        return;
+      }
+      if (bufferCount > maxDepth) {
+        slots[slot] = null;
+        bufferCount--;
+        return;
+      }
+      queueInCamera(buffer.array());
+    }
+  }
+
+  @GuardedBy("lock")
+  private void addBuffer() {
+    int slot = 0;
+    while (slots[slot] != null) {
+      slot++;
+    }
+    byte[] data = new byte[bufferSize];
+    data[bufferSize - 2] = (byte) (slot >> 8);
+    data[bufferSize - 1] = (byte) slot;
+    slots[slot] = new FrameBuffer(data, width, height, this::recycle);
+    bufferCount++;
+    queueInCamera(data);
+  }
+
+  @GuardedBy("lock")
+  private void queueInCamera(byte[] data) {
+    if (starvedSinceNs != 0) {
+      framesDroppedNoBuffer += (System.nanoTime() - starvedSinceNs) / frameIntervalNs;
+      starvedSinceNs = 0;
+    }
+    camera.addCallbackBuffer(data);
+    buffersInCamera++;
+  }
+
+  @GuardedBy("lock")
+  private int findSlot(byte[] data) {
+    if (data.length == bufferSize) {
+      int slot = ((data[bufferSize - 2] & 0xff) << 8) | (data[bufferSize - 1] & 0xff);
+      if (slot < MAX_SLOTS && slots[slot] != null && slots[slot].array() == data) {
+        return slot;
+      }
+    }
+    for (int i = 0; i < MAX_SLOTS; i++) {
+      if (slots[i] != null && slots[i].array() == data) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
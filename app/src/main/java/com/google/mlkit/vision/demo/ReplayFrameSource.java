@@ -0,0 +1,285 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.mlkit.vision.demo.frame.CaptureFileReader;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a capture file recorded by {@link FrameRecordingProcessor} to a {@link
+ * VisionImageProcessor}, in place of a live camera.
+ *
+ * <p>Every run sees exactly the same frames, so detector latency, dropped frames and overlay cost
+ * can be compared between builds. Frames are either fed at the cadence they were recorded with, so
+ * the processor drops frames like it would with the camera, or one at a time, each once the
+ * processor handed back the previous one, so that every frame is processed. Frames are copied from
+ * the memory-mapped file into pooled buffers, much like the camera fills its preview buffers.
+ */
+public class ReplayFrameSource {
+
+  private static final String TAG = "MIDemoApp:ReplaySource";
+
+  // How often a replay waiting for the processor checks whether it was stopped.
+  private static final long STOP_POLL_MS = 100;
+
+  private final File captureFile;
+  private final GraphicOverlay graphicOverlay;
+  private final FrameBufferPool bufferPool = new FrameBufferPool();
+
+  private final Object processorLock = new Object();
+  private volatile VisionImageProcessor frameProcessor;
+
+  private volatile boolean realTime = true;
+  private volatile boolean looping;
+  private volatile boolean active;
+
+  @Nullable private Thread replayThread;
+  @Nullable private CaptureFileReader reader;
+  private volatile int framesReplayed;
+  private volatile int framesProcessed;
+
+  public ReplayFrameSource(File captureFile, GraphicOverlay overlay) {
+    this.captureFile = captureFile;
+    this.graphicOverlay = overlay;
+    graphicOverlay.clear();
+  }
+
+  // ==============================================================================================
+  // Public
+  // ==============================================================================================
+
+  /** Stops the replay and releases the resources of the underlying detector. */
+  public void release() {
+    synchronized (processorLock) {
+      stop();
+      graphicOverlay.clear();
+
+      if (frameProcessor != null) {
+        frameProcessor.stop();
+      }
+    }
+  }
+
+  /**
+   * Opens the capture file and starts feeding its frames to the underlying detector from the
+   * beginning.
+   *
+   * @throws IOException if the file could not be read or has no frames
+   */
+  public synchronized ReplayFrameSource start() throws IOException {
+    if (replayThread != null) {
+      return this;
+    }
+    CaptureFileReader fileReader = CaptureFileReader.open(captureFile);
+    if (fileReader.getFrameCount() == 0) {
+      fileReader.close();
+      throw new IOException("No frames in " + captureFile);
+    }
+    reader = fileReader;
+
+    int width = fileReader.getWidth(0);
+    int height = fileReader.getHeight(0);
+    int rotation = fileReader.getRotation(0);
+    // The capture file does not know the camera facing, so frames are shown as recorded.
+    if (rotation == 90 || rotation == 270) {
+      graphicOverlay.setImageSourceInfo(height, width, /* isFlipped= */ false);
+    } else {
+      graphicOverlay.setImageSourceInfo(width, height, /* isFlipped= */ false);
+    }
+
+    framesReplayed = 0;
+    framesProcessed = 0;
+    active = true;
+    boolean replayRealTime = realTime;
+    replayThread = new Thread(() -> replay(fileReader, replayRealTime), "ReplayFrameSource");
+    replayThread.start();
+    return this;
+  }
+
+  /** Stops feeding frames. The replay starts over on the next {@link #start()}. */
+  public synchronized void stop() {
+    active = false;
+    if (replayThread != null) {
+      LockSupport.unpark(replayThread);
+      try {
+        replayThread.join();
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Replay thread interrupted on stop.");
+        Thread.currentThread().interrupt();
+      }
+      replayThread = null;
+    }
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close capture file.", e);
+      }
+      reader = null;
+    }
+    bufferPool.clear();
+  }
+
+  /**
+   * Sets whether frames are fed at their recorded cadence, which is the default, or one at a time as
+   * fast as the processor handles them. Takes effect on the next {@link #start()}.
+   */
+  public void setRealTime(boolean realTime) {
+    this.realTime = realTime;
+  }
+
+  /** Sets whether the replay starts over once the last frame was fed. */
+  public void setLooping(boolean looping) {
+    this.looping = looping;
+  }
+
+  /** Returns the number of frames fed to the processor since the last {@link #start()}. */
+  public int getFramesReplayed() {
+    return framesReplayed;
+  }
+
+  /**
+   * Returns the number of frames the processor handed back since the last {@link #start()}. Only
+   * counted when not replaying in real time, see {@link #setRealTime}.
+   */
+  public int getFramesProcessed() {
+    return framesProcessed;
+  }
+
+  public void setMachineLearningFrameProcessor(VisionImageProcessor processor) {
+    synchronized (processorLock) {
+      graphicOverlay.clear();
+      if (frameProcessor != null) {
+        frameProcessor.stop();
+      }
+      frameProcessor = processor;
+    }
+  }
+
+  // ==============================================================================================
+  // Replay
+  // ==============================================================================================
+
+  private void replay(CaptureFileReader fileReader, boolean realTime) {
+    int frameCount = fileReader.getFrameCount();
+    // Without real time, each frame goes into a buffer of this replay that signals once the
+    // processor released it, which processFrameBuffer() does when it is done with the frame.
+    Semaphore frameDone = new Semaphore(0);
+    FrameBuffer replayBuffer = null;
+    long firstTimestampNs = fileReader.getTimestampNs(0);
+    long startNs = System.nanoTime();
+    FrameMetadata frameMetadata = null;
+    int index = 0;
+    while (active) {
+      if (index == frameCount) {
+        if (!looping) {
+          break;
+        }
+        index = 0;
+        startNs = System.nanoTime();
+      }
+      if (realTime) {
+        long delayNs =
+            (fileReader.getTimestampNs(index) - firstTimestampNs) - (System.nanoTime() - startNs);
+        if (delayNs > 0) {
+          // May return early, e.g. when stopped, so the loop checks again.
+          LockSupport.parkNanos(this, delayNs);
+          continue;
+        }
+      }
+
+      int width = fileReader.getWidth(index);
+      int height = fileReader.getHeight(index);
+      int rotation = fileReader.getRotation(index);
+      if (frameMetadata == null
+          || frameMetadata.getWidth() != width
+          || frameMetadata.getHeight() != height
+          || frameMetadata.getRotation() != rotation) {
+        frameMetadata =
+            new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRotation(rotation)
+                .build();
+      }
+
+      FrameBuffer frame;
+      if (realTime) {
+        frame = fileReader.readFrame(index, bufferPool);
+      } else {
+        if (replayBuffer == null
+            || replayBuffer.getWidth() != width
+            || replayBuffer.getHeight() != height) {
+          replayBuffer =
+              new FrameBuffer(
+                  new byte[FrameBufferPool.getNv21Size(width, height)],
+                  width,
+                  height,
+                  buffer -> frameDone.release());
+        }
+        frame = replayBuffer.lease();
+        fileReader.readFrame(index, frame);
+      }
+      try {
+        VisionImageProcessor processor = frameProcessor;
+        if (processor != null) {
+          processor.processFrameBuffer(frame, frameMetadata, graphicOverlay);
+        }
+      } catch (Exception e) {
+        Log.e(TAG, "Exception thrown from receiver.", e);
+      } finally {
+        frame.release();
+      }
+      index++;
+      framesReplayed++;
+      if (!realTime) {
+        if (!awaitFrameDone(frameDone)) {
+          break;
+        }
+        framesProcessed++;
+      }
+    }
+    if (realTime) {
+      Log.d(TAG, "Replayed " + framesReplayed + " of " + frameCount + " frames.");
+    } else {
+      Log.d(TAG, "Processed " + framesProcessed + " of " + frameCount + " frames.");
+    }
+  }
+
+  /** Waits until the processor released the frame fed last. Returns false if stopped first. */
+  private boolean awaitFrameDone(Semaphore frameDone) {
+    try {
+      while (active) {
+        if (frameDone.tryAcquire(STOP_POLL_MS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+}
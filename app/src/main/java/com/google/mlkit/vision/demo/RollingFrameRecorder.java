@@ -0,0 +1,396 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import android.media.Image;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.mlkit.vision.demo.frame.CaptureFileWriter;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameDownsampler;
+import com.google.mlkit.vision.demo.frame.FrameMailbox;
+import com.google.mlkit.vision.demo.frame.FrameRingFile;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last few seconds of camera frames in a memory-mapped ring file, so that a session can
+ * be replayed after something went wrong.
+ *
+ * <p>Camera sources offer every frame, but only as many as the frame rate budget allows are kept.
+ * For a {@link FrameBuffer} the capture thread only takes a reference; the frame is downsampled,
+ * and optionally reduced to its luma plane, on a background thread that writes it straight into
+ * the mapped file. If the writer is still busy, the frame waiting for it is replaced by the newer
+ * one, so recording never holds up the camera by more than a reference count.
+ *
+ * <p>Camera images belong to a small queue of the camera and must not be held for as long as the
+ * writer may take. The capture thread only hands them to a copy thread, which downsamples them into
+ * a single staging buffer and lets go of the image right away; the caller keeps the image open
+ * until then. Images are dropped while the writer still has the previous image in the buffer.
+ *
+ * <p>{@link #dump(File)} exports the frames in the ring to a capture file that {@link
+ * ReplayFrameSource} can play back.
+ */
+public class RollingFrameRecorder implements Closeable {
+
+  private static final String TAG = "RollingFrameRecorder";
+  private static final long STOP_TIMEOUT_MS = 2000;
+
+  private final FrameRingFile ring;
+  private final int maxWidth;
+  private final int maxHeight;
+  private final boolean lumaOnly;
+  private final long minFrameIntervalNs;
+  private final FrameMailbox<PendingFrame> pendingFrame = new FrameMailbox<>();
+  private final Thread writerThread;
+  private final ExecutorService copyExecutor = Executors.newSingleThreadExecutor();
+  private final AtomicLong lastFrameNs = new AtomicLong();
+  private final AtomicInteger recordedFrameCount = new AtomicInteger();
+  private final AtomicInteger droppedFrameCount = new AtomicInteger();
+  private final StagedImage stagedImage;
+
+  private RollingFrameRecorder(Builder builder, FrameRingFile ring, int slotDataSize) {
+    this.ring = ring;
+    this.maxWidth = builder.maxWidth;
+    this.maxHeight = builder.maxHeight;
+    this.lumaOnly = builder.lumaOnly;
+    this.minFrameIntervalNs = (long) (1_000_000_000L / builder.framesPerSecond);
+    this.stagedImage = new StagedImage(slotDataSize);
+    writerThread = new Thread(this::runWriter, TAG);
+    writerThread.start();
+  }
+
+  /**
+   * Offers a frame for recording. Returns true if the frame was taken, in which case the recorder
+   * holds its own reference to it until it is written.
+   */
+  public boolean offer(FrameBuffer frame, int rotationDegrees) {
+    long nowNs = SystemClock.elapsedRealtimeNanos();
+    if (!claimFrameSlot(nowNs)) {
+      return false;
+    }
+    post(new PendingFrame(frame.retain(), null, rotationDegrees, nowNs));
+    return true;
+  }
+
+  /**
+   * Offers a camera image for recording. The image must stay open until both the caller and the
+   * recorder are done with it, so the caller runs the returned callback instead of {@code
+   * onImageDone} once it no longer needs the image. If the image is taken, the recorder's copy
+   * thread downsamples it and then runs its share, which normally happens well before the detector
+   * is done. Images are dropped while the writer is still busy with the previous one.
+   */
+  public Runnable offer(@Nullable Image image, int rotationDegrees, Runnable onImageDone) {
+    long nowNs = SystemClock.elapsedRealtimeNanos();
+    if (image == null || !claimFrameSlot(nowNs)) {
+      return onImageDone;
+    }
+    if (!stagedImage.inUse.compareAndSet(false, true)) {
+      droppedFrameCount.incrementAndGet();
+      return onImageDone;
+    }
+    SharedRelease release = new SharedRelease(onImageDone);
+    try {
+      copyExecutor.execute(() -> stage(image, rotationDegrees, nowNs, release));
+    } catch (RejectedExecutionException e) {
+      // The recorder was closed.
+      stagedImage.inUse.set(false);
+      return onImageDone;
+    }
+    return release;
+  }
+
+  /** Downsamples {@code image} into the staging buffer and hands it to the writer. */
+  private void stage(Image image, int rotationDegrees, long timestampNs, Runnable release) {
+    try {
+      stagedImage.downsample(image, maxWidth, maxHeight, lumaOnly);
+    } catch (RuntimeException e) {
+      // E.g. the camera closed the image underneath us.
+      Log.w(TAG, "Failed to record image.", e);
+      stagedImage.inUse.set(false);
+      return;
+    } finally {
+      release.run();
+    }
+    post(new PendingFrame(null, stagedImage, rotationDegrees, timestampNs));
+  }
+
+  /**
+   * Exports the frames in the ring, oldest first, to a capture file and returns the number of
+   * frames exported. Recording pauses while the ring is exported.
+   */
+  @WorkerThread
+  public int dump(File captureFile) throws IOException {
+    try (CaptureFileWriter writer = new CaptureFileWriter(captureFile)) {
+      return ring.export(writer);
+    }
+  }
+
+  /**
+   * Exports the frames of a ring file left behind by an earlier run, e.g. one that crashed, to a
+   * capture file. Returns the number of frames exported.
+   */
+  @WorkerThread
+  public static int dump(File ringFile, File captureFile) throws IOException {
+    try (FrameRingFile ring = FrameRingFile.open(ringFile);
+        CaptureFileWriter writer = new CaptureFileWriter(captureFile)) {
+      return ring.export(writer);
+    }
+  }
+
+  /** Returns the number of frames written to the ring so far. */
+  public int getRecordedFrameCount() {
+    return recordedFrameCount.get();
+  }
+
+  /** Returns the number of frames dropped because the writer was still busy. */
+  public int getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  /** Stops recording and flushes the ring file. The frames recorded so far stay in the file. */
+  @Override
+  public void close() throws IOException {
+    // Images being copied are released by the copy thread, so let it finish first.
+    copyExecutor.shutdown();
+    try {
+      copyExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    PendingFrame unwritten = pendingFrame.close();
+    if (unwritten != null) {
+      unwritten.release();
+    }
+    try {
+      writerThread.join(STOP_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (writerThread.isAlive()) {
+      Log.w(TAG, "Timed out waiting for the writer thread.");
+      return;
+    }
+    ring.close();
+  }
+
+  /** Enforces the frame rate budget. Only one of several concurrent offers can win a slot. */
+  private boolean claimFrameSlot(long nowNs) {
+    long lastNs = lastFrameNs.get();
+    return (lastNs == 0 || nowNs - lastNs >= minFrameIntervalNs)
+        && lastFrameNs.compareAndSet(lastNs, nowNs);
+  }
+
+  private void post(PendingFrame frame) {
+    PendingFrame displaced = pendingFrame.post(frame);
+    if (displaced != null) {
+      droppedFrameCount.incrementAndGet();
+      displaced.release();
+    }
+  }
+
+  private void runWriter() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    while (true) {
+      PendingFrame frame = pendingFrame.take();
+      if (frame == null) {
+        return;
+      }
+      try {
+        write(frame);
+        recordedFrameCount.incrementAndGet();
+      } catch (RuntimeException e) {
+        // E.g. the camera closed the image underneath us. The slot is reused by the next frame.
+        Log.w(TAG, "Failed to record frame.", e);
+      } finally {
+        frame.release();
+      }
+    }
+  }
+
+  private void write(PendingFrame frame) {
+    if (frame.image != null) {
+      StagedImage image = frame.image;
+      ByteBuffer out =
+          ring.beginFrame(
+              frame.timestampNs,
+              image.width,
+              image.height,
+              frame.rotationDegrees,
+              lumaOnly ? FrameRingFile.FORMAT_LUMA : FrameRingFile.FORMAT_NV21,
+              image.length);
+      out.put(image.data, 0, image.length);
+      ring.commitFrame();
+      return;
+    }
+    int width = frame.buffer.getWidth();
+    int height = frame.buffer.getHeight();
+    int factor = FrameDownsampler.selectFactor(width, height, maxWidth, maxHeight);
+    int outputWidth = FrameDownsampler.getOutputSize(width, factor);
+    int outputHeight = FrameDownsampler.getOutputSize(height, factor);
+    ByteBuffer out =
+        ring.beginFrame(
+            frame.timestampNs,
+            outputWidth,
+            outputHeight,
+            frame.rotationDegrees,
+            lumaOnly ? FrameRingFile.FORMAT_LUMA : FrameRingFile.FORMAT_NV21,
+            FrameDownsampler.getOutputLength(outputWidth, outputHeight, lumaOnly));
+    FrameDownsampler.downsampleNv21(frame.buffer.array(), width, height, factor, lumaOnly, out);
+    ring.commitFrame();
+  }
+
+  /** A frame waiting for the writer, backed by either a frame buffer or a staged camera image. */
+  private static final class PendingFrame {
+    @Nullable final FrameBuffer buffer;
+    @Nullable final StagedImage image;
+    final int rotationDegrees;
+    final long timestampNs;
+
+    PendingFrame(
+        @Nullable FrameBuffer buffer,
+        @Nullable StagedImage image,
+        int rotationDegrees,
+        long timestampNs) {
+      this.buffer = buffer;
+      this.image = image;
+      this.rotationDegrees = rotationDegrees;
+      this.timestampNs = timestampNs;
+    }
+
+    void release() {
+      if (buffer != null) {
+        buffer.release();
+      } else if (image != null) {
+        image.inUse.set(false);
+      }
+    }
+  }
+
+  /** Runs a callback once both the caller and the recorder have run it. */
+  private static final class SharedRelease implements Runnable {
+    private final Runnable onReleased;
+    private final AtomicInteger remaining = new AtomicInteger(2);
+
+    SharedRelease(Runnable onReleased) {
+      this.onReleased = onReleased;
+    }
+
+    @Override
+    public void run() {
+      if (remaining.decrementAndGet() == 0) {
+        onReleased.run();
+      }
+    }
+  }
+
+  /** A downsampled copy of a camera image, reused for every image the writer is not busy with. */
+  private static final class StagedImage {
+    final byte[] data;
+    final ByteBuffer buffer;
+    final AtomicBoolean inUse = new AtomicBoolean();
+    int width;
+    int height;
+    int length;
+
+    StagedImage(int capacity) {
+      data = new byte[capacity];
+      buffer = ByteBuffer.wrap(data);
+    }
+
+    void downsample(Image image, int maxWidth, int maxHeight, boolean lumaOnly) {
+      int factor =
+          FrameDownsampler.selectFactor(image.getWidth(), image.getHeight(), maxWidth, maxHeight);
+      width = FrameDownsampler.getOutputSize(image.getWidth(), factor);
+      height = FrameDownsampler.getOutputSize(image.getHeight(), factor);
+      length = FrameDownsampler.getOutputLength(width, height, lumaOnly);
+      buffer.clear();
+      FrameDownsampler.downsampleYuv420(
+          BitmapUtils.toPlaneDescriptors(image.getPlanes()),
+          image.getWidth(),
+          image.getHeight(),
+          factor,
+          lumaOnly,
+          buffer);
+    }
+  }
+
+  /** Builder for {@link RollingFrameRecorder}. */
+  public static class Builder {
+    private final File ringFile;
+    private int durationSeconds = 10;
+    private float framesPerSecond = 5;
+    private int maxWidth = 640;
+    private int maxHeight = 480;
+    private boolean lumaOnly;
+
+    /** Records into {@code ringFile}, replacing any existing file. */
+    public Builder(File ringFile) {
+      this.ringFile = ringFile;
+    }
+
+    /** Sets how many seconds of frames the ring keeps. */
+    public Builder setDurationSeconds(int durationSeconds) {
+      this.durationSeconds = durationSeconds;
+      return this;
+    }
+
+    /** Sets the maximum number of frames recorded per second. */
+    public Builder setFrameRate(float framesPerSecond) {
+      this.framesPerSecond = framesPerSecond;
+      return this;
+    }
+
+    /** Sets the size that larger frames are downsampled to fit into. */
+    public Builder setMaxFrameSize(int maxWidth, int maxHeight) {
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      return this;
+    }
+
+    /** Sets whether only the luma plane of each frame is recorded. */
+    public Builder setLumaOnly(boolean lumaOnly) {
+      this.lumaOnly = lumaOnly;
+      return this;
+    }
+
+    /** Creates the ring file, sized for the configured duration, and starts the writer. */
+    public RollingFrameRecorder build() throws IOException {
+      if (durationSeconds <= 0 || framesPerSecond <= 0 || maxWidth < 2 || maxHeight < 2) {
+        throw new IllegalArgumentException("Duration, frame rate and frame size must be positive");
+      }
+      int slotCount = (int) Math.ceil(durationSeconds * framesPerSecond);
+      int slotDataSize =
+          FrameDownsampler.getOutputLength(maxWidth & ~1, maxHeight & ~1, lumaOnly);
+      FrameRingFile ring = FrameRingFile.create(ringFile, slotCount, slotDataSize);
+      return new RollingFrameRecorder(this, ring, slotDataSize);
+    }
+  }
+}
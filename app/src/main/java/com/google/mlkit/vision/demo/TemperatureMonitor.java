@@ -6,6 +6,8 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.util.Log;
+import androidx.annotation.GuardedBy;
+import com.google.mlkit.vision.demo.frame.MetricsRegistry;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -13,17 +15,31 @@ import java.util.Map;
 
 /**
  * Monitors device temperature.
+ *
+ * <p>One monitor is shared by the whole process, so swapping processors does not register more
+ * sensor listeners. Readings are published in Celsius as gauges of the {@code "temperature"} metric
+ * set of {@link MetricsRegistry#getDefault()}.
  */
 public final class TemperatureMonitor implements SensorEventListener {
 
   private static final String TAG = "TemperatureMonitor";
 
-  public Map<String, Float> sensorReadingsCelsius = new HashMap<>();
+  private static final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private static TemperatureMonitor instance;
+
+  @GuardedBy("lock")
+  private static int userCount;
 
   private final SensorManager sensorManager;
+  private final MetricsRegistry.MetricSet metrics;
+  // Filled before the listener is registered and only read afterwards.
+  private final Map<Sensor, MetricsRegistry.Gauge> sensorReadingsCelsius = new HashMap<>();
 
-  public TemperatureMonitor(Context context) {
+  private TemperatureMonitor(Context context) {
     sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    metrics = MetricsRegistry.getDefault().register("temperature");
     List<Sensor> allSensors = sensorManager.getSensorList(Sensor.TYPE_ALL);
     for (Sensor sensor : allSensors) {
       // Assumes sensors with "temperature" substring in their names are temperature sensors.
@@ -31,26 +47,62 @@ public final class TemperatureMonitor implements SensorEventListener {
       // sense to track the change of themselves, e.g. compare the reading before and after running
       // a detector for a certain amount of time, rather than relying on their absolute values at a
       // certain time.
-      if (sensor.getName().toLowerCase().contains("temperature")) {
-        sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
+      if (sensor.getName().toLowerCase(Locale.US).contains("temperature")) {
+        sensorReadingsCelsius.put(sensor, metrics.gauge(sensor.getName()));
+      }
+    }
+    for (Sensor sensor : sensorReadingsCelsius.keySet()) {
+      sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
+    }
+  }
+
+  /** Starts monitoring unless it already runs. Every call must be matched by {@link #release()}. */
+  public static void acquire(Context context) {
+    synchronized (lock) {
+      if (userCount++ == 0) {
+        instance = new TemperatureMonitor(context.getApplicationContext());
+      }
+    }
+  }
+
+  /** Stops monitoring once every {@link #acquire(Context)} call has been released. */
+  public static void release() {
+    synchronized (lock) {
+      if (userCount == 0) {
+        throw new IllegalStateException("Temperature monitor released more often than acquired");
+      }
+      if (--userCount == 0) {
+        instance.stop();
+        instance = null;
+      }
+    }
+  }
 
+  /** Logs the latest reading of every temperature sensor, if the monitor runs. */
+  public static void logTemperature() {
+    synchronized (lock) {
+      if (instance != null) {
+        instance.logReadings();
       }
     }
   }
 
-  public void stop() {
+  private void stop() {
     sensorManager.unregisterListener(this);
+    MetricsRegistry.getDefault().unregister(metrics);
   }
 
-  public void logTemperature() {
-    for (Map.Entry<String, Float> entry : sensorReadingsCelsius.entrySet()) {
-      float tempC = entry.getValue();
-      // Skips likely invalid sensor readings
-      if (tempC < 0) {
+  private void logReadings() {
+    for (Map.Entry<Sensor, MetricsRegistry.Gauge> entry : sensorReadingsCelsius.entrySet()) {
+      double tempC = entry.getValue().get();
+      // Skips sensors without readings and likely invalid sensor readings
+      if (Double.isNaN(tempC) || tempC < 0) {
         continue;
       }
-      float tempF = tempC * 1.8f + 32f;
-      Log.i(TAG, String.format(Locale.US, "%s:\t%.1fC\t%.1fF", entry.getKey(), tempC, tempF));
+      double tempF = tempC * 1.8 + 32;
+      Log.i(
+          TAG,
+          String.format(Locale.US, "%s:\t%.1fC\t%.1fF", entry.getKey().getName(), tempC, tempF));
     }
   }
 
@@ -59,6 +111,9 @@ public final class TemperatureMonitor implements SensorEventListener {
 
   @Override
   public void onSensorChanged(SensorEvent sensorEvent) {
-    sensorReadingsCelsius.put(sensorEvent.sensor.getName(), sensorEvent.values[0]);
+    MetricsRegistry.Gauge gauge = sensorReadingsCelsius.get(sensorEvent.sensor);
+    if (gauge != null) {
+      gauge.set(sensorEvent.values[0]);
+    }
   }
 }
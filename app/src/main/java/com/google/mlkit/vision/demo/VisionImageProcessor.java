@@ -17,8 +17,10 @@
 package com.google.mlkit.vision.demo;
 
 import android.graphics.Bitmap;
+import android.media.Image;
 import androidx.camera.core.ImageProxy;
 import com.google.mlkit.common.MlKitException;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
 import java.nio.ByteBuffer;
 
 /** An interface to process the images with different vision detectors and custom image models. */
@@ -32,9 +34,26 @@ public interface VisionImageProcessor {
       ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
       throws MlKitException;
 
+  /**
+   * Processes a leased NV21 frame, e.g. used for Camera1 live preview case. The processor retains
+   * the frame for as long as it reads it, so the caller may release its own reference on return.
+   */
+  void processFrameBuffer(
+      FrameBuffer frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay)
+      throws MlKitException;
+
   /** Processes ImageProxy image data, e.g. used for CameraX live preview case. */
   void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay) throws MlKitException;
 
+  /**
+   * Processes a YUV_420_888 image, e.g. used for Camera2 live preview case. The processor reads the
+   * image in place and runs {@code onImageDone} exactly once when it no longer needs it, so the
+   * caller can close the image then.
+   */
+  void processMediaImage(
+      Image image, int rotationDegrees, GraphicOverlay graphicOverlay, Runnable onImageDone)
+      throws MlKitException;
+
   /** Stops the underlying machine learning model and release resources. */
   void stop();
 }
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.android.gms.tasks.Task;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.demo.BitmapUtils;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs a detector over a batch of still images without any UI, writing one JSON line per image.
+ *
+ * <p>Images are decoded on a bounded pool of worker threads and handed to the detector of a {@link
+ * VisionProcessorBase}. At most {@code maxInFlight} images are decoding or waiting for detection
+ * results at any time; once the window is full, the submitting thread blocks until an image is
+ * done, so memory use does not grow with the size of the batch.
+ *
+ * <p>Each output line has the image URI, the decoded size, the decode and detection latency in
+ * milliseconds, and either the serialized results or the error.
+ *
+ * @param <T> The type of the detected feature.
+ */
+public class BatchImageProcessor<T> {
+
+  /** Writes the detection results for one image into its JSON line. */
+  public interface ResultSerializer<T> {
+    void serialize(@NonNull T results, @NonNull JSONObject json) throws JSONException;
+  }
+
+  /** Counts of a finished batch run. */
+  public static final class Summary {
+    private final int imageCount;
+    private final int failureCount;
+    private final long elapsedMs;
+
+    Summary(int imageCount, int failureCount, long elapsedMs) {
+      this.imageCount = imageCount;
+      this.failureCount = failureCount;
+      this.elapsedMs = elapsedMs;
+    }
+
+    public int getImageCount() {
+      return imageCount;
+    }
+
+    public int getFailureCount() {
+      return failureCount;
+    }
+
+    public long getElapsedMs() {
+      return elapsedMs;
+    }
+  }
+
+  private static final String TAG = "BatchImageProcessor";
+  private static final List<String> IMAGE_EXTENSIONS =
+      Arrays.asList(".jpg", ".jpeg", ".png", ".webp", ".heic", ".heif");
+
+  private final ContentResolver contentResolver;
+  private final VisionProcessorBase<T> processor;
+  private final ResultSerializer<T> serializer;
+  private final int decodeThreads;
+  private final int maxInFlight;
+  private final int targetWidth;
+  private final int targetHeight;
+  private final int maxPixels;
+
+  private BatchImageProcessor(Builder<T> builder) {
+    this.contentResolver = builder.contentResolver;
+    this.processor = builder.processor;
+    this.serializer = builder.serializer;
+    this.decodeThreads = builder.decodeThreads;
+    this.maxInFlight = builder.maxInFlight;
+    this.targetWidth = builder.targetWidth;
+    this.targetHeight = builder.targetHeight;
+    this.maxPixels = builder.maxPixels;
+  }
+
+  /** Returns the images directly inside {@code directory}, sorted by name. */
+  public static List<Uri> listImages(File directory) {
+    List<Uri> imageUris = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return imageUris;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName().toLowerCase(Locale.US);
+      int dot = name.lastIndexOf('.');
+      if (file.isFile() && dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot))) {
+        imageUris.add(Uri.fromFile(file));
+      }
+    }
+    return imageUris;
+  }
+
+  /** Processes all images directly inside {@code directory}, see {@link #run(List, File)}. */
+  @WorkerThread
+  public Summary run(File directory, File outputFile) throws IOException, InterruptedException {
+    return run(listImages(directory), outputFile);
+  }
+
+  /**
+   * Processes {@code imageUris} and writes the results to {@code outputFile} as JSON lines, in the
+   * order the images finish. Blocks until every image is done, so it must not be called on the
+   * main thread.
+   */
+  @WorkerThread
+  public Summary run(List<Uri> imageUris, File outputFile)
+      throws IOException, InterruptedException {
+    long startMs = SystemClock.elapsedRealtime();
+    ExecutorService decodeExecutor = Executors.newFixedThreadPool(decodeThreads);
+    // A single thread handles detector results, so output lines never interleave.
+    ExecutorService resultExecutor = Executors.newSingleThreadExecutor();
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    CountDownLatch remaining = new CountDownLatch(imageUris.size());
+    BatchState state = new BatchState();
+
+    try (Writer writer =
+        new BufferedWriter(
+            new OutputStreamWriter(
+                new FileOutputStream(outputFile), Charset.forName("UTF-8")))) {
+      for (Uri imageUri : imageUris) {
+        inFlight.acquire();
+        decodeExecutor.execute(
+            () ->
+                processImage(
+                    imageUri,
+                    writer,
+                    state,
+                    () -> {
+                      inFlight.release();
+                      remaining.countDown();
+                    },
+                    resultExecutor));
+      }
+      remaining.await();
+    } finally {
+      decodeExecutor.shutdownNow();
+      resultExecutor.shutdownNow();
+    }
+
+    IOException writeError = state.getWriteError();
+    if (writeError != null) {
+      throw writeError;
+    }
+    return new Summary(
+        imageUris.size(), state.getFailureCount(), SystemClock.elapsedRealtime() - startMs);
+  }
+
+  private void processImage(
+      Uri imageUri,
+      Writer writer,
+      BatchState state,
+      Runnable onDone,
+      ExecutorService resultExecutor) {
+    long decodeStartMs = SystemClock.elapsedRealtime();
+    Bitmap bitmap;
+    try {
+      bitmap =
+          BitmapUtils.getBitmapFromContentUri(
+              contentResolver, imageUri, targetWidth, targetHeight, maxPixels);
+      if (bitmap == null) {
+        throw new IOException("Unsupported image format");
+      }
+    } catch (IOException | RuntimeException e) {
+      resultExecutor.execute(
+          () -> {
+            writeLine(writer, state, imageUri, null, 0, 0, null, e);
+            onDone.run();
+          });
+      return;
+    }
+    long decodeMs = SystemClock.elapsedRealtime() - decodeStartMs;
+
+    long detectStartMs = SystemClock.elapsedRealtime();
+    Task<T> task;
+    try {
+      task = processor.detectInImage(InputImage.fromBitmap(bitmap, 0));
+    } catch (RuntimeException e) {
+      // A detector that throws instead of failing its task must not leak the in-flight permit,
+      // or the batch would never finish.
+      resultExecutor.execute(
+          () -> {
+            writeLine(writer, state, imageUri, bitmap, decodeMs, 0, null, e);
+            bitmap.recycle();
+            onDone.run();
+          });
+      return;
+    }
+    task.addOnCompleteListener(
+        resultExecutor,
+        completedTask -> {
+          long detectMs = SystemClock.elapsedRealtime() - detectStartMs;
+          writeLine(
+              writer,
+              state,
+              imageUri,
+              bitmap,
+              decodeMs,
+              detectMs,
+              completedTask.isSuccessful() ? completedTask.getResult() : null,
+              completedTask.getException());
+          bitmap.recycle();
+          onDone.run();
+        });
+  }
+
+  private void writeLine(
+      Writer writer,
+      BatchState state,
+      Uri imageUri,
+      @Nullable Bitmap bitmap,
+      long decodeMs,
+      long detectMs,
+      @Nullable T results,
+      @Nullable Exception error) {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("uri", imageUri.toString());
+      if (bitmap != null) {
+        json.put("width", bitmap.getWidth());
+        json.put("height", bitmap.getHeight());
+        json.put("decodeMs", decodeMs);
+        json.put("detectMs", detectMs);
+      }
+      if (results != null) {
+        serializer.serialize(results, json);
+      } else {
+        state.addFailure();
+        json.put("error", error != null ? error.toString() : "No results");
+      }
+      writer.write(json.toString());
+      writer.write('\n');
+    } catch (JSONException e) {
+      Log.e(TAG, "Failed to serialize results for " + imageUri, e);
+      state.addFailure();
+    } catch (IOException e) {
+      state.setWriteError(e);
+    }
+  }
+
+  /** Failure count and first write error of a run, updated from the result thread. */
+  private static final class BatchState {
+    @GuardedBy("this")
+    private int failureCount;
+
+    @GuardedBy("this")
+    @Nullable
+    private IOException writeError;
+
+    synchronized void addFailure() {
+      failureCount++;
+    }
+
+    synchronized int getFailureCount() {
+      return failureCount;
+    }
+
+    synchronized void setWriteError(IOException e) {
+      if (writeError == null) {
+        writeError = e;
+      }
+    }
+
+    @Nullable
+    synchronized IOException getWriteError() {
+      return writeError;
+    }
+  }
+
+  /** Builder for {@link BatchImageProcessor}. */
+  public static class Builder<T> {
+    private final ContentResolver contentResolver;
+    private final VisionProcessorBase<T> processor;
+    private final ResultSerializer<T> serializer;
+    private int decodeThreads = 2;
+    private int maxInFlight = 4;
+    private int targetWidth;
+    private int targetHeight;
+    private int maxPixels = BitmapUtils.DEFAULT_MAX_DECODE_PIXELS;
+
+    public Builder(
+        ContentResolver contentResolver,
+        VisionProcessorBase<T> processor,
+        ResultSerializer<T> serializer) {
+      this.contentResolver = contentResolver;
+      this.processor = processor;
+      this.serializer = serializer;
+    }
+
+    /** Sets the number of threads that decode images. */
+    public Builder<T> setDecodeThreads(int decodeThreads) {
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
+    /** Sets how many images may be decoding or waiting for the detector at the same time. */
+    public Builder<T> setMaxInFlight(int maxInFlight) {
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /** Sets the upright size the detector needs, so larger images are decoded subsampled. */
+    public Builder<T> setTargetSize(int targetWidth, int targetHeight) {
+      this.targetWidth = targetWidth;
+      this.targetHeight = targetHeight;
+      return this;
+    }
+
+    /** Sets the maximum number of pixels of a decoded image. */
+    public Builder<T> setMaxPixels(int maxPixels) {
+      this.maxPixels = maxPixels;
+      return this;
+    }
+
+    public BatchImageProcessor<T> build() {
+      if (decodeThreads <= 0 || maxInFlight <= 0 || maxPixels <= 0) {
+        throw new IllegalArgumentException("Thread, in-flight and pixel limits must be positive");
+      }
+      return new BatchImageProcessor<>(this);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.IBinder;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import com.google.mlkit.vision.demo.R;
+import com.google.mlkit.vision.demo.java.labeldetector.LabelDetectorProcessor;
+import com.google.mlkit.vision.demo.java.objectdetector.ObjectDetectorProcessor;
+import com.google.mlkit.vision.demo.preference.PreferenceUtils;
+import com.google.mlkit.vision.label.defaults.ImageLabelerOptions;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Foreground service that runs a {@link BatchImageProcessor} over a directory of images, e.g.
+ *
+ * <pre>
+ * adb push images/ /sdcard/Android/data/com.google.mlkit.vision.demo/files/batch
+ * adb shell am start-foreground-service \
+ *     -n com.google.mlkit.vision.demo/.java.BatchProcessingService --es detector objects
+ * </pre>
+ *
+ * <p>Results are written to {@code files/batch_results.jsonl} in app storage unless {@link
+ * #EXTRA_OUTPUT_FILE} is given. Only one batch runs at a time.
+ */
+public class BatchProcessingService extends Service {
+
+  /** Directory with the images to process, defaults to {@code files/batch} in app storage. */
+  public static final String EXTRA_INPUT_DIR = "input_dir";
+  /** File the JSON lines are written to. */
+  public static final String EXTRA_OUTPUT_FILE = "output_file";
+  /** Detector to run, {@link #DETECTOR_LABELS} (default) or {@link #DETECTOR_OBJECTS}. */
+  public static final String EXTRA_DETECTOR = "detector";
+
+  public static final String DETECTOR_LABELS = "labels";
+  public static final String DETECTOR_OBJECTS = "objects";
+
+  private static final String TAG = "BatchProcessingService";
+  private static final String CHANNEL_ID = "batch_processing";
+  private static final int NOTIFICATION_ID = 1;
+
+  @Nullable private Thread batchThread;
+
+  @Override
+  public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+    startForeground();
+    if (batchThread != null) {
+      Log.w(TAG, "A batch is already running, ignoring the new request");
+      return START_NOT_STICKY;
+    }
+    File defaultDir = getExternalFilesDir(null);
+    if (defaultDir == null) {
+      defaultDir = getFilesDir();
+    }
+    File inputDir = new File(defaultDir, "batch");
+    File outputFile = new File(defaultDir, "batch_results.jsonl");
+    String detector = DETECTOR_LABELS;
+    if (intent != null) {
+      if (intent.hasExtra(EXTRA_INPUT_DIR)) {
+        inputDir = new File(intent.getStringExtra(EXTRA_INPUT_DIR));
+      }
+      if (intent.hasExtra(EXTRA_OUTPUT_FILE)) {
+        outputFile = new File(intent.getStringExtra(EXTRA_OUTPUT_FILE));
+      }
+      if (intent.hasExtra(EXTRA_DETECTOR)) {
+        detector = intent.getStringExtra(EXTRA_DETECTOR);
+      }
+    }
+
+    File finalInputDir = inputDir;
+    File finalOutputFile = outputFile;
+    String finalDetector = detector;
+    batchThread =
+        new Thread(
+            () -> {
+              try {
+                runBatch(finalDetector, finalInputDir, finalOutputFile);
+              } finally {
+                stopSelf();
+              }
+            },
+            "BatchProcessing");
+    batchThread.start();
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    if (batchThread != null) {
+      batchThread.interrupt();
+    }
+  }
+
+  @Nullable
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+
+  private void runBatch(String detector, File inputDir, File outputFile) {
+    if (DETECTOR_OBJECTS.equals(detector)) {
+      ObjectDetectorProcessor processor =
+          new ObjectDetectorProcessor(
+              this, PreferenceUtils.getObjectDetectorOptionsForStillImage(this));
+      runBatch(processor, ObjectDetectorProcessor::serializeResults, inputDir, outputFile);
+    } else if (DETECTOR_LABELS.equals(detector)) {
+      LabelDetectorProcessor processor =
+          new LabelDetectorProcessor(this, ImageLabelerOptions.DEFAULT_OPTIONS);
+      runBatch(processor, LabelDetectorProcessor::serializeResults, inputDir, outputFile);
+    } else {
+      Log.e(TAG, "Unknown detector: " + detector);
+    }
+  }
+
+  private <T> void runBatch(
+      VisionProcessorBase<T> processor,
+      BatchImageProcessor.ResultSerializer<T> serializer,
+      File inputDir,
+      File outputFile) {
+    try {
+      BatchImageProcessor.Summary summary =
+          new BatchImageProcessor.Builder<>(getContentResolver(), processor, serializer)
+              .build()
+              .run(inputDir, outputFile);
+      Log.i(
+          TAG,
+          String.format(
+              "Processed %d images from %s in %d ms, %d failed, results in %s",
+              summary.getImageCount(),
+              inputDir,
+              summary.getElapsedMs(),
+              summary.getFailureCount(),
+              outputFile));
+    } catch (IOException e) {
+      Log.e(TAG, "Batch processing failed", e);
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Batch processing interrupted");
+    } finally {
+      processor.stop();
+    }
+  }
+
+  private void startForeground() {
+    if (VERSION.SDK_INT >= VERSION_CODES.O) {
+      NotificationChannel channel =
+          new NotificationChannel(
+              CHANNEL_ID,
+              getString(R.string.batch_processing_channel),
+              NotificationManager.IMPORTANCE_LOW);
+      getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+    Notification notification =
+        new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.drawable.logo_mlkit)
+            .setContentTitle(getString(R.string.batch_processing_running))
+            .setOngoing(true)
+            .build();
+    if (VERSION.SDK_INT >= VERSION_CODES.Q) {
+      startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+    } else {
+      startForeground(NOTIFICATION_ID, notification);
+    }
+  }
+}
@@ -18,18 +18,24 @@ package com.google.mlkit.vision.demo.java;
 
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
 import android.util.Size;
+import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.ToggleButton;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.camera.view.PreviewView;
 
@@ -42,11 +48,13 @@ import com.google.mlkit.common.model.LocalModel;
 import com.google.mlkit.vision.camera.CameraSourceConfig;
 import com.google.mlkit.vision.camera.CameraXSource;
 import com.google.mlkit.vision.camera.DetectionTaskCallback;
+import com.google.mlkit.vision.demo.AdaptiveResolutionController;
 import com.google.mlkit.vision.demo.BuildConfig;
 import com.google.mlkit.vision.demo.GraphicOverlay;
 import com.google.mlkit.vision.demo.InferenceInfoGraphic;
 import com.google.mlkit.vision.demo.R;
 import com.google.mlkit.vision.demo.java.objectdetector.ObjectGraphic;
+import com.google.mlkit.vision.demo.preference.CameraXLivePreviewPreferenceFragment;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
 import com.google.mlkit.vision.demo.preference.SettingsActivity;
 import com.google.mlkit.vision.objects.DetectedObject;
@@ -58,6 +66,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -69,6 +78,11 @@ import java.util.Objects;
 public final class CameraXSourceDemoActivity extends AppCompatActivity implements CompoundButton.OnCheckedChangeListener {
     private static final String TAG = "CameraXSourceDemo";
 
+    // Frame latency the adaptive preview size aims for, when no target resolution is set.
+    private static final long TARGET_FRAME_LATENCY_MS = 100;
+    private static final int DEFAULT_PREVIEW_WIDTH = 640;
+    private static final int DEFAULT_PREVIEW_HEIGHT = 480;
+
     private static final LocalModel localModel = new LocalModel.Builder().setAssetFilePath("custom_models/object_labeler.tflite").build();
 
     private PreviewView previewView;
@@ -82,6 +96,8 @@ public final class CameraXSourceDemoActivity extends AppCompatActivity implement
     private CameraXSource cameraXSource;
     private CustomObjectDetectorOptions customObjectDetectorOptions;
     private Size targetResolution;
+    private final AdaptiveResolutionController resolutionController = new AdaptiveResolutionController(TARGET_FRAME_LATENCY_MS);
+    private long lastResultMs;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -108,6 +124,9 @@ public final class CameraXSourceDemoActivity extends AppCompatActivity implement
             startActivity(intent);
         });
 
+        Button livePreviewButton = findViewById(R.id.live_preview_button);
+        livePreviewButton.setOnClickListener(v -> startActivity(new Intent(this, LivePreviewActivity.class)));
+
         detectionTaskCallback = detectionTask -> detectionTask.addOnSuccessListener(this::onDetectionTaskSuccess).addOnFailureListener(this::onDetectionTaskFailure);
     }
 
@@ -155,13 +174,57 @@ public final class CameraXSourceDemoActivity extends AppCompatActivity implement
         targetResolution = PreferenceUtils.getCameraXTargetResolution(getApplicationContext(), lensFacing);
         if (targetResolution != null) {
             builder.setRequestedPreviewSize(targetResolution.getWidth(), targetResolution.getHeight());
+        } else {
+            com.google.android.gms.common.images.Size adaptiveSize = getAdaptivePreviewSize();
+            if (adaptiveSize != null) {
+                builder.setRequestedPreviewSize(adaptiveSize.getWidth(), adaptiveSize.getHeight());
+            }
         }
+        lastResultMs = 0;
         cameraXSource = new CameraXSource(builder.build(), previewView);
         needUpdateGraphicOverlayImageSourceInfo = true;
         cameraXSource.start();
     }
 
+    /**
+     * Returns the preview size picked by the resolution controller from the sizes of the current camera, or null if
+     * they are unknown.
+     */
+    @Nullable
+    private com.google.android.gms.common.images.Size getAdaptivePreviewSize() {
+        int cameraLensFacing = lensFacing == CameraSourceConfig.CAMERA_FACING_FRONT ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        CameraCharacteristics characteristics = CameraXLivePreviewPreferenceFragment.getCameraCharacteristics(this, cameraLensFacing);
+        StreamConfigurationMap map = characteristics != null ? characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP) : null;
+        if (map == null) {
+            return null;
+        }
+        List<com.google.android.gms.common.images.Size> sizes = new ArrayList<>();
+        for (Size size : map.getOutputSizes(SurfaceTexture.class)) {
+            sizes.add(new com.google.android.gms.common.images.Size(size.getWidth(), size.getHeight()));
+        }
+        resolutionController.setLadder(sizes, DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT);
+        return resolutionController.getCurrentSize();
+    }
+
+    /**
+     * Feeds the resolution controller. CameraXSource analyzes one frame at a time and does not report per-frame
+     * timings, so the time between results stands in for the frame latency.
+     */
+    private void updateResolutionController() {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (targetResolution == null && lastResultMs > 0) {
+            resolutionController.onFrameProcessed(nowMs - lastResultMs);
+        }
+        lastResultMs = nowMs;
+    }
+
     private void onDetectionTaskSuccess(List<DetectedObject> results) {
+        updateResolutionController();
+        // Between two results nothing is waiting on the camera, so this is a safe point to restart it.
+        if (resolutionController.takePendingSize() != null) {
+            createThenStartCameraXSource();
+            return;
+        }
         graphicOverlay.clear();
         if (needUpdateGraphicOverlayImageSourceInfo) {
             Size size = cameraXSource.getPreviewSize();
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.java;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.camera.core.ExperimentalGetImage;
+import androidx.camera.core.ImageProxy;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.android.gms.tasks.Tasks;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.demo.BitmapUtils;
+import com.google.mlkit.vision.demo.CameraImageGraphic;
+import com.google.mlkit.vision.demo.FrameMetadata;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.InferenceInfoGraphic;
+import com.google.mlkit.vision.demo.OverlayFrame;
+import com.google.mlkit.vision.demo.ScopedExecutor;
+import com.google.mlkit.vision.demo.VisionImageProcessor;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import com.google.mlkit.vision.demo.preference.PreferenceUtils;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the detectors of several {@link VisionProcessorBase}s on the same frames, e.g. object
+ * detection and image labeling together.
+ *
+ * <p>Each frame is converted to an {@link InputImage}, and to a preview bitmap, only once, and
+ * then handed to every detector that is due. A detector is due on every {@code frameSkipRatio}-th
+ * frame, as long as fewer than {@code maxInFlight} of its frames are still being detected. Frames
+ * that no detector is due for are dropped right away. Once all detectors of a frame are done, the
+ * overlay is redrawn in one go with the latest results of every detector, so detectors that
+ * skipped the frame keep showing their previous results. Results are merged on a background thread;
+ * the main thread only publishes the finished {@link OverlayFrame}.
+ *
+ * <p>The detectors of the children are used directly; their own frame handling and {@link
+ * VisionProcessorBase#isMlImageEnabled} are not used.
+ */
+public class CompositeVisionProcessor implements VisionImageProcessor {
+
+  private static final String TAG = "CompositeProcessor";
+
+  private final List<Detector<?>> detectors;
+  // Merges the results and builds the overlay frames; the main thread only publishes them.
+  private final ExecutorService resultThread = Executors.newSingleThreadExecutor();
+  private final ScopedExecutor resultExecutor = new ScopedExecutor(resultThread);
+  private final ScopedExecutor mainExecutor = new ScopedExecutor(TaskExecutors.MAIN_THREAD);
+  // Reused NV21 buffers for converting CameraX and Camera2 frames to preview bitmaps.
+  private final FrameBufferPool nv21BufferPool = new FrameBufferPool();
+
+  @GuardedBy("this")
+  private boolean isShutdown;
+
+  @GuardedBy("this")
+  private long nextFrameSequence;
+
+  // The newest frame shown on the overlay. Only accessed on the result thread.
+  private long drawnFrameSequence = -1;
+
+  private CompositeVisionProcessor(List<Detector<?>> detectors) {
+    this.detectors = detectors;
+  }
+
+  // -----------------Code for processing single still image----------------------------------------
+  @Override
+  public void processBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+    long frameStartMs = SystemClock.elapsedRealtime();
+    Frame frame = startFrame(/* isLive= */ false);
+    if (frame == null) {
+      return;
+    }
+    detect(frame, InputImage.fromBitmap(bitmap, 0), graphicOverlay, null, frameStartMs, () -> {});
+  }
+
+  // -----------------Code for processing live preview frame from Camera1 API-----------------------
+  @Override
+  public void processByteBuffer(
+      ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+    byte[] nv21 = new byte[data.remaining()];
+    data.duplicate().get(nv21);
+    FrameBuffer frame =
+        new FrameBuffer(nv21, frameMetadata.getWidth(), frameMetadata.getHeight(), null).lease();
+    processFrameBuffer(frame, frameMetadata, graphicOverlay);
+    frame.release();
+  }
+
+  @Override
+  public void processFrameBuffer(
+      FrameBuffer frameBuffer, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+    long frameStartMs = SystemClock.elapsedRealtime();
+    Frame frame = startFrame(/* isLive= */ true);
+    if (frame == null) {
+      return;
+    }
+    ByteBuffer data = frameBuffer.getByteBuffer();
+    Bitmap bitmap = null;
+    InputImage image;
+    try {
+      if (!PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
+        bitmap =
+            BitmapUtils.getPreviewBitmap(
+                data,
+                frameMetadata,
+                graphicOverlay.getWidth(),
+                graphicOverlay.getHeight(),
+                graphicOverlay.getBitmapPool());
+      }
+      image =
+          InputImage.fromByteBuffer(
+              data,
+              frameMetadata.getWidth(),
+              frameMetadata.getHeight(),
+              frameMetadata.getRotation(),
+              InputImage.IMAGE_FORMAT_NV21);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to prepare a live frame.", e);
+      cancelFrame(frame, bitmap, graphicOverlay);
+      return;
+    }
+    frameBuffer.retain();
+    detect(frame, image, graphicOverlay, bitmap, frameStartMs, frameBuffer::release);
+  }
+
+  // -----------------Code for processing live preview frame from CameraX API-----------------------
+  @Override
+  @RequiresApi(VERSION_CODES.LOLLIPOP)
+  @ExperimentalGetImage
+  public void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay) {
+    processMediaImage(
+        image.getImage(), image.getImageInfo().getRotationDegrees(), graphicOverlay, image::close);
+  }
+
+  // -----------------Code for processing live preview frame from Camera2 API-----------------------
+  @Override
+  public void processMediaImage(
+      Image image, int rotationDegrees, GraphicOverlay graphicOverlay, Runnable onImageDone) {
+    long frameStartMs = SystemClock.elapsedRealtime();
+    Frame frame = startFrame(/* isLive= */ true);
+    if (frame == null) {
+      onImageDone.run();
+      return;
+    }
+    Bitmap bitmap = null;
+    InputImage inputImage;
+    try {
+      if (!PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
+        bitmap =
+            BitmapUtils.getPreviewBitmap(
+                image,
+                rotationDegrees,
+                nv21BufferPool,
+                graphicOverlay.getWidth(),
+                graphicOverlay.getHeight(),
+                graphicOverlay.getBitmapPool());
+      }
+      inputImage = InputImage.fromMediaImage(image, rotationDegrees);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to prepare a camera image.", e);
+      cancelFrame(frame, bitmap, graphicOverlay);
+      onImageDone.run();
+      return;
+    }
+    detect(frame, inputImage, graphicOverlay, bitmap, frameStartMs, onImageDone);
+  }
+
+  // -----------------Common processing logic-------------------------------------------------------
+
+  /**
+   * Picks the detectors that are due for the next frame and counts the frame as in flight for
+   * them. Returns null if none is due.
+   */
+  @Nullable
+  private synchronized Frame startFrame(boolean isLive) {
+    if (isShutdown) {
+      return null;
+    }
+    List<Detector<?>> dueDetectors = new ArrayList<>(detectors.size());
+    for (Detector<?> detector : detectors) {
+      if (!isLive || detector.isDue()) {
+        detector.inFlight.incrementAndGet();
+        dueDetectors.add(detector);
+      }
+    }
+    return dueDetectors.isEmpty() ? null : new Frame(nextFrameSequence++, dueDetectors);
+  }
+
+  /**
+   * Hands back what {@link #startFrame} and the conversion took for a frame that is not detected
+   * after all, so its detectors are not stuck at their in-flight limit.
+   */
+  private static void cancelFrame(
+      Frame frame, @Nullable Bitmap bitmap, GraphicOverlay graphicOverlay) {
+    for (Detector<?> detector : frame.detectors) {
+      detector.inFlight.decrementAndGet();
+    }
+    if (bitmap != null) {
+      graphicOverlay.getBitmapPool().release(bitmap);
+    }
+  }
+
+  /**
+   * Runs the due detectors of {@code frame} on {@code image}. {@code onImageDone} runs once all of
+   * them are done with the image data.
+   */
+  private void detect(
+      Frame frame,
+      InputImage image,
+      GraphicOverlay graphicOverlay,
+      @Nullable Bitmap originalCameraImage,
+      long frameStartMs,
+      Runnable onImageDone) {
+    long detectorStartMs = SystemClock.elapsedRealtime();
+    List<Task<?>> tasks = new ArrayList<>(frame.detectors.size());
+    for (Detector<?> detector : frame.detectors) {
+      Task<?> task;
+      try {
+        task = detector.processor.detectInImage(image);
+      } catch (RuntimeException e) {
+        task = Tasks.forException(e);
+      }
+      // Runs even after the processor is stopped, so every image is handed back.
+      task.addOnCompleteListener(
+          MoreExecutors.directExecutor(), t -> detector.inFlight.decrementAndGet());
+      tasks.add(task);
+    }
+    Tasks.whenAllComplete(tasks)
+        .addOnCompleteListener(MoreExecutors.directExecutor(), t -> onImageDone.run())
+        .addOnCompleteListener(
+            resultExecutor,
+            t ->
+                onFrameDone(
+                    frame,
+                    tasks,
+                    graphicOverlay,
+                    originalCameraImage,
+                    frameStartMs,
+                    detectorStartMs));
+  }
+
+  /** Stores the results of {@code frame} and redraws the overlay with the latest results. */
+  private void onFrameDone(
+      Frame frame,
+      List<Task<?>> tasks,
+      GraphicOverlay graphicOverlay,
+      @Nullable Bitmap originalCameraImage,
+      long frameStartMs,
+      long detectorStartMs) {
+    for (int i = 0; i < tasks.size(); i++) {
+      frame.detectors.get(i).onComplete(tasks.get(i), frame.sequence);
+    }
+    if (frame.sequence < drawnFrameSequence) {
+      // A newer frame is already shown; its results will include these on the next redraw.
+      if (originalCameraImage != null) {
+        graphicOverlay.getBitmapPool().release(originalCameraImage);
+      }
+      return;
+    }
+    drawnFrameSequence = frame.sequence;
+
+    long endMs = SystemClock.elapsedRealtime();
+    OverlayFrame.Builder builder = new OverlayFrame.Builder(graphicOverlay);
+    if (originalCameraImage != null) {
+      builder.add(new CameraImageGraphic(graphicOverlay, originalCameraImage));
+    }
+    for (Detector<?> detector : detectors) {
+      detector.draw(builder);
+    }
+    if (!PreferenceUtils.shouldHideDetectionInfo(graphicOverlay.getContext())) {
+      builder.add(
+          new InferenceInfoGraphic(
+              graphicOverlay, endMs - frameStartMs, endMs - detectorStartMs, null));
+    }
+    OverlayFrame overlayFrame = builder.build();
+    mainExecutor.execute(() -> graphicOverlay.publish(overlayFrame));
+  }
+
+  @Override
+  public void stop() {
+    synchronized (this) {
+      isShutdown = true;
+    }
+    resultExecutor.shutdown();
+    mainExecutor.shutdown();
+    resultThread.shutdown();
+    for (Detector<?> detector : detectors) {
+      detector.processor.stop();
+    }
+    nv21BufferPool.clear();
+  }
+
+  /** The sequence number and the due detectors of a frame. */
+  private static final class Frame {
+    final long sequence;
+    final List<Detector<?>> detectors;
+
+    Frame(long sequence, List<Detector<?>> detectors) {
+      this.sequence = sequence;
+      this.detectors = detectors;
+    }
+  }
+
+  /** A child processor with its frame skipping state and latest results. */
+  private static final class Detector<T> {
+    final VisionProcessorBase<T> processor;
+    final int frameSkipRatio;
+    final int maxInFlight;
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    // Frames since the detector last ran, counting the current one. Guarded by the lock of the
+    // enclosing processor.
+    private int framesSinceLastRun;
+
+    // Only accessed on the result thread.
+    @Nullable private T latestResults;
+    private long latestSequence = -1;
+
+    Detector(VisionProcessorBase<T> processor, int frameSkipRatio, int maxInFlight) {
+      this.processor = processor;
+      this.frameSkipRatio = frameSkipRatio;
+      this.maxInFlight = maxInFlight;
+      // Runs on the first frame.
+      this.framesSinceLastRun = frameSkipRatio - 1;
+    }
+
+    boolean isDue() {
+      if (framesSinceLastRun < frameSkipRatio) {
+        framesSinceLastRun++;
+      }
+      if (framesSinceLastRun < frameSkipRatio || inFlight.get() >= maxInFlight) {
+        return false;
+      }
+      framesSinceLastRun = 0;
+      return true;
+    }
+
+    @SuppressWarnings("unchecked") // The task came from detectInImage() of this processor.
+    void onComplete(Task<?> task, long sequence) {
+      if (!task.isSuccessful()) {
+        Exception e = task.getException();
+        Log.d(TAG, "Detector failed: " + e);
+        processor.onFailure(e != null ? e : new IllegalStateException("Detection canceled"));
+        return;
+      }
+      if (sequence > latestSequence) {
+        latestSequence = sequence;
+        latestResults = (T) task.getResult();
+      }
+    }
+
+    void draw(OverlayFrame.Builder overlayFrame) {
+      if (latestResults != null) {
+        processor.onSuccess(latestResults, overlayFrame);
+      }
+    }
+  }
+
+  /** Builder for {@link CompositeVisionProcessor}. */
+  public static class Builder {
+    private final List<Detector<?>> detectors = new ArrayList<>();
+
+    /** Runs the detector of {@code processor} on every frame, one frame at a time. */
+    public <T> Builder addProcessor(VisionProcessorBase<T> processor) {
+      return addProcessor(processor, /* frameSkipRatio= */ 1, /* maxInFlight= */ 1);
+    }
+
+    /**
+     * Runs the detector of {@code processor} on every {@code frameSkipRatio}-th frame, with at
+     * most {@code maxInFlight} frames being detected at the same time.
+     */
+    public <T> Builder addProcessor(
+        VisionProcessorBase<T> processor, int frameSkipRatio, int maxInFlight) {
+      if (frameSkipRatio <= 0 || maxInFlight <= 0) {
+        throw new IllegalArgumentException("Frame skip ratio and in-flight limit must be positive");
+      }
+      detectors.add(new Detector<>(processor, frameSkipRatio, maxInFlight));
+      return this;
+    }
+
+    public CompositeVisionProcessor build() {
+      if (detectors.isEmpty()) {
+        throw new IllegalArgumentException("No processors added");
+      }
+      return new CompositeVisionProcessor(Collections.unmodifiableList(new ArrayList<>(detectors)));
+    }
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.java;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemSelectedListener;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.ImageView;
+import android.widget.Spinner;
+import android.widget.Toast;
+import android.widget.ToggleButton;
+import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+import com.google.android.gms.common.annotation.KeepName;
+import com.google.mlkit.vision.demo.AdaptiveResolutionController;
+import com.google.mlkit.vision.demo.Camera2Source;
+import com.google.mlkit.vision.demo.CameraSource;
+import com.google.mlkit.vision.demo.CameraSourcePreview;
+import com.google.mlkit.vision.demo.FrameRateGovernor;
+import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.PipelineTracer;
+import com.google.mlkit.vision.demo.R;
+import com.google.mlkit.vision.demo.RollingFrameRecorder;
+import com.google.mlkit.vision.demo.VisionImageProcessor;
+import com.google.mlkit.vision.demo.java.labeldetector.LabelDetectorProcessor;
+import com.google.mlkit.vision.demo.java.objectdetector.ObjectDetectorProcessor;
+import com.google.mlkit.vision.demo.preference.PreferenceUtils;
+import com.google.mlkit.vision.demo.preference.SettingsActivity;
+import com.google.mlkit.vision.label.defaults.ImageLabelerOptions;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Live preview demo for ML Kit APIs, streaming from the Camera1 {@link CameraSource} or, if enabled
+ * in the settings, from {@link Camera2Source}.
+ */
+@KeepName
+public final class LivePreviewActivity extends AppCompatActivity
+    implements OnItemSelectedListener, CompoundButton.OnCheckedChangeListener {
+  private static final String OBJECT_DETECTION = "Object Detection";
+  private static final String IMAGE_LABELING = "Image Labeling";
+  private static final String OBJECT_DETECTION_AND_LABELING = "Object Detection + Labeling";
+
+  private static final String TAG = "LivePreviewActivity";
+  private static final int PERMISSION_REQUESTS = 1;
+  // The Camera1 preview size is lowered while frames take longer than this, see
+  // AdaptiveResolutionController.
+  private static final long TARGET_FRAME_LATENCY_MS = 100;
+  // The range the Camera1 frame rate is governed in, see FrameRateGovernor.
+  private static final float MIN_FPS = 5;
+  private static final float MAX_FPS = 30;
+  // Files in app storage for the frame recorder's ring and its dumps.
+  private static final String FRAME_RING_FILE = "live_preview_frames.ring";
+  private static final String FRAME_DUMP_FILE = "live_preview_frames.capture";
+  // File in app storage for the pipeline trace, see PipelineTracer.
+  private static final String TRACE_FILE = "live_preview_trace.json";
+
+  @Nullable private CameraSource cameraSource = null;
+  @Nullable private Camera2Source camera2Source = null;
+  private CameraSourcePreview preview;
+  private GraphicOverlay graphicOverlay;
+  private String selectedModel = OBJECT_DETECTION;
+  private int facing = CameraSource.CAMERA_FACING_BACK;
+  // Kept across processors and camera restarts, so the size it settled on is not lost.
+  private final AdaptiveResolutionController resolutionController =
+      new AdaptiveResolutionController(TARGET_FRAME_LATENCY_MS);
+  private FrameRateGovernor frameRateGovernor;
+  @Nullable private RollingFrameRecorder frameRecorder = null;
+  private Button dumpFramesButton;
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    Log.d(TAG, "onCreate");
+
+    setContentView(R.layout.activity_vision_live_preview);
+
+    preview = findViewById(R.id.preview_view);
+    graphicOverlay = findViewById(R.id.graphic_overlay);
+    frameRateGovernor = new FrameRateGovernor(this, MIN_FPS, MAX_FPS);
+
+    Spinner spinner = findViewById(R.id.spinner);
+    List<String> options = new ArrayList<>();
+    options.add(OBJECT_DETECTION);
+    options.add(IMAGE_LABELING);
+    options.add(OBJECT_DETECTION_AND_LABELING);
+
+    // Creating adapter for spinner
+    ArrayAdapter<String> dataAdapter = new ArrayAdapter<>(this, R.layout.spinner_style, options);
+    // Drop down layout style - list view with radio button
+    dataAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    // attaching data adapter to spinner
+    spinner.setAdapter(dataAdapter);
+    spinner.setOnItemSelectedListener(this);
+
+    ToggleButton facingSwitch = findViewById(R.id.facing_switch);
+    facingSwitch.setOnCheckedChangeListener(this);
+
+    dumpFramesButton = findViewById(R.id.dump_frames_button);
+    dumpFramesButton.setOnClickListener(v -> dumpFrames());
+
+    Button exportTraceButton = findViewById(R.id.export_trace_button);
+    exportTraceButton.setOnClickListener(v -> exportTrace());
+
+    ImageView settingsButton = findViewById(R.id.settings_button);
+    settingsButton.setOnClickListener(
+        v -> {
+          Intent intent = new Intent(getApplicationContext(), SettingsActivity.class);
+          intent.putExtra(
+              SettingsActivity.EXTRA_LAUNCH_SOURCE, SettingsActivity.LaunchSource.LIVE_PREVIEW);
+          startActivity(intent);
+        });
+
+    // The camera starts in onResume(), which also runs once the permission dialog is answered.
+    if (!hasCameraPermission()) {
+      ActivityCompat.requestPermissions(
+          this, new String[] {Manifest.permission.CAMERA}, PERMISSION_REQUESTS);
+    }
+  }
+
+  @Override
+  public synchronized void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+    // An item was selected. You can retrieve the selected item using
+    // parent.getItemAtPosition(pos)
+    selectedModel = parent.getItemAtPosition(pos).toString();
+    Log.d(TAG, "Selected model: " + selectedModel);
+    stopCameraSource();
+    createCameraSource(selectedModel);
+    startCameraSource();
+  }
+
+  @Override
+  public void onNothingSelected(AdapterView<?> parent) {
+    // Do nothing.
+  }
+
+  @Override
+  public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+    Log.d(TAG, "Set facing");
+    facing = isChecked ? CameraSource.CAMERA_FACING_FRONT : CameraSource.CAMERA_FACING_BACK;
+    stopCameraSource();
+    if (cameraSource != null) {
+      cameraSource.setFacing(facing);
+    }
+    if (camera2Source != null) {
+      camera2Source.setFacing(facing);
+    }
+    startCameraSource();
+  }
+
+  private void createCameraSource(String model) {
+    // The camera API can change in the settings while this activity is paused.
+    boolean useCamera2 = PreferenceUtils.isCamera2Enabled(this);
+    if (useCamera2 ? cameraSource != null : camera2Source != null) {
+      releaseCameraSources();
+    }
+    updateFrameRecorder();
+
+    VisionImageProcessor processor;
+    // Set for the single detector processors, which report frame stats and record camera images.
+    VisionProcessorBase<?> processorBase = null;
+    try {
+      switch (model) {
+        case OBJECT_DETECTION:
+          Log.i(TAG, "Using Object Detector Processor");
+          processorBase =
+              new ObjectDetectorProcessor(
+                  this, PreferenceUtils.getObjectDetectorOptionsForLivePreview(this));
+          processor = processorBase;
+          break;
+        case IMAGE_LABELING:
+          Log.i(TAG, "Using Image Label Detector Processor");
+          processorBase = new LabelDetectorProcessor(this, ImageLabelerOptions.DEFAULT_OPTIONS);
+          processor = processorBase;
+          break;
+        case OBJECT_DETECTION_AND_LABELING:
+          Log.i(TAG, "Using Composite Vision Processor");
+          processor =
+              new CompositeVisionProcessor.Builder()
+                  .addProcessor(
+                      new ObjectDetectorProcessor(
+                          this, PreferenceUtils.getObjectDetectorOptionsForLivePreview(this)))
+                  // Labels change slowly, so they are only refreshed on every third frame.
+                  .addProcessor(
+                      new LabelDetectorProcessor(this, ImageLabelerOptions.DEFAULT_OPTIONS),
+                      /* frameSkipRatio= */ 3,
+                      /* maxInFlight= */ 1)
+                  .build();
+          break;
+        default:
+          Log.e(TAG, "Unknown model: " + model);
+          return;
+      }
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Can not create image processor: " + model, e);
+      Toast.makeText(
+              getApplicationContext(),
+              "Can not create image processor: " + e.getMessage(),
+              Toast.LENGTH_LONG)
+          .show();
+      return;
+    }
+
+    if (processorBase != null) {
+      // Camera1 frames are offered by the camera source, Camera2 images by the processor.
+      processorBase.setFrameRecorder(frameRecorder);
+    }
+    if (useCamera2) {
+      if (camera2Source == null) {
+        camera2Source = new Camera2Source(this, graphicOverlay);
+      }
+      camera2Source.setFacing(facing);
+      camera2Source.setMachineLearningFrameProcessor(processor);
+    } else {
+      // If there's no existing cameraSource, create one.
+      if (cameraSource == null) {
+        cameraSource = new CameraSource(this, graphicOverlay);
+      }
+      cameraSource.setFacing(facing);
+      if (processorBase != null) {
+        // Only used when no preview size is set in the settings.
+        cameraSource.setResolutionController(resolutionController);
+        processorBase.addFrameStatsListener(resolutionController);
+        cameraSource.setFrameRateGovernor(frameRateGovernor);
+        processorBase.addFrameStatsListener(frameRateGovernor);
+      } else {
+        // Without frame stats the camera keeps the default preview size and frame rate.
+        cameraSource.setResolutionController(null);
+        cameraSource.setFrameRateGovernor(null);
+      }
+      cameraSource.setFrameRecorder(frameRecorder);
+      cameraSource.setMachineLearningFrameProcessor(processor);
+    }
+  }
+
+  /**
+   * Creates or closes the frame recorder as set in the settings. Called while the camera is stopped,
+   * before the recorder is handed to the new processor and camera source.
+   */
+  private void updateFrameRecorder() {
+    boolean enabled = PreferenceUtils.isFrameRecorderEnabled(this);
+    if (enabled && frameRecorder == null) {
+      try {
+        frameRecorder =
+            new RollingFrameRecorder.Builder(new File(getFilesDir(), FRAME_RING_FILE)).build();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to create the frame recorder.", e);
+      }
+    } else if (!enabled && frameRecorder != null) {
+      if (cameraSource != null) {
+        cameraSource.setFrameRecorder(null);
+      }
+      closeFrameRecorder();
+    }
+    dumpFramesButton.setVisibility(frameRecorder != null ? View.VISIBLE : View.GONE);
+  }
+
+  private void closeFrameRecorder() {
+    if (frameRecorder == null) {
+      return;
+    }
+    try {
+      frameRecorder.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close the frame recorder.", e);
+    }
+    frameRecorder = null;
+  }
+
+  /** Exports the recorded frames to a capture file in app storage, for ReplayFrameSource. */
+  private void dumpFrames() {
+    RollingFrameRecorder recorder = frameRecorder;
+    if (recorder == null) {
+      return;
+    }
+    File captureFile = new File(getFilesDir(), FRAME_DUMP_FILE);
+    exportInBackground(
+        "DumpFrames",
+        R.string.live_preview_frames_dump_failed,
+        () ->
+            getString(
+                R.string.live_preview_frames_dumped, recorder.dump(captureFile), captureFile));
+  }
+
+  /**
+   * Writes the recent pipeline spans to a Chrome trace file in app storage, which Perfetto can
+   * open.
+   */
+  private void exportTrace() {
+    File traceFile = new File(getFilesDir(), TRACE_FILE);
+    exportInBackground(
+        "ExportTrace",
+        R.string.live_preview_trace_export_failed,
+        () ->
+            getString(
+                R.string.live_preview_trace_exported,
+                PipelineTracer.writeChromeTrace(traceFile),
+                traceFile));
+  }
+
+  /** Runs {@code export} on a background thread and shows the message it returns in a toast. */
+  private void exportInBackground(
+      String threadName, @StringRes int failureMessage, Callable<String> export) {
+    new Thread(
+            () -> {
+              String message;
+              try {
+                message = export.call();
+              } catch (Exception e) {
+                Log.e(TAG, "Export failed.", e);
+                message = getString(failureMessage);
+              }
+              String toast = message;
+              runOnUiThread(
+                  () -> Toast.makeText(getApplicationContext(), toast, Toast.LENGTH_LONG).show());
+            },
+            threadName)
+        .start();
+  }
+
+  /**
+   * Starts or restarts the camera source, if it exists. If the camera source doesn't exist yet
+   * (e.g., because onResume was called before the camera source was created), this will be called
+   * again when the camera source is created.
+   */
+  @SuppressLint("MissingPermission") // Checked by hasCameraPermission().
+  private void startCameraSource() {
+    if (!hasCameraPermission()) {
+      return;
+    }
+    try {
+      if (camera2Source != null) {
+        camera2Source.start();
+      } else if (cameraSource != null) {
+        preview.start(cameraSource, graphicOverlay);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to start camera source.", e);
+      releaseCameraSources();
+    }
+  }
+
+  private void stopCameraSource() {
+    preview.stop();
+    if (camera2Source != null) {
+      camera2Source.stop();
+    }
+  }
+
+  private void releaseCameraSources() {
+    if (cameraSource != null) {
+      cameraSource.release();
+      cameraSource = null;
+    }
+    if (camera2Source != null) {
+      camera2Source.release();
+      camera2Source = null;
+    }
+  }
+
+  private boolean hasCameraPermission() {
+    return ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+        == PackageManager.PERMISSION_GRANTED;
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    Log.d(TAG, "onResume");
+    createCameraSource(selectedModel);
+    startCameraSource();
+  }
+
+  /** Stops the camera. */
+  @Override
+  protected void onPause() {
+    super.onPause();
+    stopCameraSource();
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    releaseCameraSources();
+    closeFrameRecorder();
+  }
+}
@@ -16,13 +16,14 @@
 
 package com.google.mlkit.vision.demo.java;
 
-import static java.lang.Math.max;
-import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import android.app.ActivityManager;
 import android.app.ActivityManager.MemoryInfo;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.media.Image;
 import android.os.Build.VERSION_CODES;
 import android.os.SystemClock;
 import android.util.Log;
@@ -34,31 +35,54 @@ import androidx.annotation.RequiresApi;
 import androidx.camera.core.ExperimentalGetImage;
 import androidx.camera.core.ImageProxy;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.TaskExecutors;
 import com.google.android.gms.tasks.Tasks;
 import com.google.android.odml.image.BitmapMlImageBuilder;
 import com.google.android.odml.image.ByteBufferMlImageBuilder;
 import com.google.android.odml.image.MediaMlImageBuilder;
 import com.google.android.odml.image.MlImage;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.mlkit.common.MlKitException;
 import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.demo.BitmapPool;
 import com.google.mlkit.vision.demo.BitmapUtils;
 import com.google.mlkit.vision.demo.CameraImageGraphic;
 import com.google.mlkit.vision.demo.FrameMetadata;
+import com.google.mlkit.vision.demo.FrameStatsListener;
 import com.google.mlkit.vision.demo.GraphicOverlay;
 import com.google.mlkit.vision.demo.InferenceInfoGraphic;
+import com.google.mlkit.vision.demo.OverlayFrame;
+import com.google.mlkit.vision.demo.PipelineTracer;
+import com.google.mlkit.vision.demo.RollingFrameRecorder;
 import com.google.mlkit.vision.demo.ScopedExecutor;
 import com.google.mlkit.vision.demo.TemperatureMonitor;
 import com.google.mlkit.vision.demo.VisionImageProcessor;
+import com.google.mlkit.vision.demo.frame.FrameAdmissionPolicy;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import com.google.mlkit.vision.demo.frame.LatencyHistogram;
+import com.google.mlkit.vision.demo.frame.MetricsRegistry;
+import com.google.mlkit.vision.demo.frame.PlaneDescriptor;
+import com.google.mlkit.vision.demo.frame.RateMeter;
 import com.google.mlkit.vision.demo.preference.PreferenceUtils;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Abstract base class for vision frame processors. Subclasses need to implement {@link
- * #onSuccess(Object, GraphicOverlay)} to define what they want to with the detection results and
- * {@link #detectInImage(InputImage)} to specify the detector object.
+ * #onSuccess(Object, OverlayFrame.Builder) onSuccess(T, OverlayFrame.Builder)} to define what they
+ * want to do with the detection results and {@link #detectInImage(InputImage)} to specify the
+ * detector object.
+ *
+ * <p>{@code onSuccess} is called on a result thread, so the overlay frame for each result is built
+ * off the main thread. The main thread only publishes the finished frame to the {@link
+ * GraphicOverlay}, unless the "Build overlay on the main thread" baseline setting is on.
  *
  * @param <T> The type of the detected feature.
  */
@@ -66,88 +90,220 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
 
   protected static final String MANUAL_TESTING_LOG = "LogTagForTest";
   private static final String TAG = "VisionProcessorBase";
+  private static final long LATENCY_WINDOW_SECONDS = 30;
+  private static final int LATENCY_WINDOW_INTERVALS = 6;
+  // Frames per second over the last second, updated four times per second.
+  private static final int FPS_WINDOW_INTERVALS = 4;
+  private static final long STATS_LOG_INTERVAL_NANOS = SECONDS.toNanos(1);
 
   private final ActivityManager activityManager;
-  private final Timer fpsTimer = new Timer();
-  private final ScopedExecutor executor;
-  private final TemperatureMonitor temperatureMonitor;
+  // Handles detector results and builds the overlay frames, so the main thread only publishes them.
+  private final ExecutorService resultThread = Executors.newSingleThreadExecutor();
+  private final ScopedExecutor resultExecutor = new ScopedExecutor(resultThread);
+  private final ScopedExecutor mainExecutor = new ScopedExecutor(TaskExecutors.MAIN_THREAD);
+  // Reused NV21 buffers for converting CameraX frames to preview bitmaps.
+  private final FrameBufferPool nv21BufferPool = new FrameBufferPool();
+  // Converts CameraX and Camera2 frames to preview bitmaps while the detector runs.
+  private final ExecutorService bitmapExecutor = Executors.newSingleThreadExecutor();
 
   // Whether this processor is already shut down
   private boolean isShutdown;
 
-  // Used to calculate latency, running in the same thread, no sync needed.
-  private int numRuns = 0;
-  private long totalFrameMs = 0;
-  private long maxFrameMs = 0;
-  private long minFrameMs = Long.MAX_VALUE;
-  private long totalDetectorMs = 0;
-  private long maxDetectorMs = 0;
-  private long minDetectorMs = Long.MAX_VALUE;
-
-  // Frame count that have been processed so far in an one second interval to calculate FPS.
-  private int frameProcessedInOneSecondInterval = 0;
-  private int framesPerSecond = 0;
-
-  // To keep the latest images and its metadata.
+  // The metrics of this processor in the process-wide registry, unregistered in stop().
+  private final MetricsRegistry.MetricSet metrics =
+      MetricsRegistry.getDefault().register(getClass().getSimpleName());
+
+  // Latencies in nanoseconds over a sliding window, recorded from any thread.
+  private final LatencyHistogram frameLatency = newLatencyHistogram("frameLatency");
+  private final LatencyHistogram detectorLatency = newLatencyHistogram("detectorLatency");
+  // Time from receiving a frame until it is handed to the detector, e.g. for bitmap conversion.
+  private final LatencyHistogram conversionLatency = newLatencyHistogram("conversionLatency");
+  // Time the main thread spends on each frame, i.e. publishing its overlay frame, or handling the
+  // whole result on the baseline path, see overlayOnMainThread.
+  private final LatencyHistogram mainThreadLatency = newLatencyHistogram("mainThreadLatency");
+  private final RateMeter framesPerSecond =
+      metrics.rate("framesPerSecond", SECONDS.toNanos(1), FPS_WINDOW_INTERVALS);
+  private final MetricsRegistry.Counter framesProcessed = metrics.counter("framesProcessed");
+  // Frames replaced by a newer one while the detector was busy, so they were never processed.
+  private final MetricsRegistry.Counter framesDroppedBusy = metrics.counter("framesDroppedBusy");
+  // Frames the admission policy turned away before any work was done on them.
+  private final MetricsRegistry.Counter framesSkippedByPolicy =
+      metrics.counter("framesSkippedByPolicy");
+  private final MetricsRegistry.Gauge memoryAvailableMb = metrics.gauge("memoryAvailableMb");
+  // Frame latency percentiles shown on the overlay, refreshed once per second with the results.
+  @Nullable private LatencyHistogram.Snapshot frameLatencySnapshot;
+
+  // When the stats were last logged, only accessed by the success listener of the results.
+  private long lastStatsLogNs;
+
+  // To keep the latest images and its metadata. Both frames hold a reference that is released once
+  // they are dropped or their detection completes.
   @GuardedBy("this")
-  private ByteBuffer latestImage;
+  private FrameBuffer latestImage;
 
   @GuardedBy("this")
   private FrameMetadata latestImageMetaData;
   // To keep the images and metadata in process.
   @GuardedBy("this")
-  private ByteBuffer processingImage;
+  private FrameBuffer processingImage;
 
   @GuardedBy("this")
   private FrameMetadata processingMetaData;
 
+  private final List<FrameStatsListener> frameStatsListeners = new CopyOnWriteArrayList<>();
+
+  // Records CameraX and Camera2 images for post-mortem replay, see setFrameRecorder().
+  @Nullable private volatile RollingFrameRecorder frameRecorder;
+
+  // Picks the live frames to process, see setFrameAdmissionPolicy().
+  private volatile FrameAdmissionPolicy admissionPolicy;
+
+  // Whether results are handled and overlay frames built on the main thread, as before the result
+  // thread existed. Set in the settings to measure the baseline of mainThreadLatency.
+  private final boolean overlayOnMainThread;
+
   protected VisionProcessorBase(Context context) {
     activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-    executor = new ScopedExecutor(TaskExecutors.MAIN_THREAD);
-    fpsTimer.scheduleAtFixedRate(
-        new TimerTask() {
-          @Override
-          public void run() {
-            framesPerSecond = frameProcessedInOneSecondInterval;
-            frameProcessedInOneSecondInterval = 0;
-          }
-        },
-        /* delay= */ 0,
-        /* period= */ 1000);
-    temperatureMonitor = new TemperatureMonitor(context);
+    TemperatureMonitor.acquire(context);
+    admissionPolicy = PreferenceUtils.getFrameAdmissionPolicy(context);
+    overlayOnMainThread = PreferenceUtils.isOverlayOnMainThreadEnabled(context);
+  }
+
+  /**
+   * Adds a listener for the latency and drops of live preview frames, e.g. an {@link
+   * com.google.mlkit.vision.demo.AdaptiveResolutionController} or a {@link
+   * com.google.mlkit.vision.demo.FrameRateGovernor}.
+   */
+  public void addFrameStatsListener(FrameStatsListener listener) {
+    frameStatsListeners.add(listener);
+  }
+
+  public void removeFrameStatsListener(FrameStatsListener listener) {
+    frameStatsListeners.remove(listener);
+  }
+
+  /**
+   * Offers the CameraX and Camera2 images passing through this processor to {@code recorder}, which
+   * copies the images it keeps right away. Camera1 frames are offered by {@link
+   * com.google.mlkit.vision.demo.CameraSource#setFrameRecorder} instead.
+   */
+  public void setFrameRecorder(@Nullable RollingFrameRecorder recorder) {
+    frameRecorder = recorder;
+  }
+
+  /**
+   * Replaces the policy that decides which live frames of the Camera1, CameraX, Camera2 and replay
+   * sources are processed. Defaults to the policy picked in the settings.
+   */
+  public void setFrameAdmissionPolicy(FrameAdmissionPolicy policy) {
+    admissionPolicy = policy;
+  }
+
+  /** Returns the end-to-end latencies of the frames processed within the last 30 seconds. */
+  public LatencyHistogram.Snapshot getFrameLatencySnapshot() {
+    return frameLatency.snapshot();
+  }
+
+  /** Returns the detector latencies of the frames processed within the last 30 seconds. */
+  public LatencyHistogram.Snapshot getDetectorLatencySnapshot() {
+    return detectorLatency.snapshot();
+  }
+
+  /**
+   * Returns the time it took to prepare the frames processed within the last 30 seconds for the
+   * detector, including the preview bitmap conversion.
+   */
+  public LatencyHistogram.Snapshot getConversionLatencySnapshot() {
+    return conversionLatency.snapshot();
+  }
+
+  /**
+   * Returns the time the main thread spent per frame within the last 30 seconds. With the overlay
+   * built on the main thread, see the settings, this includes handling the whole result.
+   */
+  public LatencyHistogram.Snapshot getMainThreadLatencySnapshot() {
+    return mainThreadLatency.snapshot();
   }
 
   // -----------------Code for processing single still image----------------------------------------
   @Override
   public void processBitmap(Bitmap bitmap, final GraphicOverlay graphicOverlay) {
-    long frameStartMs = SystemClock.elapsedRealtime();
+    long frameStartNs = SystemClock.elapsedRealtimeNanos();
 
     if (isMlImageEnabled(graphicOverlay.getContext())) {
-      MlImage mlImage = new BitmapMlImageBuilder(bitmap).build();
+      long createStartNs = PipelineTracer.beginSection(PipelineTracer.CREATE_INPUT_IMAGE);
+      MlImage mlImage;
+      try {
+        mlImage = new BitmapMlImageBuilder(bitmap).build();
+      } finally {
+        PipelineTracer.endSection(PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+      }
       requestDetectInImage(
           mlImage,
           graphicOverlay,
-          /* originalCameraImage= */ null,
+          /* originalCameraImage= */ Tasks.forResult(null),
           /* shouldShowFps= */ false,
-          frameStartMs);
+          frameStartNs);
       mlImage.close();
 
       return;
     }
 
+    long createStartNs = PipelineTracer.beginSection(PipelineTracer.CREATE_INPUT_IMAGE);
+    InputImage inputImage;
+    try {
+      inputImage = InputImage.fromBitmap(bitmap, 0);
+    } finally {
+      PipelineTracer.endSection(PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+    }
     requestDetectInImage(
-        InputImage.fromBitmap(bitmap, 0),
+        inputImage,
         graphicOverlay,
-        /* originalCameraImage= */ null,
+        /* originalCameraImage= */ Tasks.forResult(null),
         /* shouldShowFps= */ false,
-        frameStartMs);
+        frameStartNs);
   }
 
   // -----------------Code for processing live preview frame from Camera1 API-----------------------
   @Override
-  public synchronized void processByteBuffer(
+  public void processByteBuffer(
       ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
-    latestImage = data;
+    // The caller does not track when the data is released, so it gets no leased buffer back.
+    byte[] nv21;
+    if (data.hasArray() && data.arrayOffset() == 0) {
+      nv21 = data.array();
+    } else {
+      nv21 = new byte[data.remaining()];
+      data.duplicate().get(nv21);
+    }
+    FrameBuffer frame =
+        new FrameBuffer(nv21, frameMetadata.getWidth(), frameMetadata.getHeight(), null).lease();
+    processFrameBuffer(frame, frameMetadata, graphicOverlay);
+    frame.release();
+  }
+
+  @Override
+  public synchronized void processFrameBuffer(
+      FrameBuffer frame, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
+    if (isShutdown) {
+      return;
+    }
+    if (!admit(
+        SystemClock.elapsedRealtimeNanos(),
+        frame.getWidth(),
+        frame.getHeight(),
+        frame.getLumaPlane())) {
+      return;
+    }
+    if (latestImage != null) {
+      // The newer frame replaces the one that was waiting, which is never processed.
+      latestImage.release();
+      framesDroppedBusy.increment();
+      for (FrameStatsListener listener : frameStatsListeners) {
+        listener.onFrameDropped();
+      }
+    }
+    latestImage = frame.retain();
     latestImageMetaData = frameMetadata;
     if (processingImage == null && processingMetaData == null) {
       processLatestImage(graphicOverlay);
@@ -159,52 +315,119 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
     processingMetaData = latestImageMetaData;
     latestImage = null;
     latestImageMetaData = null;
-    if (processingImage != null && processingMetaData != null && !isShutdown) {
+    if (processingImage != null && processingMetaData != null) {
+      if (isShutdown) {
+        processingImage.release();
+        processingImage = null;
+        processingMetaData = null;
+        return;
+      }
       processImage(processingImage, processingMetaData, graphicOverlay);
     }
   }
 
+  /**
+   * Runs detection on {@code frame} and takes over the processor's reference to it, which is
+   * released once the detector is done with the frame data.
+   */
   private void processImage(
-      ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
-    long frameStartMs = SystemClock.elapsedRealtime();
+      FrameBuffer frame, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
+    Task<T> task;
+    try {
+      task = startDetection(frame, frameMetadata, graphicOverlay);
+    } catch (RuntimeException e) {
+      // Nothing will complete for this frame, so hand it back and move on to the next one here.
+      Log.e(TAG, "Failed to start detection on a live frame.", e);
+      frame.release();
+      processLatestImage(graphicOverlay);
+      return;
+    }
+    task
+        // Runs even after the processor is stopped, so the buffer always goes back to its owner.
+        .addOnCompleteListener(MoreExecutors.directExecutor(), t -> frame.release())
+        // A failed detection moves on to the next frame as well, so one error doesn't stall the
+        // preview.
+        .addOnCompleteListener(resultExecutor, t -> processLatestImage(graphicOverlay));
+  }
+
+  /** Converts {@code frame} for the detector and starts detection on it. */
+  private Task<T> startDetection(
+      FrameBuffer frame, final FrameMetadata frameMetadata, final GraphicOverlay graphicOverlay) {
+    long frameStartNs = SystemClock.elapsedRealtimeNanos();
+    ByteBuffer data = frame.getByteBuffer();
 
     // If live viewport is on (that is the underneath surface view takes care of the camera preview
     // drawing), skip the unnecessary bitmap creation that used for the manual preview drawing.
-    Bitmap bitmap =
-        PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())
-            ? null
-            : BitmapUtils.getBitmap(data, frameMetadata);
-
-    if (isMlImageEnabled(graphicOverlay.getContext())) {
-      MlImage mlImage =
-          new ByteBufferMlImageBuilder(
-                  data,
-                  frameMetadata.getWidth(),
-                  frameMetadata.getHeight(),
-                  MlImage.IMAGE_FORMAT_NV21)
-              .setRotation(frameMetadata.getRotation())
-              .build();
-
-      requestDetectInImage(mlImage, graphicOverlay, bitmap, /* shouldShowFps= */ true, frameStartMs)
-          .addOnSuccessListener(executor, results -> processLatestImage(graphicOverlay));
-
-      // This is optional. Java Garbage collection can also close it eventually.
-      mlImage.close();
-      return;
+    // Otherwise only convert as many pixels as the overlay can show.
+    Bitmap bitmap = null;
+    if (!PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
+      long convertStartNs = PipelineTracer.beginSection(PipelineTracer.CONVERT_BITMAP);
+      try {
+        bitmap =
+            BitmapUtils.getPreviewBitmap(
+                data,
+                frameMetadata,
+                graphicOverlay.getWidth(),
+                graphicOverlay.getHeight(),
+                graphicOverlay.getBitmapPool());
+      } finally {
+        PipelineTracer.endSection(PipelineTracer.CONVERT_BITMAP, convertStartNs, frameStartNs);
+      }
     }
 
-    requestDetectInImage(
+    long createStartNs = PipelineTracer.beginSection(PipelineTracer.CREATE_INPUT_IMAGE);
+    try {
+      if (isMlImageEnabled(graphicOverlay.getContext())) {
+        MlImage mlImage;
+        try {
+          mlImage =
+              new ByteBufferMlImageBuilder(
+                      data,
+                      frameMetadata.getWidth(),
+                      frameMetadata.getHeight(),
+                      MlImage.IMAGE_FORMAT_NV21)
+                  .setRotation(frameMetadata.getRotation())
+                  .build();
+        } finally {
+          PipelineTracer.endSection(
+              PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+        }
+        Task<T> task =
+            requestDetectInImage(
+                mlImage,
+                graphicOverlay,
+                Tasks.forResult(bitmap),
+                /* shouldShowFps= */ true,
+                frameStartNs);
+        // This is optional. Java Garbage collection can also close it eventually.
+        mlImage.close();
+        return task;
+      }
+
+      InputImage inputImage;
+      try {
+        inputImage =
             InputImage.fromByteBuffer(
                 data,
                 frameMetadata.getWidth(),
                 frameMetadata.getHeight(),
                 frameMetadata.getRotation(),
-                InputImage.IMAGE_FORMAT_NV21),
-            graphicOverlay,
-            bitmap,
-            /* shouldShowFps= */ true,
-            frameStartMs)
-        .addOnSuccessListener(executor, results -> processLatestImage(graphicOverlay));
+                InputImage.IMAGE_FORMAT_NV21);
+      } finally {
+        PipelineTracer.endSection(PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+      }
+      return requestDetectInImage(
+          inputImage,
+          graphicOverlay,
+          Tasks.forResult(bitmap),
+          /* shouldShowFps= */ true,
+          frameStartNs);
+    } catch (RuntimeException e) {
+      if (bitmap != null && graphicOverlay.getBitmapPool() != null) {
+        graphicOverlay.getBitmapPool().release(bitmap);
+      }
+      throw e;
+    }
   }
 
   // -----------------Code for processing live preview frame from CameraX API-----------------------
@@ -212,172 +435,377 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
   @RequiresApi(VERSION_CODES.LOLLIPOP)
   @ExperimentalGetImage
   public void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay) {
-    long frameStartMs = SystemClock.elapsedRealtime();
-    if (isShutdown) {
+    long frameStartNs = SystemClock.elapsedRealtimeNanos();
+    if (isShutdown
+        || !admit(
+            frameStartNs,
+            image.getWidth(),
+            image.getHeight(),
+            BitmapUtils.toPlaneDescriptor(image.getImage().getPlanes()[0]))) {
       image.close();
       return;
     }
 
-    Bitmap bitmap = null;
-    if (!PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
-      bitmap = BitmapUtils.getBitmap(image);
+    int rotationDegrees = image.getImageInfo().getRotationDegrees();
+    // The detector is started first, and the preview bitmap is converted while it runs.
+    TaskCompletionSource<Bitmap> previewBitmap = new TaskCompletionSource<>();
+    Task<T> task;
+    try {
+      task =
+          startDetection(
+              image.getImage(), rotationDegrees, graphicOverlay, previewBitmap, frameStartNs);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to start detection on a camera image.", e);
+      image.close();
+      return;
     }
+    Runnable closeImage = offerToRecorder(image.getImage(), rotationDegrees, image::close);
+    // When the image is from CameraX analysis use case, must call image.close() on received images
+    // when finished using them. Otherwise, new images may not be received or the camera may stall.
+    // The returned task only completes once the preview bitmap is done reading the image as well.
+    task.addOnCompleteListener(results -> closeImage.run());
+    convertPreviewBitmap(
+        image.getImage(), rotationDegrees, graphicOverlay, frameStartNs, previewBitmap);
+  }
 
-    if (isMlImageEnabled(graphicOverlay.getContext())) {
-      MlImage mlImage =
-          new MediaMlImageBuilder(image.getImage())
-              .setRotation(image.getImageInfo().getRotationDegrees())
-              .build();
+  // -----------------Code for processing live preview frame from Camera2 API-----------------------
+  @Override
+  public void processMediaImage(
+      Image image, int rotationDegrees, GraphicOverlay graphicOverlay, Runnable onImageDone) {
+    long frameStartNs = SystemClock.elapsedRealtimeNanos();
+    if (isShutdown
+        || !admit(
+            frameStartNs,
+            image.getWidth(),
+            image.getHeight(),
+            BitmapUtils.toPlaneDescriptor(image.getPlanes()[0]))) {
+      onImageDone.run();
+      return;
+    }
 
-      requestDetectInImage(
-              mlImage,
-              graphicOverlay,
-              /* originalCameraImage= */ bitmap,
-              /* shouldShowFps= */ true,
-              frameStartMs)
-          // When the image is from CameraX analysis use case, must call image.close() on received
-          // images when finished using them. Otherwise, new images may not be received or the
-          // camera may stall.
-          // Currently MlImage doesn't support ImageProxy directly, so we still need to call
-          // ImageProxy.close() here.
-          .addOnCompleteListener(results -> image.close());
+    // The detector is started first, and the preview bitmap is converted while it runs.
+    TaskCompletionSource<Bitmap> previewBitmap = new TaskCompletionSource<>();
+    Task<T> task;
+    try {
+      task = startDetection(image, rotationDegrees, graphicOverlay, previewBitmap, frameStartNs);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to start detection on a camera image.", e);
+      onImageDone.run();
       return;
     }
+    Runnable releaseImage = offerToRecorder(image, rotationDegrees, onImageDone);
+    // The detector and the bitmap conversion read the image planes in place, so the image may only
+    // be handed back once both are done. Runs even after the processor is stopped.
+    task.addOnCompleteListener(MoreExecutors.directExecutor(), results -> releaseImage.run());
+    convertPreviewBitmap(image, rotationDegrees, graphicOverlay, frameStartNs, previewBitmap);
+  }
 
-    requestDetectInImage(
-            InputImage.fromMediaImage(image.getImage(), image.getImageInfo().getRotationDegrees()),
-            graphicOverlay,
-            /* originalCameraImage= */ bitmap,
-            /* shouldShowFps= */ true,
-            frameStartMs)
-        // When the image is from CameraX analysis use case, must call image.close() on received
-        // images when finished using them. Otherwise, new images may not be received or the camera
-        // may stall.
-        .addOnCompleteListener(results -> image.close());
+  /**
+   * Wraps a camera image for the detector and starts detection on it. The returned task completes
+   * once both the detector and {@code previewBitmap} are done with the image.
+   */
+  private Task<T> startDetection(
+      Image image,
+      int rotationDegrees,
+      GraphicOverlay graphicOverlay,
+      TaskCompletionSource<Bitmap> previewBitmap,
+      long frameStartNs) {
+    long createStartNs = PipelineTracer.beginSection(PipelineTracer.CREATE_INPUT_IMAGE);
+    if (isMlImageEnabled(graphicOverlay.getContext())) {
+      MlImage mlImage;
+      try {
+        // Currently MlImage doesn't support ImageProxy directly, so the caller still closes it.
+        mlImage = new MediaMlImageBuilder(image).setRotation(rotationDegrees).build();
+      } finally {
+        PipelineTracer.endSection(PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+      }
+      return requestDetectInImage(
+          mlImage,
+          graphicOverlay,
+          /* originalCameraImage= */ previewBitmap.getTask(),
+          /* shouldShowFps= */ true,
+          frameStartNs);
+    }
+
+    InputImage inputImage;
+    try {
+      inputImage = InputImage.fromMediaImage(image, rotationDegrees);
+    } finally {
+      PipelineTracer.endSection(PipelineTracer.CREATE_INPUT_IMAGE, createStartNs, frameStartNs);
+    }
+    return requestDetectInImage(
+        inputImage,
+        graphicOverlay,
+        /* originalCameraImage= */ previewBitmap.getTask(),
+        /* shouldShowFps= */ true,
+        frameStartNs);
+  }
+
+  /** Asks the admission policy whether a live frame is processed, and counts it if not. */
+  private boolean admit(long frameStartNs, int width, int height, PlaneDescriptor luma) {
+    if (admissionPolicy.admit(frameStartNs, width, height, luma)) {
+      return true;
+    }
+    framesSkippedByPolicy.increment();
+    return false;
+  }
+
+  /**
+   * Offers {@code image} to the recorder while the detector runs. Returns the callback to run
+   * instead of {@code onImageDone} once the detector is done, see {@link
+   * RollingFrameRecorder#offer(Image, int, Runnable)}.
+   */
+  private Runnable offerToRecorder(
+      @Nullable Image image, int rotationDegrees, Runnable onImageDone) {
+    RollingFrameRecorder recorder = frameRecorder;
+    return recorder != null ? recorder.offer(image, rotationDegrees, onImageDone) : onImageDone;
+  }
+
+  /**
+   * Converts {@code image} to a preview bitmap on the bitmap thread and completes {@code result}
+   * with it, or with null if the live viewport draws the preview or the conversion fails.
+   */
+  private void convertPreviewBitmap(
+      Image image,
+      int rotationDegrees,
+      GraphicOverlay graphicOverlay,
+      long frameStartNs,
+      TaskCompletionSource<Bitmap> result) {
+    if (PreferenceUtils.isCameraLiveViewportEnabled(graphicOverlay.getContext())) {
+      result.setResult(null);
+      return;
+    }
+    int viewWidth = graphicOverlay.getWidth();
+    int viewHeight = graphicOverlay.getHeight();
+    BitmapPool bitmapPool = graphicOverlay.getBitmapPool();
+    try {
+      bitmapExecutor.execute(
+          () -> {
+            long convertStartNs = PipelineTracer.beginSection(PipelineTracer.CONVERT_BITMAP);
+            try {
+              result.setResult(
+                  BitmapUtils.getPreviewBitmap(
+                      image, rotationDegrees, nv21BufferPool, viewWidth, viewHeight, bitmapPool));
+            } catch (RuntimeException e) {
+              Log.w(TAG, "Failed to convert the preview bitmap.", e);
+              result.setResult(null);
+            } finally {
+              PipelineTracer.endSection(
+                  PipelineTracer.CONVERT_BITMAP, convertStartNs, frameStartNs);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The processor was stopped.
+      result.setResult(null);
+    }
   }
 
   // -----------------Common processing logic-------------------------------------------------------
   private Task<T> requestDetectInImage(
       final InputImage image,
       final GraphicOverlay graphicOverlay,
-      @Nullable final Bitmap originalCameraImage,
+      final Task<Bitmap> originalCameraImage,
       boolean shouldShowFps,
-      long frameStartMs) {
+      long frameStartNs) {
+    long detectorStartNs = onDetectorStart(frameStartNs);
     return setUpListener(
-        detectInImage(image), graphicOverlay, originalCameraImage, shouldShowFps, frameStartMs);
+        detectInImage(image),
+        graphicOverlay,
+        originalCameraImage,
+        shouldShowFps,
+        frameStartNs,
+        detectorStartNs);
   }
 
   private Task<T> requestDetectInImage(
       final MlImage image,
       final GraphicOverlay graphicOverlay,
-      @Nullable final Bitmap originalCameraImage,
+      final Task<Bitmap> originalCameraImage,
       boolean shouldShowFps,
-      long frameStartMs) {
+      long frameStartNs) {
+    long detectorStartNs = onDetectorStart(frameStartNs);
     return setUpListener(
-        detectInImage(image), graphicOverlay, originalCameraImage, shouldShowFps, frameStartMs);
+        detectInImage(image),
+        graphicOverlay,
+        originalCameraImage,
+        shouldShowFps,
+        frameStartNs,
+        detectorStartNs);
+  }
+
+  /** Records the conversion time of a frame and returns the time its detection starts. */
+  private long onDetectorStart(long frameStartNs) {
+    long detectorStartNs = PipelineTracer.beginAsyncSection(PipelineTracer.DETECT, frameStartNs);
+    conversionLatency.record(detectorStartNs - frameStartNs);
+    return detectorStartNs;
   }
 
   private Task<T> setUpListener(
       Task<T> task,
       final GraphicOverlay graphicOverlay,
-      @Nullable final Bitmap originalCameraImage,
+      final Task<Bitmap> originalCameraImage,
       boolean shouldShowFps,
-      long frameStartMs) {
-    final long detectorStartMs = SystemClock.elapsedRealtime();
-    return task.addOnSuccessListener(
-            executor,
+      long frameStartNs,
+      long detectorStartNs) {
+    // When the detector finished, to tell the wait for the result thread apart from the detection.
+    long[] detectorEndNs = new long[1];
+    task.addOnCompleteListener(
+        MoreExecutors.directExecutor(),
+        t -> {
+          PipelineTracer.endAsyncSection(PipelineTracer.DETECT, detectorStartNs, frameStartNs);
+          detectorEndNs[0] = SystemClock.elapsedRealtimeNanos();
+        });
+    // The overlay is updated, and the caller may hand back the frame, once both the detector and
+    // the preview bitmap are done. The joined task has the outcome of the detector.
+    Task<T> joinedTask =
+        Tasks.whenAllComplete(task, originalCameraImage)
+            .continueWithTask(MoreExecutors.directExecutor(), t -> task);
+    Executor successExecutor = overlayOnMainThread ? mainExecutor : resultExecutor;
+    return joinedTask
+        .addOnSuccessListener(
+            successExecutor,
             results -> {
-              long endMs = SystemClock.elapsedRealtime();
-              long currentFrameLatencyMs = endMs - frameStartMs;
-              long currentDetectorLatencyMs = endMs - detectorStartMs;
-              if (numRuns >= 500) {
-                resetLatencyStats();
+              long listenerStartNs = SystemClock.elapsedRealtimeNanos();
+              Bitmap bitmap = getResultOrNull(originalCameraImage);
+              long endNs = SystemClock.elapsedRealtimeNanos();
+              if (detectorEndNs[0] != 0) {
+                PipelineTracer.recordSpan(
+                    PipelineTracer.RESULT_QUEUE, detectorEndNs[0], endNs, frameStartNs);
+              }
+              frameLatency.record(endNs - frameStartNs);
+              detectorLatency.record(endNs - detectorStartNs);
+              long currentFrameLatencyMs = NANOSECONDS.toMillis(endNs - frameStartNs);
+              long currentDetectorLatencyMs = NANOSECONDS.toMillis(endNs - detectorStartNs);
+              framesPerSecond.mark();
+              framesProcessed.increment();
+              if (shouldShowFps) {
+                admissionPolicy.onFrameProcessed(endNs - frameStartNs);
+                for (FrameStatsListener listener : frameStatsListeners) {
+                  listener.onFrameProcessed(currentFrameLatencyMs);
+                }
               }
-              numRuns++;
-              frameProcessedInOneSecondInterval++;
-              totalFrameMs += currentFrameLatencyMs;
-              maxFrameMs = max(currentFrameLatencyMs, maxFrameMs);
-              minFrameMs = min(currentFrameLatencyMs, minFrameMs);
-              totalDetectorMs += currentDetectorLatencyMs;
-              maxDetectorMs = max(currentDetectorLatencyMs, maxDetectorMs);
-              minDetectorMs = min(currentDetectorLatencyMs, minDetectorMs);
-
-              // Only log inference info once per second. When frameProcessedInOneSecondInterval is
-              // equal to 1, it means this is the first frame processed during the current second.
-              if (frameProcessedInOneSecondInterval == 1) {
-                Log.d(TAG, "Num of Runs: " + numRuns);
-                Log.d(
-                    TAG,
-                    "Frame latency: max="
-                        + maxFrameMs
-                        + ", min="
-                        + minFrameMs
-                        + ", avg="
-                        + totalFrameMs / numRuns);
-                Log.d(
-                    TAG,
-                    "Detector latency: max="
-                        + maxDetectorMs
-                        + ", min="
-                        + minDetectorMs
-                        + ", avg="
-                        + totalDetectorMs / numRuns);
+
+              // Only log inference info once per second.
+              if (endNs - lastStatsLogNs >= STATS_LOG_INTERVAL_NANOS) {
+                lastStatsLogNs = endNs;
+                frameLatencySnapshot = frameLatency.snapshot();
                 MemoryInfo mi = new MemoryInfo();
                 activityManager.getMemoryInfo(mi);
-                long availableMegs = mi.availMem / 0x100000L;
-                Log.d(TAG, "Memory available in system: " + availableMegs + " MB");
-                temperatureMonitor.logTemperature();
+                memoryAvailableMb.set(mi.availMem / 0x100000L);
+                Log.d(TAG, "Metrics:\n" + metrics);
+                TemperatureMonitor.logTemperature();
               }
 
-              graphicOverlay.clear();
-              if (originalCameraImage != null) {
-                graphicOverlay.add(new CameraImageGraphic(graphicOverlay, originalCameraImage));
+              OverlayFrame overlayFrame;
+              long onSuccessStartNs = PipelineTracer.beginSection(PipelineTracer.ON_SUCCESS);
+              try {
+                OverlayFrame.Builder builder = new OverlayFrame.Builder(graphicOverlay);
+                if (bitmap != null) {
+                  builder.add(new CameraImageGraphic(graphicOverlay, bitmap));
+                }
+                VisionProcessorBase.this.onSuccess(results, builder);
+                if (!PreferenceUtils.shouldHideDetectionInfo(graphicOverlay.getContext())) {
+                  builder.add(
+                      new InferenceInfoGraphic(
+                          graphicOverlay,
+                          currentFrameLatencyMs,
+                          currentDetectorLatencyMs,
+                          shouldShowFps ? (int) Math.round(framesPerSecond.getRate()) : null,
+                          shouldShowFps ? frameLatencySnapshot : null));
+                }
+                overlayFrame = builder.build();
+              } finally {
+                PipelineTracer.endSection(
+                    PipelineTracer.ON_SUCCESS, onSuccessStartNs, frameStartNs);
               }
-              VisionProcessorBase.this.onSuccess(results, graphicOverlay);
-              if (!PreferenceUtils.shouldHideDetectionInfo(graphicOverlay.getContext())) {
-                graphicOverlay.add(
-                    new InferenceInfoGraphic(
-                        graphicOverlay,
-                        currentFrameLatencyMs,
-                        currentDetectorLatencyMs,
-                        shouldShowFps ? framesPerSecond : null));
+              if (overlayOnMainThread) {
+                // The baseline path is on the main thread already, all of it counts.
+                long publishStartNs = PipelineTracer.beginSection(PipelineTracer.PUBLISH);
+                try {
+                  graphicOverlay.publish(overlayFrame);
+                } finally {
+                  PipelineTracer.endSection(PipelineTracer.PUBLISH, publishStartNs, frameStartNs);
+                  mainThreadLatency.record(SystemClock.elapsedRealtimeNanos() - listenerStartNs);
+                }
+              } else {
+                publish(graphicOverlay, overlayFrame, frameStartNs);
               }
-              graphicOverlay.postInvalidate();
             })
         .addOnFailureListener(
-            executor,
+            resultExecutor,
             e -> {
-              graphicOverlay.clear();
-              graphicOverlay.postInvalidate();
+              Bitmap bitmap = getResultOrNull(originalCameraImage);
+              if (bitmap != null) {
+                // The frame never made it to the overlay, so give its bitmap back directly.
+                graphicOverlay.getBitmapPool().release(bitmap);
+              }
               String error = "Failed to process. Error: " + e.getLocalizedMessage();
-              Toast.makeText(
-                      graphicOverlay.getContext(),
-                      error + "\nCause: " + e.getCause(),
-                      Toast.LENGTH_SHORT)
-                  .show();
               Log.d(TAG, error);
               e.printStackTrace();
               VisionProcessorBase.this.onFailure(e);
+              mainExecutor.execute(
+                  () -> {
+                    graphicOverlay.clear();
+                    Toast.makeText(
+                            graphicOverlay.getContext(),
+                            error + "\nCause: " + e.getCause(),
+                            Toast.LENGTH_SHORT)
+                        .show();
+                  });
             });
   }
 
+  /** Shows {@code overlayFrame} on the main thread, which is all the main thread does per frame. */
+  private void publish(
+      GraphicOverlay graphicOverlay, OverlayFrame overlayFrame, long frameStartNs) {
+    long builtNs = SystemClock.elapsedRealtimeNanos();
+    mainExecutor.execute(
+        () -> {
+          long publishStartNs = PipelineTracer.beginSection(PipelineTracer.PUBLISH);
+          PipelineTracer.recordSpan(
+              PipelineTracer.MAIN_THREAD_QUEUE, builtNs, publishStartNs, frameStartNs);
+          try {
+            graphicOverlay.publish(overlayFrame);
+          } finally {
+            PipelineTracer.endSection(PipelineTracer.PUBLISH, publishStartNs, frameStartNs);
+            mainThreadLatency.record(SystemClock.elapsedRealtimeNanos() - publishStartNs);
+          }
+        });
+  }
+
+  @Nullable
+  private static Bitmap getResultOrNull(Task<Bitmap> task) {
+    return task.isSuccessful() ? task.getResult() : null;
+  }
+
   @Override
   public void stop() {
-    executor.shutdown();
-    isShutdown = true;
-    resetLatencyStats();
-    fpsTimer.cancel();
-    temperatureMonitor.stop();
+    resultExecutor.shutdown();
+    mainExecutor.shutdown();
+    // Lets already queued results finish, so that their frames are handed back.
+    resultThread.shutdown();
+    // Conversions that were already submitted still complete, so their frames are handed back.
+    bitmapExecutor.shutdown();
+    synchronized (this) {
+      if (isShutdown) {
+        return;
+      }
+      isShutdown = true;
+      if (latestImage != null) {
+        latestImage.release();
+        latestImage = null;
+        latestImageMetaData = null;
+      }
+    }
+    TemperatureMonitor.release();
+    MetricsRegistry.getDefault().unregister(metrics);
+    nv21BufferPool.clear();
+    BitmapUtils.invalidatePlaneLayoutCache();
   }
 
-  private void resetLatencyStats() {
-    numRuns = 0;
-    totalFrameMs = 0;
-    maxFrameMs = 0;
-    minFrameMs = Long.MAX_VALUE;
-    totalDetectorMs = 0;
-    maxDetectorMs = 0;
-    minDetectorMs = Long.MAX_VALUE;
+  private LatencyHistogram newLatencyHistogram(String name) {
+    return metrics.histogram(
+        name, SECONDS.toNanos(LATENCY_WINDOW_SECONDS), LATENCY_WINDOW_INTERVALS);
   }
 
   protected abstract Task<T> detectInImage(InputImage image);
@@ -389,7 +817,12 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
             MlKitException.INVALID_ARGUMENT));
   }
 
-  protected abstract void onSuccess(@NonNull T results, @NonNull GraphicOverlay graphicOverlay);
+  /**
+   * Adds the graphics for {@code results} to {@code overlayFrame}. Runs on the result thread, or on
+   * the main thread for the baseline setting, so it must not touch views; the frame is shown on the
+   * main thread afterwards.
+   */
+  protected abstract void onSuccess(@NonNull T results, @NonNull OverlayFrame.Builder overlayFrame);
 
   protected abstract void onFailure(@NonNull Exception e);
 
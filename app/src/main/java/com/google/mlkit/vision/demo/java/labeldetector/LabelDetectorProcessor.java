@@ -21,13 +21,17 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import com.google.android.gms.tasks.Task;
 import com.google.mlkit.vision.common.InputImage;
-import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.OverlayFrame;
+import com.google.mlkit.vision.demo.java.BatchImageProcessor;
 import com.google.mlkit.vision.demo.java.VisionProcessorBase;
 import com.google.mlkit.vision.label.ImageLabel;
 import com.google.mlkit.vision.label.ImageLabeler;
 import com.google.mlkit.vision.label.ImageLabelerOptionsBase;
 import com.google.mlkit.vision.label.ImageLabeling;
 import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /** Custom InputImage Classifier Demo. */
 public class LabelDetectorProcessor extends VisionProcessorBase<List<ImageLabel>> {
@@ -54,11 +58,25 @@ public class LabelDetectorProcessor extends VisionProcessorBase<List<ImageLabel>
 
   @Override
   protected void onSuccess(
-      @NonNull List<ImageLabel> labels, @NonNull GraphicOverlay graphicOverlay) {
-    graphicOverlay.add(new LabelGraphic(graphicOverlay, labels));
+      @NonNull List<ImageLabel> labels, @NonNull OverlayFrame.Builder overlayFrame) {
+    overlayFrame.add(new LabelGraphic(overlayFrame.getOverlay(), labels));
     logExtrasForTesting(labels);
   }
 
+  /** Writes {@code labels} as a "labels" array, see {@link BatchImageProcessor}. */
+  public static void serializeResults(@NonNull List<ImageLabel> labels, @NonNull JSONObject json)
+      throws JSONException {
+    JSONArray array = new JSONArray();
+    for (ImageLabel label : labels) {
+      array.put(
+          new JSONObject()
+              .put("text", label.getText())
+              .put("confidence", label.getConfidence())
+              .put("index", label.getIndex()));
+    }
+    json.put("labels", array);
+  }
+
   private static void logExtrasForTesting(List<ImageLabel> labels) {
     if (labels == null) {
       Log.v(MANUAL_TESTING_LOG, "No labels detected");
@@ -17,17 +17,22 @@
 package com.google.mlkit.vision.demo.java.objectdetector;
 
 import android.content.Context;
+import android.graphics.Rect;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import com.google.android.gms.tasks.Task;
 import com.google.mlkit.vision.common.InputImage;
-import com.google.mlkit.vision.demo.GraphicOverlay;
+import com.google.mlkit.vision.demo.OverlayFrame;
+import com.google.mlkit.vision.demo.java.BatchImageProcessor;
 import com.google.mlkit.vision.demo.java.VisionProcessorBase;
 import com.google.mlkit.vision.objects.DetectedObject;
 import com.google.mlkit.vision.objects.ObjectDetection;
 import com.google.mlkit.vision.objects.ObjectDetector;
 import com.google.mlkit.vision.objects.ObjectDetectorOptionsBase;
 import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /** A processor to run object detector. */
 public class ObjectDetectorProcessor extends VisionProcessorBase<List<DetectedObject>> {
@@ -54,12 +59,39 @@ public class ObjectDetectorProcessor extends VisionProcessorBase<List<DetectedOb
 
   @Override
   protected void onSuccess(
-      @NonNull List<DetectedObject> results, @NonNull GraphicOverlay graphicOverlay) {
+      @NonNull List<DetectedObject> results, @NonNull OverlayFrame.Builder overlayFrame) {
     for (DetectedObject object : results) {
-      graphicOverlay.add(new ObjectGraphic(graphicOverlay, object));
+      overlayFrame.add(new ObjectGraphic(overlayFrame.getOverlay(), object));
     }
   }
 
+  /** Writes {@code results} as an "objects" array, see {@link BatchImageProcessor}. */
+  public static void serializeResults(
+      @NonNull List<DetectedObject> results, @NonNull JSONObject json) throws JSONException {
+    JSONArray objects = new JSONArray();
+    for (DetectedObject object : results) {
+      Rect box = object.getBoundingBox();
+      JSONObject objectJson =
+          new JSONObject()
+              .put(
+                  "boundingBox",
+                  new JSONArray().put(box.left).put(box.top).put(box.right).put(box.bottom));
+      if (object.getTrackingId() != null) {
+        objectJson.put("trackingId", object.getTrackingId().intValue());
+      }
+      JSONArray labels = new JSONArray();
+      for (DetectedObject.Label label : object.getLabels()) {
+        labels.put(
+            new JSONObject()
+                .put("text", label.getText())
+                .put("confidence", label.getConfidence())
+                .put("index", label.getIndex()));
+      }
+      objects.put(objectJson.put("labels", labels));
+    }
+    json.put("objects", objects);
+  }
+
   @Override
   protected void onFailure(@NonNull Exception e) {
     Log.e(TAG, "Object detection failed!", e);
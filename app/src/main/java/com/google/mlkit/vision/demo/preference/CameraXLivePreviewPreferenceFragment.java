@@ -47,6 +47,10 @@ public class CameraXLivePreviewPreferenceFragment extends LivePreviewPreferenceF
         findPreference(getString(R.string.pref_key_rear_camera_preview_size)));
     cameraPreference.removePreference(
         findPreference(getString(R.string.pref_key_front_camera_preview_size)));
+    cameraPreference.removePreference(
+        findPreference(getString(R.string.pref_key_live_preview_camera2)));
+    cameraPreference.removePreference(
+        findPreference(getString(R.string.pref_key_live_preview_frame_recorder)));
     setUpCameraXTargetAnalysisSizePreference(
         R.string.pref_key_camerax_rear_camera_target_resolution, CameraSelector.LENS_FACING_BACK);
     setUpCameraXTargetAnalysisSizePreference(
@@ -30,6 +30,8 @@ import com.google.mlkit.common.model.LocalModel;
 import com.google.mlkit.vision.demo.CameraSource;
 import com.google.mlkit.vision.demo.CameraSource.SizePair;
 import com.google.mlkit.vision.demo.R;
+import com.google.mlkit.vision.demo.frame.FrameAdmissionPolicies;
+import com.google.mlkit.vision.demo.frame.FrameAdmissionPolicy;
 import com.google.mlkit.vision.face.FaceDetectorOptions;
 import com.google.mlkit.vision.facemesh.FaceMeshDetectorOptions;
 import com.google.mlkit.vision.objects.ObjectDetectorOptionsBase.DetectorMode;
@@ -43,6 +45,11 @@ import com.google.mlkit.vision.pose.defaults.PoseDetectorOptions;
 public class PreferenceUtils {
 
   private static final int POSE_DETECTOR_PERFORMANCE_MODE_FAST = 1;
+  private static final int FRAME_ADMISSION_EVERY_NTH = 2;
+  private static final float FRAME_ADMISSION_FIXED_RATE_FPS = 10;
+  private static final float FRAME_ADMISSION_TIME_BUDGET = 0.5f;
+  private static final int FRAME_ADMISSION_MOTION_MIN_MEAN_DIFFERENCE = 8;
+  private static final long FRAME_ADMISSION_MOTION_MAX_INTERVAL_NANOS = 1_000_000_000L;
 
   static void saveString(Context context, @StringRes int prefKeyId, @Nullable String value) {
     PreferenceManager.getDefaultSharedPreferences(context)
@@ -366,6 +373,52 @@ public class PreferenceUtils {
     return sharedPreferences.getBoolean(prefKey, false);
   }
 
+  /**
+   * Returns whether processors handle detector results on the main thread, the baseline for the
+   * main thread latency they log.
+   */
+  public static boolean isOverlayOnMainThreadEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_overlay_on_main_thread);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  /** Returns whether the live preview streams from {@code Camera2Source} instead of Camera1. */
+  public static boolean isCamera2Enabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_live_preview_camera2);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  /** Returns whether the live preview keeps its last frames in a {@code RollingFrameRecorder}. */
+  public static boolean isFrameRecorderEnabled(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_live_preview_frame_recorder);
+    return sharedPreferences.getBoolean(prefKey, false);
+  }
+
+  /** Returns a new instance of the policy that picks the live frames to process. */
+  public static FrameAdmissionPolicy getFrameAdmissionPolicy(Context context) {
+    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    String prefKey = context.getString(R.string.pref_key_frame_admission_policy);
+    String policy = sharedPreferences.getString(prefKey, "");
+    if (policy.equals(
+        context.getString(R.string.pref_entry_values_frame_admission_policy_every_nth))) {
+      return FrameAdmissionPolicies.everyNthFrame(FRAME_ADMISSION_EVERY_NTH);
+    } else if (policy.equals(
+        context.getString(R.string.pref_entry_values_frame_admission_policy_fixed_rate))) {
+      return FrameAdmissionPolicies.fixedRate(FRAME_ADMISSION_FIXED_RATE_FPS);
+    } else if (policy.equals(
+        context.getString(R.string.pref_entry_values_frame_admission_policy_time_budget))) {
+      return FrameAdmissionPolicies.timeBudget(FRAME_ADMISSION_TIME_BUDGET);
+    } else if (policy.equals(
+        context.getString(R.string.pref_entry_values_frame_admission_policy_motion_gated))) {
+      return FrameAdmissionPolicies.motionGated(
+          FRAME_ADMISSION_MOTION_MIN_MEAN_DIFFERENCE, FRAME_ADMISSION_MOTION_MAX_INTERVAL_NANOS);
+    }
+    return FrameAdmissionPolicies.latestOnly();
+  }
+
   public static int getFaceMeshUseCase(Context context) {
     SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
     String prefKey = context.getString(R.string.pref_key_face_mesh_use_case);
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import androidx.annotation.Nullable;
+import androidx.camera.core.ImageProxy;
+import com.google.android.gms.common.images.Size;
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Checks how {@link Camera2Source} schedules the images of a fake device on its processor. */
+public class Camera2SourceTest {
+
+  private FakeDevice device;
+  private FakeProcessor processor;
+  private GraphicOverlay overlay;
+  private Camera2Source source;
+
+  @Before
+  public void setUp() throws Exception {
+    device = new FakeDevice();
+    processor = new FakeProcessor();
+    overlay = mock(GraphicOverlay.class);
+    source = new Camera2Source(device, overlay, Runnable::run);
+    source.setMachineLearningFrameProcessor(processor);
+    source.start();
+  }
+
+  @Test
+  public void onImageAvailable_processesImage() {
+    Image image = device.deliver();
+
+    assertEquals(1, processor.images.size());
+    assertSame(image, processor.images.get(0));
+    assertEquals(FakeDevice.ROTATION_DEGREES, processor.rotations.get(0).intValue());
+    verify(image, never()).close();
+  }
+
+  @Test
+  public void onImageAvailable_whileBusy_processesOnlyLatestImage() {
+    Image first = device.deliver();
+    Image second = device.deliver();
+    Image third = device.deliver();
+    assertEquals(1, processor.images.size());
+
+    processor.finish(0);
+
+    verify(first).close();
+    verify(second).close();
+    assertEquals(2, processor.images.size());
+    assertSame(third, processor.images.get(1));
+    verify(third, never()).close();
+  }
+
+  @Test
+  public void onImageDone_closesImageOnce() {
+    Image image = device.deliver();
+
+    processor.finish(0);
+    processor.finish(0);
+
+    verify(image, times(1)).close();
+  }
+
+  @Test
+  public void onImageDone_withoutNewImages_processesNextDeliveredImage() {
+    device.deliver();
+    processor.finish(0);
+
+    Image next = device.deliver();
+
+    assertEquals(2, processor.images.size());
+    assertSame(next, processor.images.get(1));
+  }
+
+  @Test
+  public void processMediaImage_throws_closesImageAndContinues() {
+    processor.throwOnNext = true;
+    Image failed = device.deliver();
+
+    verify(failed).close();
+
+    Image next = device.deliver();
+    assertSame(next, processor.images.get(processor.images.size() - 1));
+  }
+
+  @Test
+  public void start_setsRotatedSourceInfoOnOverlay() {
+    verify(overlay).setImageSourceInfo(FakeDevice.HEIGHT, FakeDevice.WIDTH, false);
+  }
+
+  @Test
+  public void stop_closesDeviceAndIgnoresLaterImages() {
+    source.stop();
+    assertTrue(device.closed);
+
+    device.listener.onImageAvailable();
+
+    assertEquals(0, processor.images.size());
+  }
+
+  @Test
+  public void withoutProcessor_closesImage() {
+    source.setMachineLearningFrameProcessor(null);
+
+    Image image = device.deliver();
+
+    verify(image).close();
+  }
+
+  /** Queues mocked images and hands out only the newest one, like an ImageReader. */
+  private static class FakeDevice implements Camera2Device {
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final int ROTATION_DEGREES = 90;
+
+    private final Deque<Image> images = new ArrayDeque<>();
+    Listener listener;
+    boolean closed;
+
+    Image deliver() {
+      Image image = mock(Image.class);
+      images.add(image);
+      listener.onImageAvailable();
+      return image;
+    }
+
+    @Override
+    public Size open(int facing, int requestedWidth, int requestedHeight, Listener listener) {
+      this.listener = listener;
+      closed = false;
+      return new Size(WIDTH, HEIGHT);
+    }
+
+    @Override
+    public int getRotationDegrees() {
+      return ROTATION_DEGREES;
+    }
+
+    @Nullable
+    @Override
+    public Image acquireLatestImage() {
+      Image latest = images.pollLast();
+      while (!images.isEmpty()) {
+        images.poll().close();
+      }
+      return latest;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /** Records the images it gets and holds them until {@link #finish} is called. */
+  private static class FakeProcessor implements VisionImageProcessor {
+    final List<Image> images = new ArrayList<>();
+    final List<Integer> rotations = new ArrayList<>();
+    final List<Runnable> onImageDoneCallbacks = new ArrayList<>();
+    boolean throwOnNext;
+
+    void finish(int index) {
+      onImageDoneCallbacks.get(index).run();
+    }
+
+    @Override
+    public void processMediaImage(
+        Image image, int rotationDegrees, GraphicOverlay graphicOverlay, Runnable onImageDone) {
+      if (throwOnNext) {
+        throwOnNext = false;
+        throw new IllegalStateException("Processor failed");
+      }
+      images.add(image);
+      rotations.add(rotationDegrees);
+      onImageDoneCallbacks.add(onImageDone);
+    }
+
+    @Override
+    public void processBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay) {}
+
+    @Override
+    public void processByteBuffer(
+        ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {}
+
+    @Override
+    public void processFrameBuffer(
+        FrameBuffer frame, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {}
+
+    @Override
+    public void processImageProxy(ImageProxy image, GraphicOverlay graphicOverlay) {}
+
+    @Override
+    public void stop() {}
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame.benchmark;
+
+import com.google.mlkit.vision.demo.frame.FrameMailbox;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency from posting a camera frame until the processing thread has picked it up,
+ * comparing the monitor based handoff that CameraSource used before with {@link FrameMailbox}.
+ *
+ * <p>Frames are posted at the given frame rate, so the processing thread is parked in between like
+ * it is on a device, and the wake-up cost is part of every sample. A frame rate of 0 posts frames
+ * back to back, which keeps both threads contending on the handoff.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailboxHandoffBenchmark {
+
+  @Param({"monitor", "mailbox"})
+  public String impl;
+
+  @Param({"30", "60", "0"})
+  public int fps;
+
+  private Handoff handoff;
+  private Thread consumerThread;
+  private final Frame frame = new Frame();
+  private long frameIntervalNs;
+  private long nextFrameNs;
+
+  // Written by the consumer thread once it has taken a frame.
+  private volatile long consumedSequence;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    handoff = impl.equals("mailbox") ? new MailboxHandoff() : new MonitorHandoff();
+    frameIntervalNs = fps > 0 ? TimeUnit.SECONDS.toNanos(1) / fps : 0;
+    consumerThread =
+        new Thread(
+            () -> {
+              Frame taken;
+              while ((taken = handoff.take()) != null) {
+                consumedSequence = taken.sequence;
+              }
+            },
+            "MailboxHandoffBenchmark-consumer");
+    consumerThread.start();
+    nextFrameNs = System.nanoTime();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    handoff.close();
+    consumerThread.join();
+  }
+
+  @Setup(Level.Invocation)
+  public void waitForNextFrame() {
+    if (frameIntervalNs == 0) {
+      return;
+    }
+    nextFrameNs += frameIntervalNs;
+    long delayNs;
+    while ((delayNs = nextFrameNs - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(delayNs);
+    }
+  }
+
+  @Benchmark
+  public long handoff() {
+    // The previous frame has been taken, so the frame object can be reused without allocating.
+    long sequence = frame.sequence + 1;
+    frame.sequence = sequence;
+    handoff.post(frame);
+    while (consumedSequence != sequence) {
+      // Spin, so the measured time is not inflated by parking the posting thread as well.
+    }
+    return sequence;
+  }
+
+  /** A frame handed to the processing thread. */
+  private static final class Frame {
+    long sequence;
+  }
+
+  private interface Handoff {
+    void post(Frame frame);
+
+    /** Waits for the next frame, or returns null once closed. */
+    Frame take();
+
+    void close();
+  }
+
+  /** The handoff of the former CameraSource.FrameProcessingRunnable. */
+  private static final class MonitorHandoff implements Handoff {
+    private final Object lock = new Object();
+    private final Object processorLock = new Object();
+    private boolean active = true;
+    private Frame pendingFrame;
+
+    @Override
+    public void post(Frame frame) {
+      synchronized (lock) {
+        pendingFrame = frame;
+        lock.notifyAll();
+      }
+    }
+
+    @Override
+    public Frame take() {
+      Frame frame;
+      synchronized (lock) {
+        while (active && pendingFrame == null) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return null;
+          }
+        }
+        if (!active) {
+          return null;
+        }
+        frame = pendingFrame;
+        pendingFrame = null;
+      }
+      // Every frame was processed while holding the processor lock.
+      synchronized (processorLock) {
+        return frame;
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (lock) {
+        active = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private static final class MailboxHandoff implements Handoff {
+    private final FrameMailbox<Frame> mailbox = new FrameMailbox<>();
+
+    @Override
+    public void post(Frame frame) {
+      mailbox.post(frame);
+    }
+
+    @Override
+    public Frame take() {
+      return mailbox.take();
+    }
+
+    @Override
+    public void close() {
+      mailbox.close();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame.benchmark;
+
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import com.google.mlkit.vision.demo.frame.ParallelFrameConverter;
+import com.google.mlkit.vision.demo.frame.PlaneLayoutCache;
+import com.google.mlkit.vision.demo.frame.SyntheticPlanes;
+import com.google.mlkit.vision.demo.frame.YuvPlaneUnpacker;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures NV21 to ARGB conversion split into row bands over several workers, to pick the
+ * parallel threshold of {@link ParallelFrameConverter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelConversionBenchmark {
+
+  @Param({"640x480", "1280x720", "1920x1080", "3840x2160"})
+  public String resolution;
+
+  @Param({"1", "2", "4", "8"})
+  public int workers;
+
+  private int width;
+  private int height;
+  private byte[] nv21;
+  private int[] pixels;
+  private ParallelFrameConverter converter;
+
+  @Setup
+  public void setUp() {
+    int[] size = SyntheticPlanes.parseResolution(resolution);
+    width = size[0];
+    height = size[1];
+    FrameBuffer frameBuffer =
+        YuvPlaneUnpacker.toNv21(
+            SyntheticPlanes.create(width, height, SyntheticPlanes.Layout.NV21),
+            width,
+            height,
+            new FrameBufferPool(),
+            new PlaneLayoutCache());
+    nv21 = frameBuffer.array().clone();
+    frameBuffer.release();
+    pixels = new int[width * height];
+    // Split every frame, so small frames show the cost of forking.
+    converter = new ParallelFrameConverter(workers, /* parallelThresholdPixels= */ 0);
+  }
+
+  @TearDown
+  public void tearDown() {
+    converter.shutdown();
+  }
+
+  @Benchmark
+  public int nv21ToArgb() {
+    converter.nv21ToArgb(
+        nv21,
+        width,
+        height,
+        /* rotationDegrees= */ 90,
+        /* flipX= */ false,
+        /* flipY= */ false,
+        pixels);
+    return pixels[0];
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame.benchmark;
+
+import com.google.mlkit.vision.demo.frame.PlaneDescriptor;
+import com.google.mlkit.vision.demo.frame.PlaneLayoutCache;
+import com.google.mlkit.vision.demo.frame.SyntheticPlanes;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-frame cost of deciding whether the chroma planes are NV21: the cached decision,
+ * the full check that runs when the stream changes, and the chroma comparison alone, which used to
+ * run on every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaneLayoutBenchmark {
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  private int width;
+  private int height;
+  private PlaneDescriptor[] planes;
+  private PlaneLayoutCache layoutCache;
+
+  @Setup
+  public void setUp() {
+    int[] size = SyntheticPlanes.parseResolution(resolution);
+    width = size[0];
+    height = size[1];
+    planes = SyntheticPlanes.create(width, height, SyntheticPlanes.Layout.NV21);
+    layoutCache = new PlaneLayoutCache();
+  }
+
+  @Benchmark
+  public boolean cachedLayout() {
+    return layoutCache.isNv21(planes, width, height);
+  }
+
+  @Benchmark
+  public boolean fullCheck() {
+    layoutCache.invalidate();
+    return layoutCache.isNv21(planes, width, height);
+  }
+
+  /** The content comparison that used to run on every frame, as a baseline. */
+  @Benchmark
+  public boolean contentComparison() {
+    ByteBuffer uBuffer = planes[1].getBuffer();
+    ByteBuffer vBuffer = planes[2].getBuffer();
+    int vBufferPosition = vBuffer.position();
+    int uBufferLimit = uBuffer.limit();
+    vBuffer.position(vBufferPosition + 1);
+    uBuffer.limit(uBufferLimit - 1);
+    boolean areNV21 =
+        vBuffer.remaining() == (2 * width * height / 4 - 2) && vBuffer.compareTo(uBuffer) == 0;
+    vBuffer.position(vBufferPosition);
+    uBuffer.limit(uBufferLimit);
+    return areNV21;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame.benchmark;
+
+import com.google.mlkit.vision.demo.frame.FrameBuffer;
+import com.google.mlkit.vision.demo.frame.FrameBufferPool;
+import com.google.mlkit.vision.demo.frame.PlaneDescriptor;
+import com.google.mlkit.vision.demo.frame.PlaneLayoutCache;
+import com.google.mlkit.vision.demo.frame.SyntheticPlanes;
+import com.google.mlkit.vision.demo.frame.YuvPlaneUnpacker;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures packing YUV_420_888 planes into a pooled NV21 buffer, per frame. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaneUnpackBenchmark {
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  @Param({"NV21", "I420", "PADDED_NV21"})
+  public SyntheticPlanes.Layout layout;
+
+  private int width;
+  private int height;
+  private PlaneDescriptor[] planes;
+  private FrameBufferPool pool;
+  private PlaneLayoutCache layoutCache;
+
+  @Setup
+  public void setUp() {
+    int[] size = SyntheticPlanes.parseResolution(resolution);
+    width = size[0];
+    height = size[1];
+    planes = SyntheticPlanes.create(width, height, layout);
+    pool = new FrameBufferPool();
+    layoutCache = new PlaneLayoutCache();
+  }
+
+  @Benchmark
+  public byte toNv21() {
+    FrameBuffer frameBuffer = YuvPlaneUnpacker.toNv21(planes, width, height, pool, layoutCache);
+    byte last = frameBuffer.array()[frameBuffer.array().length - 1];
+    frameBuffer.release();
+    return last;
+  }
+
+  /** Same as {@link #toNv21}, but decides the chroma layout from scratch every frame. */
+  @Benchmark
+  public byte toNv21WithoutLayoutCache() {
+    layoutCache.invalidate();
+    return toNv21();
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of a frame capture file, as written by {@link CaptureFileWriter} and read by {@link
+ * CaptureFileReader}.
+ *
+ * <p>A file starts with {@link #FILE_HEADER_SIZE} bytes: the magic number and the format version.
+ * Each frame follows as a {@link #FRAME_HEADER_SIZE} byte header (timestamp in nanoseconds, width,
+ * height, rotation in degrees and the data length) and then the NV21 data. All numbers are little
+ * endian.
+ */
+final class CaptureFileFormat {
+
+  static final int MAGIC = 0x3132564e; // "NV21"
+  static final int VERSION = 1;
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  static final int FILE_HEADER_SIZE = 8;
+  static final int FRAME_HEADER_SIZE = 24;
+
+  private CaptureFileFormat() {}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the frames of a capture file written by {@link CaptureFileWriter}, see {@link
+ * CaptureFileFormat}.
+ *
+ * <p>The file is memory-mapped, so reading a frame is a single copy from the page cache into a
+ * pooled {@link FrameBuffer}. Frame headers are indexed once when the file is opened. A frame cut
+ * short at the end of the file, e.g. because recording was interrupted, is ignored. Frames may be
+ * read from several threads at the same time.
+ */
+public final class CaptureFileReader implements Closeable {
+
+  // Files are mapped in segments of about this size, as a single mapping is limited to 2 GB.
+  private static final long SEGMENT_SIZE = 256L << 20;
+
+  private final FileInputStream inputStream;
+  private final MappedByteBuffer[] segments;
+  private final int frameCount;
+  private final long[] timestampsNs;
+  private final int[] widths;
+  private final int[] heights;
+  private final int[] rotations;
+  private final int[] segmentIndices;
+  private final int[] dataOffsets;
+
+  private CaptureFileReader(
+      FileInputStream inputStream,
+      MappedByteBuffer[] segments,
+      int frameCount,
+      long[] timestampsNs,
+      int[] widths,
+      int[] heights,
+      int[] rotations,
+      int[] segmentIndices,
+      int[] dataOffsets) {
+    this.inputStream = inputStream;
+    this.segments = segments;
+    this.frameCount = frameCount;
+    this.timestampsNs = timestampsNs;
+    this.widths = widths;
+    this.heights = heights;
+    this.rotations = rotations;
+    this.segmentIndices = segmentIndices;
+    this.dataOffsets = dataOffsets;
+  }
+
+  /**
+   * Opens and indexes a capture file.
+   *
+   * @throws IOException if the file cannot be read or is not a capture file
+   */
+  public static CaptureFileReader open(File file) throws IOException {
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      return index(inputStream);
+    } catch (IOException | RuntimeException e) {
+      inputStream.close();
+      throw e;
+    }
+  }
+
+  private static CaptureFileReader index(FileInputStream inputStream) throws IOException {
+    FileChannel channel = inputStream.getChannel();
+    long fileSize = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(CaptureFileFormat.FRAME_HEADER_SIZE);
+    header.order(CaptureFileFormat.BYTE_ORDER);
+
+    header.limit(CaptureFileFormat.FILE_HEADER_SIZE);
+    if (!readFully(channel, header, 0)
+        || header.getInt(0) != CaptureFileFormat.MAGIC
+        || header.getInt(4) != CaptureFileFormat.VERSION) {
+      throw new IOException("Not a capture file");
+    }
+
+    int capacity = 64;
+    long[] timestampsNs = new long[capacity];
+    int[] widths = new int[capacity];
+    int[] heights = new int[capacity];
+    int[] rotations = new int[capacity];
+    int[] segmentIndices = new int[capacity];
+    int[] dataOffsets = new int[capacity];
+    List<MappedByteBuffer> segments = new ArrayList<>();
+
+    int frameCount = 0;
+    long position = CaptureFileFormat.FILE_HEADER_SIZE;
+    long segmentStart = position;
+    while (true) {
+      header.clear();
+      if (!readFully(channel, header, position)) {
+        break;
+      }
+      int width = header.getInt(8);
+      int height = header.getInt(12);
+      int length = header.getInt(20);
+      if (width <= 0 || height <= 0 || length != FrameBufferPool.getNv21Size(width, height)) {
+        throw new IOException("Corrupt frame header at offset " + position);
+      }
+      long frameEnd = position + CaptureFileFormat.FRAME_HEADER_SIZE + length;
+      if (frameEnd > fileSize) {
+        break;
+      }
+      if (frameEnd - segmentStart > SEGMENT_SIZE && position > segmentStart) {
+        segments.add(map(channel, segmentStart, position));
+        segmentStart = position;
+      }
+
+      if (frameCount == capacity) {
+        capacity *= 2;
+        timestampsNs = Arrays.copyOf(timestampsNs, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        rotations = Arrays.copyOf(rotations, capacity);
+        segmentIndices = Arrays.copyOf(segmentIndices, capacity);
+        dataOffsets = Arrays.copyOf(dataOffsets, capacity);
+      }
+      timestampsNs[frameCount] = header.getLong(0);
+      widths[frameCount] = width;
+      heights[frameCount] = height;
+      rotations[frameCount] = header.getInt(16);
+      segmentIndices[frameCount] = segments.size();
+      dataOffsets[frameCount] =
+          (int) (position + CaptureFileFormat.FRAME_HEADER_SIZE - segmentStart);
+      frameCount++;
+      position = frameEnd;
+    }
+    if (position > segmentStart) {
+      segments.add(map(channel, segmentStart, position));
+    }
+
+    return new CaptureFileReader(
+        inputStream,
+        segments.toArray(new MappedByteBuffer[0]),
+        frameCount,
+        timestampsNs,
+        widths,
+        heights,
+        rotations,
+        segmentIndices,
+        dataOffsets);
+  }
+
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /** Returns the capture timestamp of frame {@code index} in nanoseconds. */
+  public long getTimestampNs(int index) {
+    checkIndex(index);
+    return timestampsNs[index];
+  }
+
+  public int getWidth(int index) {
+    checkIndex(index);
+    return widths[index];
+  }
+
+  public int getHeight(int index) {
+    checkIndex(index);
+    return heights[index];
+  }
+
+  /** Returns the rotation in degrees that makes frame {@code index} upright. */
+  public int getRotation(int index) {
+    checkIndex(index);
+    return rotations[index];
+  }
+
+  /**
+   * Copies the NV21 data of frame {@code index} into a buffer leased from {@code pool}. Callers
+   * must {@link FrameBuffer#release()} it once they are done with the data.
+   */
+  public FrameBuffer readFrame(int index, FrameBufferPool pool) {
+    checkIndex(index);
+    FrameBuffer frame = pool.acquire(widths[index], heights[index]);
+    readFrame(index, frame);
+    return frame;
+  }
+
+  /**
+   * Copies the NV21 data of frame {@code index} into {@code frame}, e.g. a buffer whose recycler
+   * tells when the consumers are done with it.
+   *
+   * @throws IllegalArgumentException if {@code frame} has a different size
+   */
+  public void readFrame(int index, FrameBuffer frame) {
+    checkIndex(index);
+    if (frame.getWidth() != widths[index] || frame.getHeight() != heights[index]) {
+      throw new IllegalArgumentException("Buffer size does not match frame " + index);
+    }
+    // A duplicate keeps concurrent reads from sharing a position.
+    ByteBuffer segment = segments[segmentIndices[index]].duplicate();
+    segment.position(dataOffsets[index]);
+    segment.get(frame.array(), 0, FrameBufferPool.getNv21Size(widths[index], heights[index]));
+  }
+
+  /** Closes the file. The mappings stay valid until they are garbage collected. */
+  @Override
+  public void close() throws IOException {
+    inputStream.close();
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+    }
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long start, long end)
+      throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+  }
+
+  /** Reads until {@code buffer} is full. Returns false if the file ends first. */
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes NV21 frames with their geometry and timestamps into a capture file, see {@link
+ * CaptureFileFormat}. Not thread-safe; frames are written in the order they are passed in.
+ */
+public final class CaptureFileWriter implements Closeable {
+
+  private final FileOutputStream outputStream;
+  private final FileChannel channel;
+  private final ByteBuffer header;
+  private int frameCount;
+
+  public CaptureFileWriter(File file) throws IOException {
+    outputStream = new FileOutputStream(file);
+    channel = outputStream.getChannel();
+    header = ByteBuffer.allocate(CaptureFileFormat.FRAME_HEADER_SIZE);
+    header.order(CaptureFileFormat.BYTE_ORDER);
+    ByteBuffer fileHeader = ByteBuffer.allocate(CaptureFileFormat.FILE_HEADER_SIZE);
+    fileHeader.order(CaptureFileFormat.BYTE_ORDER);
+    fileHeader.putInt(CaptureFileFormat.MAGIC).putInt(CaptureFileFormat.VERSION).flip();
+    try {
+      writeFully(fileHeader);
+    } catch (IOException e) {
+      outputStream.close();
+      throw e;
+    }
+  }
+
+  /** Appends the NV21 data of {@code frame}. */
+  public void writeFrame(FrameBuffer frame, int rotationDegrees, long timestampNs)
+      throws IOException {
+    writeFrame(frame.array(), frame.getWidth(), frame.getHeight(), rotationDegrees, timestampNs);
+  }
+
+  /**
+   * Appends an NV21 frame. Only the first {@link FrameBufferPool#getNv21Size} bytes of {@code
+   * nv21} are written, so buffers with trailing bookkeeping bytes can be passed as they are.
+   */
+  public void writeFrame(
+      byte[] nv21, int width, int height, int rotationDegrees, long timestampNs)
+      throws IOException {
+    int length = FrameBufferPool.getNv21Size(width, height);
+    if (nv21.length < length) {
+      throw new IllegalArgumentException(
+          "Frame data too small for " + width + "x" + height + ": " + nv21.length);
+    }
+    header.clear();
+    header
+        .putLong(timestampNs)
+        .putInt(width)
+        .putInt(height)
+        .putInt(rotationDegrees)
+        .putInt(length)
+        .flip();
+    writeFully(header);
+    writeFully(ByteBuffer.wrap(nv21, 0, length));
+    frameCount++;
+  }
+
+  /** Returns the number of frames written so far. */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    outputStream.close();
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
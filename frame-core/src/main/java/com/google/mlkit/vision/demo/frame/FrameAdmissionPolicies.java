@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The built-in {@link FrameAdmissionPolicy} implementations.
+ *
+ * <p>They trade result freshness for power: every frame that is not admitted saves its conversion
+ * and detection.
+ */
+public final class FrameAdmissionPolicies {
+
+  private FrameAdmissionPolicies() {}
+
+  /** Admits every frame, so the detector works on the latest frame whenever it is idle. */
+  public static FrameAdmissionPolicy latestOnly() {
+    return new LatestOnlyPolicy();
+  }
+
+  /** Admits the first of every {@code n} frames. */
+  public static FrameAdmissionPolicy everyNthFrame(int n) {
+    return new EveryNthFramePolicy(n);
+  }
+
+  /** Admits frames at no more than {@code framesPerSecond}, evenly spaced. */
+  public static FrameAdmissionPolicy fixedRate(float framesPerSecond) {
+    return new FixedRatePolicy(framesPerSecond);
+  }
+
+  /**
+   * Admits frames so that processing takes up no more than {@code budgetFraction} of the time,
+   * based on the recent time from a frame's arrival until its results. E.g. with a budget of 0.5
+   * and 40 ms per frame, frames are admitted at most every 80 ms.
+   */
+  public static FrameAdmissionPolicy timeBudget(float budgetFraction) {
+    return new TimeBudgetPolicy(budgetFraction);
+  }
+
+  /**
+   * Admits a frame if its luma differs from the last admitted frame by more than {@code
+   * minMeanDifference} on average (0 to 255) on a coarse grid of samples, or if no frame was
+   * admitted for {@code maxIntervalNanos}, so results of a still scene are refreshed now and then.
+   */
+  public static FrameAdmissionPolicy motionGated(int minMeanDifference, long maxIntervalNanos) {
+    return new MotionGatedPolicy(minMeanDifference, maxIntervalNanos);
+  }
+
+  private static final class LatestOnlyPolicy implements FrameAdmissionPolicy {
+    @Override
+    public boolean admit(long timestampNanos, int width, int height, PlaneDescriptor luma) {
+      return true;
+    }
+
+    @Override
+    public void onFrameProcessed(long latencyNanos) {}
+  }
+
+  private static final class EveryNthFramePolicy implements FrameAdmissionPolicy {
+    private final int n;
+
+    @GuardedBy("this")
+    private int framesSinceAdmitted;
+
+    EveryNthFramePolicy(int n) {
+      if (n <= 0) {
+        throw new IllegalArgumentException("Invalid frame interval: " + n);
+      }
+      this.n = n;
+    }
+
+    @Override
+    public synchronized boolean admit(
+        long timestampNanos, int width, int height, PlaneDescriptor luma) {
+      boolean admit = framesSinceAdmitted == 0;
+      framesSinceAdmitted = (framesSinceAdmitted + 1) % n;
+      return admit;
+    }
+
+    @Override
+    public void onFrameProcessed(long latencyNanos) {}
+  }
+
+  private static final class FixedRatePolicy implements FrameAdmissionPolicy {
+    private final long intervalNanos;
+
+    @GuardedBy("this")
+    private boolean started;
+
+    @GuardedBy("this")
+    private long nextAdmitNanos;
+
+    FixedRatePolicy(float framesPerSecond) {
+      if (!(framesPerSecond > 0)) {
+        throw new IllegalArgumentException("Invalid frame rate: " + framesPerSecond);
+      }
+      this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / framesPerSecond);
+    }
+
+    @Override
+    public synchronized boolean admit(
+        long timestampNanos, int width, int height, PlaneDescriptor luma) {
+      if (started && timestampNanos < nextAdmitNanos) {
+        return false;
+      }
+      // Stays on the grid while frames keep coming, but never catches up with a burst after a gap.
+      nextAdmitNanos =
+          started && timestampNanos - nextAdmitNanos < intervalNanos
+              ? nextAdmitNanos + intervalNanos
+              : timestampNanos + intervalNanos;
+      started = true;
+      return true;
+    }
+
+    @Override
+    public void onFrameProcessed(long latencyNanos) {}
+  }
+
+  private static final class TimeBudgetPolicy implements FrameAdmissionPolicy {
+    // Weight of the newest latency in its moving average.
+    private static final double SMOOTHING = 0.2;
+
+    private final double budgetFraction;
+
+    @GuardedBy("this")
+    private boolean started;
+
+    @GuardedBy("this")
+    private long lastAdmitNanos;
+
+    @GuardedBy("this")
+    private double averageLatencyNanos;
+
+    TimeBudgetPolicy(float budgetFraction) {
+      if (!(budgetFraction > 0 && budgetFraction <= 1)) {
+        throw new IllegalArgumentException("Invalid time budget: " + budgetFraction);
+      }
+      this.budgetFraction = budgetFraction;
+    }
+
+    @Override
+    public synchronized boolean admit(
+        long timestampNanos, int width, int height, PlaneDescriptor luma) {
+      if (started && timestampNanos - lastAdmitNanos < averageLatencyNanos / budgetFraction) {
+        return false;
+      }
+      started = true;
+      lastAdmitNanos = timestampNanos;
+      return true;
+    }
+
+    @Override
+    public synchronized void onFrameProcessed(long latencyNanos) {
+      averageLatencyNanos =
+          averageLatencyNanos == 0
+              ? latencyNanos
+              : averageLatencyNanos + SMOOTHING * (latencyNanos - averageLatencyNanos);
+    }
+  }
+
+  private static final class MotionGatedPolicy implements FrameAdmissionPolicy {
+    // The luma is compared on a GRID_SIZE x GRID_SIZE grid of single pixels.
+    private static final int GRID_SIZE = 16;
+
+    private final int minMeanDifference;
+    private final long maxIntervalNanos;
+
+    @GuardedBy("this")
+    private final byte[] admittedSamples = new byte[GRID_SIZE * GRID_SIZE];
+
+    @GuardedBy("this")
+    private final byte[] samples = new byte[GRID_SIZE * GRID_SIZE];
+
+    @GuardedBy("this")
+    private boolean started;
+
+    @GuardedBy("this")
+    private long lastAdmitNanos;
+
+    MotionGatedPolicy(int minMeanDifference, long maxIntervalNanos) {
+      if (minMeanDifference < 0 || maxIntervalNanos <= 0) {
+        throw new IllegalArgumentException(
+            "Invalid motion gate: " + minMeanDifference + ", " + maxIntervalNanos);
+      }
+      this.minMeanDifference = minMeanDifference;
+      this.maxIntervalNanos = maxIntervalNanos;
+    }
+
+    @Override
+    public synchronized boolean admit(
+        long timestampNanos, int width, int height, PlaneDescriptor luma) {
+      ByteBuffer buffer = luma.getBuffer();
+      int rowStride = luma.getRowStride();
+      int pixelStride = luma.getPixelStride();
+      long totalDifference = 0;
+      for (int row = 0; row < GRID_SIZE; row++) {
+        int y = (2 * row + 1) * height / (2 * GRID_SIZE);
+        for (int column = 0; column < GRID_SIZE; column++) {
+          int x = (2 * column + 1) * width / (2 * GRID_SIZE);
+          int i = row * GRID_SIZE + column;
+          // Absolute reads, so the position of the shared buffer is left alone.
+          samples[i] = buffer.get(buffer.position() + y * rowStride + x * pixelStride);
+          totalDifference += Math.abs((samples[i] & 0xFF) - (admittedSamples[i] & 0xFF));
+        }
+      }
+      if (started
+          && timestampNanos - lastAdmitNanos < maxIntervalNanos
+          && totalDifference <= (long) minMeanDifference * samples.length) {
+        return false;
+      }
+      started = true;
+      lastAdmitNanos = timestampNanos;
+      System.arraycopy(samples, 0, admittedSamples, 0, samples.length);
+      return true;
+    }
+
+    @Override
+    public void onFrameProcessed(long latencyNanos) {}
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+/**
+ * Decides which live frames are handed to the detector, see {@link FrameAdmissionPolicies} for the
+ * built-in policies.
+ *
+ * <p>Every frame a camera or replay source delivers is offered to the policy before any work is
+ * done on it; rejected frames are handed straight back to the source. Admitted frames still go
+ * through the processor's usual handoff, which keeps only the latest frame while the detector is
+ * busy. Implementations keep per-stream state, so each processor needs its own instance, and they
+ * may be called from the source thread and the result thread at the same time.
+ */
+public interface FrameAdmissionPolicy {
+
+  /**
+   * Returns whether the frame that arrived at {@code timestampNanos} should be processed.
+   *
+   * @param luma the Y plane of the frame, only valid during the call and only read by policies
+   *     that look at the frame content
+   */
+  boolean admit(long timestampNanos, int width, int height, PlaneDescriptor luma);
+
+  /**
+   * Called once the results of an admitted frame are ready, with the time from its arrival until
+   * then.
+   */
+  void onFrameProcessed(long latencyNanos);
+}
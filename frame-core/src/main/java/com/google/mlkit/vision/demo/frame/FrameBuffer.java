@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted NV21 frame buffer, leased from a {@link FrameBufferPool} or from a camera
+ * source that owns its own buffers.
+ *
+ * <p>The backing array and its {@link ByteBuffer} view are allocated once and reused for every
+ * lease, so handing frames around does not produce garbage. A lease starts with a reference count
+ * of one. Every consumer that keeps the frame beyond the call that handed it over, e.g. an
+ * asynchronous detector or a recorder, calls {@link #retain()} and later {@link #release()}. Once
+ * the last reference is released the buffer goes back to its owner, which may then overwrite it.
+ */
+public final class FrameBuffer {
+
+  /** Takes back buffers whose last reference was released. */
+  public interface Recycler {
+    void recycle(FrameBuffer buffer);
+  }
+
+  @Nullable private final Recycler recycler;
+  private final int width;
+  private final int height;
+  private final byte[] data;
+  private final ByteBuffer byteBuffer;
+  private final AtomicInteger refCount = new AtomicInteger();
+  @Nullable private volatile PlaneDescriptor lumaPlane;
+
+  /**
+   * Wraps {@code data} as a frame buffer that is not leased yet. Once leased and released, it is
+   * handed to {@code recycler}, or simply dropped if that is null.
+   */
+  public FrameBuffer(byte[] data, int width, int height, @Nullable Recycler recycler) {
+    this.recycler = recycler;
+    this.width = width;
+    this.height = height;
+    this.data = data;
+    this.byteBuffer = ByteBuffer.wrap(data);
+  }
+
+  FrameBuffer(FrameBufferPool pool, int width, int height, int size) {
+    this(new byte[size], width, height, pool::recycle);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the backing array of this buffer. */
+  public byte[] array() {
+    return data;
+  }
+
+  /** Returns a rewound {@link ByteBuffer} view over the whole backing array. */
+  public ByteBuffer getByteBuffer() {
+    byteBuffer.clear();
+    return byteBuffer;
+  }
+
+  /**
+   * Returns the Y plane of the NV21 frame, for readers that only look at the luma. Created once,
+   * since the buffer is reused for many frames.
+   */
+  public PlaneDescriptor getLumaPlane() {
+    PlaneDescriptor plane = lumaPlane;
+    if (plane == null) {
+      plane = new LumaPlane(ByteBuffer.wrap(data, 0, width * height).slice(), width);
+      lumaPlane = plane;
+    }
+    return plane;
+  }
+
+  /**
+   * Starts a new lease with a reference count of one. Called by the owner of the buffer when it
+   * hands the buffer out.
+   *
+   * @throws IllegalStateException if the buffer is still leased
+   */
+  public FrameBuffer lease() {
+    if (!refCount.compareAndSet(0, 1)) {
+      throw new IllegalStateException("Frame buffer is already leased");
+    }
+    return this;
+  }
+
+  /**
+   * Adds a reference, keeping the frame data valid until a matching {@link #release()}.
+   *
+   * @throws IllegalStateException if the buffer was already given back to its owner
+   */
+  public FrameBuffer retain() {
+    while (true) {
+      int count = refCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Frame buffer is not leased");
+      }
+      if (refCount.compareAndSet(count, count + 1)) {
+        return this;
+      }
+    }
+  }
+
+  /**
+   * Drops a reference. When the last reference is dropped the buffer goes back to its owner, and
+   * it must not be used by this caller anymore.
+   *
+   * @throws IllegalStateException if the buffer was already given back to its owner
+   */
+  public void release() {
+    int count = refCount.decrementAndGet();
+    if (count < 0) {
+      refCount.incrementAndGet();
+      throw new IllegalStateException("Frame buffer released more often than retained");
+    }
+    if (count == 0 && recycler != null) {
+      recycler.recycle(this);
+    }
+  }
+
+  /** Returns the number of references currently held, 0 if the buffer is not leased. */
+  public int getRefCount() {
+    return refCount.get();
+  }
+
+  /** The Y plane at the start of an NV21 buffer. */
+  private static final class LumaPlane implements PlaneDescriptor {
+    private final ByteBuffer buffer;
+    private final int rowStride;
+
+    LumaPlane(ByteBuffer buffer, int rowStride) {
+      this.buffer = buffer;
+      this.rowStride = rowStride;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public int getRowStride() {
+      return rowStride;
+    }
+
+    @Override
+    public int getPixelStride() {
+      return 1;
+    }
+  }
+}
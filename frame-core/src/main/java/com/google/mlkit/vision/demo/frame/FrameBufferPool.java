@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of NV21 {@link FrameBuffer}s keyed by frame geometry.
+ *
+ * <p>Camera streams deliver frames of the same size for long stretches of time, so a couple of
+ * buffers per geometry are enough to convert every frame without allocating. Buffers are handed
+ * out with {@link #acquire(int, int)} and come back once their last reference is released, see
+ * {@link FrameBuffer}.
+ */
+public class FrameBufferPool {
+
+  private static final int DEFAULT_MAX_FREE_BUFFERS_PER_SIZE = 3;
+
+  private final Object lock = new Object();
+  private final int maxFreeBuffersPerSize;
+
+  // The number of distinct geometries in a session is tiny, so a list scan is cheaper than a map
+  // and does not box the lookup key on every frame.
+  @GuardedBy("lock")
+  private final List<SizeBucket> buckets = new ArrayList<>();
+
+  public FrameBufferPool() {
+    this(DEFAULT_MAX_FREE_BUFFERS_PER_SIZE);
+  }
+
+  public FrameBufferPool(int maxFreeBuffersPerSize) {
+    if (maxFreeBuffersPerSize <= 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + maxFreeBuffersPerSize);
+    }
+    this.maxFreeBuffersPerSize = maxFreeBuffersPerSize;
+  }
+
+  /** Returns the size in bytes of an NV21 frame with the given dimensions. */
+  public static int getNv21Size(int width, int height) {
+    int imageSize = width * height;
+    return imageSize + 2 * (imageSize / 4);
+  }
+
+  /**
+   * Leases a buffer that is large enough to hold an NV21 frame of the given size. The content of
+   * the returned buffer is undefined.
+   */
+  public FrameBuffer acquire(int width, int height) {
+    synchronized (lock) {
+      SizeBucket bucket = getOrCreateBucket(width, height);
+      FrameBuffer buffer = bucket.freeBuffers.poll();
+      if (buffer != null) {
+        return buffer.lease();
+      }
+    }
+    return new FrameBuffer(this, width, height, getNv21Size(width, height)).lease();
+  }
+
+  /** Drops all free buffers, e.g. when the camera stream is closed. */
+  public void clear() {
+    synchronized (lock) {
+      buckets.clear();
+    }
+  }
+
+  void recycle(FrameBuffer buffer) {
+    synchronized (lock) {
+      SizeBucket bucket = getOrCreateBucket(buffer.getWidth(), buffer.getHeight());
+      if (bucket.freeBuffers.size() < maxFreeBuffersPerSize
+          && !bucket.freeBuffers.contains(buffer)) {
+        bucket.freeBuffers.offer(buffer);
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private SizeBucket getOrCreateBucket(int width, int height) {
+    for (int i = 0; i < buckets.size(); i++) {
+      SizeBucket bucket = buckets.get(i);
+      if (bucket.width == width && bucket.height == height) {
+        return bucket;
+      }
+    }
+    SizeBucket bucket = new SizeBucket(width, height, maxFreeBuffersPerSize);
+    buckets.add(bucket);
+    return bucket;
+  }
+
+  /** Free buffers of one frame geometry. */
+  private static class SizeBucket {
+    final int width;
+    final int height;
+    final ArrayDeque<FrameBuffer> freeBuffers;
+
+    SizeBucket(int width, int height, int capacity) {
+      this.width = width;
+      this.height = height;
+      this.freeBuffers = new ArrayDeque<>(capacity);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shrinks camera frames by keeping every {@code factor}-th pixel of every {@code factor}-th row,
+ * writing NV21 or, if only the luma is wanted, just the Y plane.
+ *
+ * <p>Decimation is crude but cheap, which suits recording frames for later inspection. Output
+ * dimensions are rounded down to even numbers, so the output is always valid NV21.
+ */
+public final class FrameDownsampler {
+
+  private static final ThreadLocal<byte[]> rowScratch = new ThreadLocal<>();
+
+  private FrameDownsampler() {}
+
+  /** Returns the output size of a dimension of {@code size} pixels. */
+  public static int getOutputSize(int size, int factor) {
+    return (size / factor) & ~1;
+  }
+
+  /** Returns the number of bytes written for an output frame of the given size. */
+  public static int getOutputLength(int outputWidth, int outputHeight, boolean lumaOnly) {
+    int lumaLength = outputWidth * outputHeight;
+    return lumaOnly ? lumaLength : lumaLength + 2 * (lumaLength / 4);
+  }
+
+  /**
+   * Returns the smallest power of two that shrinks {@code width} x {@code height} to fit into
+   * {@code maxWidth} x {@code maxHeight}.
+   */
+  public static int selectFactor(int width, int height, int maxWidth, int maxHeight) {
+    int factor = 1;
+    while (width / factor > maxWidth || height / factor > maxHeight) {
+      factor *= 2;
+    }
+    return factor;
+  }
+
+  /** Writes a downsampled copy of an NV21 frame to {@code out}. */
+  public static void downsampleNv21(
+      byte[] nv21, int width, int height, int factor, boolean lumaOnly, ByteBuffer out) {
+    int outputWidth = getOutputSize(width, factor);
+    int outputHeight = getOutputSize(height, factor);
+    if (factor == 1) {
+      for (int y = 0; y < outputHeight; y++) {
+        out.put(nv21, y * width, outputWidth);
+      }
+    } else {
+      byte[] row = obtainRowScratch(outputWidth);
+      for (int y = 0; y < outputHeight; y++) {
+        int rowStart = y * factor * width;
+        for (int x = 0; x < outputWidth; x++) {
+          row[x] = nv21[rowStart + x * factor];
+        }
+        out.put(row, 0, outputWidth);
+      }
+    }
+    if (lumaOnly) {
+      return;
+    }
+
+    // The interleaved VU rows of NV21 are as wide as the luma rows.
+    byte[] row = obtainRowScratch(outputWidth);
+    int chromaStart = width * height;
+    for (int y = 0; y < outputHeight / 2; y++) {
+      int rowStart = chromaStart + y * factor * width;
+      for (int x = 0; x < outputWidth / 2; x++) {
+        int index = rowStart + x * factor * 2;
+        row[2 * x] = nv21[index];
+        row[2 * x + 1] = nv21[index + 1];
+      }
+      out.put(row, 0, outputWidth);
+    }
+  }
+
+  /** Writes a downsampled NV21 copy of a YUV_420_888 image to {@code out}. */
+  public static void downsampleYuv420(
+      PlaneDescriptor[] planes,
+      int width,
+      int height,
+      int factor,
+      boolean lumaOnly,
+      ByteBuffer out) {
+    int outputWidth = getOutputSize(width, factor);
+    int outputHeight = getOutputSize(height, factor);
+    byte[] row = obtainRowScratch(outputWidth);
+
+    ByteBuffer yBuffer = planes[0].getBuffer();
+    int yRowStride = planes[0].getRowStride();
+    int yPixelStride = planes[0].getPixelStride();
+    for (int y = 0; y < outputHeight; y++) {
+      int rowStart = y * factor * yRowStride;
+      for (int x = 0; x < outputWidth; x++) {
+        row[x] = yBuffer.get(rowStart + x * factor * yPixelStride);
+      }
+      out.put(row, 0, outputWidth);
+    }
+    if (lumaOnly) {
+      return;
+    }
+
+    ByteBuffer uBuffer = planes[1].getBuffer();
+    ByteBuffer vBuffer = planes[2].getBuffer();
+    int uvRowStride = planes[1].getRowStride();
+    int uvPixelStride = planes[1].getPixelStride();
+    for (int y = 0; y < outputHeight / 2; y++) {
+      int rowStart = y * factor * uvRowStride;
+      for (int x = 0; x < outputWidth / 2; x++) {
+        int index = rowStart + x * factor * uvPixelStride;
+        row[2 * x] = vBuffer.get(index);
+        row[2 * x + 1] = uBuffer.get(index);
+      }
+      out.put(row, 0, outputWidth);
+    }
+  }
+
+  private static byte[] obtainRowScratch(int size) {
+    byte[] row = rowScratch.get();
+    if (row == null || row.length < size) {
+      row = new byte[size];
+      rowScratch.set(row);
+    }
+    return row;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free, single-slot mailbox that hands the latest frame from a producer to one consumer
+ * thread.
+ *
+ * <p>Posting swaps the new frame into the slot with an atomic exchange, so a frame that the
+ * consumer has not taken yet is displaced and returned to the producer, which can recycle it right
+ * away. The consumer parks with {@link LockSupport} while the slot is empty and is unparked by the
+ * next post.
+ *
+ * @param <T> The type of the frames.
+ */
+public final class FrameMailbox<T> {
+
+  private final AtomicReference<T> slot = new AtomicReference<>();
+
+  // Both fields are read by the other side right after it writes its own, so that either the
+  // producer sees the parked consumer or the consumer sees the posted frame.
+  @Nullable private volatile Thread consumer;
+  private volatile boolean closed;
+
+  /**
+   * Makes {@code frame} the latest frame and wakes the consumer. Returns the frame it displaced,
+   * or {@code frame} itself if the mailbox is closed, so the caller can recycle it.
+   */
+  @Nullable
+  public T post(T frame) {
+    if (closed) {
+      return frame;
+    }
+    T displaced = slot.getAndSet(frame);
+    Thread waiter = consumer;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    return displaced;
+  }
+
+  /** Takes the latest frame without waiting, or returns null if there is none. */
+  @Nullable
+  public T poll() {
+    return slot.getAndSet(null);
+  }
+
+  /**
+   * Waits for a frame and takes it. Returns null once the mailbox is closed or the calling thread
+   * is interrupted. Must only be called from one thread at a time.
+   */
+  @Nullable
+  public T take() {
+    consumer = Thread.currentThread();
+    try {
+      while (true) {
+        T frame = slot.getAndSet(null);
+        if (frame != null) {
+          return frame;
+        }
+        if (closed || Thread.interrupted()) {
+          return null;
+        }
+        LockSupport.park(this);
+      }
+    } finally {
+      consumer = null;
+    }
+  }
+
+  /**
+   * Closes the mailbox and wakes the consumer. Returns the frame that was not taken yet, if any, so
+   * the caller can recycle it.
+   */
+  @Nullable
+  public T close() {
+    closed = true;
+    Thread waiter = consumer;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    return slot.getAndSet(null);
+  }
+
+  /**
+   * Reopens the mailbox. Returns a frame that was posted concurrently with {@link #close()}, if
+   * any, so the caller can recycle it.
+   */
+  @Nullable
+  public T open() {
+    T stale = slot.getAndSet(null);
+    closed = false;
+    return stale;
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.GuardedBy;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A preallocated, memory-mapped file that holds the most recent frames in a fixed number of slots,
+ * overwriting the oldest frame once all slots are used.
+ *
+ * <p>Frames are written straight into the mapping, so they reach the file even if the app dies
+ * right after, and a ring left behind by a crashed session can be reopened with {@link
+ * #open(File)}. A slot is marked empty while it is written and only gets its sequence number once
+ * the frame is complete, so a torn write is never exported.
+ *
+ * <p>Each slot holds an NV21 or a luma-only frame. {@link #export(CaptureFileWriter)} writes the
+ * frames in capture order as a capture file that {@link CaptureFileReader} can replay, filling in
+ * neutral chroma for luma-only frames.
+ */
+public final class FrameRingFile implements Closeable {
+
+  public static final int FORMAT_NV21 = 0;
+  public static final int FORMAT_LUMA = 1;
+
+  private static final int MAGIC = 0x474e4952; // "RING"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 16;
+  // Sequence number, timestamp, width, height, rotation, format and data length.
+  private static final int SLOT_HEADER_SIZE = 40;
+  private static final int SEQUENCE_OFFSET = 0;
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer buffer;
+  private final int slotCount;
+  private final int slotDataSize;
+  private final int slotSize;
+
+  // The sequence number of the next frame, and the slot it goes to.
+  @GuardedBy("this")
+  private long nextSequence;
+
+  @GuardedBy("this")
+  private int nextSlot;
+
+  // The slot of the frame being written, or -1.
+  @GuardedBy("this")
+  private int writeSlot = -1;
+
+  private FrameRingFile(RandomAccessFile file, int slotCount, int slotDataSize) throws IOException {
+    this.file = file;
+    this.slotCount = slotCount;
+    this.slotDataSize = slotDataSize;
+    this.slotSize = SLOT_HEADER_SIZE + slotDataSize;
+    buffer =
+        file.getChannel()
+            .map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + (long) slotCount * slotSize);
+    buffer.order(CaptureFileFormat.BYTE_ORDER);
+  }
+
+  /**
+   * Creates a ring of {@code slotCount} frames of up to {@code slotDataSize} bytes each, replacing
+   * any existing file.
+   */
+  public static FrameRingFile create(File file, int slotCount, int slotDataSize)
+      throws IOException {
+    long length = FILE_HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE + slotDataSize);
+    if (slotCount <= 0 || slotDataSize <= 0 || length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Invalid ring size: " + slotCount + " slots of " + slotDataSize + " bytes");
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(0);
+      randomAccessFile.setLength(length);
+      FrameRingFile ring = new FrameRingFile(randomAccessFile, slotCount, slotDataSize);
+      ring.buffer
+          .putInt(0, MAGIC)
+          .putInt(4, VERSION)
+          .putInt(8, slotCount)
+          .putInt(12, slotDataSize);
+      ring.nextSequence = 1;
+      return ring;
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /** Opens an existing ring, e.g. one left behind by a previous session, to export its frames. */
+  public static FrameRingFile open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.order(CaptureFileFormat.BYTE_ORDER);
+      randomAccessFile.getChannel().read(header, 0);
+      int slotCount = header.getInt(8);
+      int slotDataSize = header.getInt(12);
+      if (header.position() < FILE_HEADER_SIZE
+          || header.getInt(0) != MAGIC
+          || header.getInt(4) != VERSION
+          || slotCount <= 0
+          || slotDataSize <= 0
+          || randomAccessFile.length()
+              < FILE_HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE + slotDataSize)) {
+        throw new IOException("Not a frame ring file");
+      }
+      FrameRingFile ring = new FrameRingFile(randomAccessFile, slotCount, slotDataSize);
+      // Continue after the newest frame.
+      for (int slot = 0; slot < slotCount; slot++) {
+        long sequence = ring.buffer.getLong(ring.getSlotOffset(slot) + SEQUENCE_OFFSET);
+        if (sequence >= ring.nextSequence) {
+          ring.nextSequence = sequence + 1;
+          ring.nextSlot = (slot + 1) % slotCount;
+        }
+      }
+      ring.nextSequence = Math.max(ring.nextSequence, 1);
+      return ring;
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  /** Returns the maximum number of bytes of a single frame. */
+  public int getSlotDataSize() {
+    return slotDataSize;
+  }
+
+  /**
+   * Starts writing a frame into the oldest slot and returns a buffer over its data, to be filled
+   * with exactly {@code length} bytes before calling {@link #commitFrame()}. Frames must be written
+   * from one thread at a time.
+   */
+  public synchronized ByteBuffer beginFrame(
+      long timestampNs, int width, int height, int rotationDegrees, int format, int length) {
+    if (length > slotDataSize) {
+      throw new IllegalArgumentException("Frame of " + length + " bytes does not fit the ring");
+    }
+    // A frame that was started but never committed leaves its slot empty, which is reused here.
+    writeSlot = nextSlot;
+    int offset = getSlotOffset(writeSlot);
+    buffer
+        .putLong(offset + SEQUENCE_OFFSET, 0)
+        .putLong(offset + 8, timestampNs)
+        .putInt(offset + 16, width)
+        .putInt(offset + 20, height)
+        .putInt(offset + 24, rotationDegrees)
+        .putInt(offset + 28, format)
+        .putInt(offset + 32, length);
+    ByteBuffer data = buffer.duplicate();
+    data.limit(offset + SLOT_HEADER_SIZE + length);
+    data.position(offset + SLOT_HEADER_SIZE);
+    return data.slice();
+  }
+
+  /** Marks the frame started by {@link #beginFrame} as complete. */
+  public synchronized void commitFrame() {
+    if (writeSlot < 0) {
+      throw new IllegalStateException("No frame was started");
+    }
+    buffer.putLong(getSlotOffset(writeSlot) + SEQUENCE_OFFSET, nextSequence++);
+    nextSlot = (writeSlot + 1) % slotCount;
+    writeSlot = -1;
+  }
+
+  /**
+   * Writes all complete frames, oldest first, to {@code writer}. Returns the number of frames
+   * written. Writers wait until the export is done.
+   */
+  public synchronized int export(CaptureFileWriter writer) throws IOException {
+    long[] sequences = new long[slotCount];
+    Integer[] slots = new Integer[slotCount];
+    int frameCount = 0;
+    for (int slot = 0; slot < slotCount; slot++) {
+      long sequence = buffer.getLong(getSlotOffset(slot) + SEQUENCE_OFFSET);
+      if (sequence > 0 && slot != writeSlot) {
+        sequences[slot] = sequence;
+        slots[frameCount++] = slot;
+      }
+    }
+    Arrays.sort(slots, 0, frameCount, (a, b) -> Long.compare(sequences[a], sequences[b]));
+
+    byte[] nv21 = new byte[0];
+    for (int i = 0; i < frameCount; i++) {
+      int offset = getSlotOffset(slots[i]);
+      int width = buffer.getInt(offset + 16);
+      int height = buffer.getInt(offset + 20);
+      int format = buffer.getInt(offset + 28);
+      int length = buffer.getInt(offset + 32);
+      int nv21Length = FrameBufferPool.getNv21Size(width, height);
+      if (nv21.length < nv21Length) {
+        nv21 = new byte[nv21Length];
+      }
+      ByteBuffer data = buffer.duplicate();
+      data.position(offset + SLOT_HEADER_SIZE);
+      data.get(nv21, 0, length);
+      if (format == FORMAT_LUMA) {
+        Arrays.fill(nv21, width * height, nv21Length, (byte) 128);
+      }
+      writer.writeFrame(
+          nv21, width, height, buffer.getInt(offset + 24), buffer.getLong(offset + 8));
+    }
+    return frameCount;
+  }
+
+  /** Flushes the mapping and closes the file. */
+  @Override
+  public void close() throws IOException {
+    buffer.force();
+    file.close();
+  }
+
+  private int getSlotOffset(int slot) {
+    return FILE_HEADER_SIZE + slot * slotSize;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+/**
+ * Index math for rotating and mirroring an image while its pixels are being copied.
+ *
+ * <p>The transform matches {@code Matrix.postRotate(rotationDegrees)} followed by {@code
+ * Matrix.postScale(flipX ? -1 : 1, flipY ? -1 : 1)}: the image is first rotated clockwise by a
+ * multiple of 90 degrees, then mirrored along the axes of the rotated image. Because the mapping
+ * from source coordinates to output index is affine, callers can compute the index of the first
+ * pixel and the steps along x and y once and then walk the source in its natural order.
+ */
+public final class ImageTransform {
+
+  /** Returns the width of the image after rotating it by {@code rotationDegrees}. */
+  public static int getOutputWidth(int width, int height, int rotationDegrees) {
+    return isTransposed(rotationDegrees) ? height : width;
+  }
+
+  /** Returns the height of the image after rotating it by {@code rotationDegrees}. */
+  public static int getOutputHeight(int width, int height, int rotationDegrees) {
+    return isTransposed(rotationDegrees) ? width : height;
+  }
+
+  /**
+   * Returns the row-major index in the output image of source pixel ({@code x}, {@code y}).
+   *
+   * <p>Coordinates outside of the source image are extrapolated linearly, which makes it possible
+   * to derive the per-pixel steps from {@code getOutputIndex(1, 0, ...)} and {@code
+   * getOutputIndex(0, 1, ...)} for any image size.
+   */
+  public static int getOutputIndex(
+      int x,
+      int y,
+      int width,
+      int height,
+      int rotationDegrees,
+      boolean flipX,
+      boolean flipY) {
+    int outX;
+    int outY;
+    switch (normalizeRotation(rotationDegrees)) {
+      case 90:
+        outX = height - 1 - y;
+        outY = x;
+        break;
+      case 180:
+        outX = width - 1 - x;
+        outY = height - 1 - y;
+        break;
+      case 270:
+        outX = y;
+        outY = width - 1 - x;
+        break;
+      default:
+        outX = x;
+        outY = y;
+    }
+    int outWidth = getOutputWidth(width, height, rotationDegrees);
+    int outHeight = getOutputHeight(width, height, rotationDegrees);
+    if (flipX) {
+      outX = outWidth - 1 - outX;
+    }
+    if (flipY) {
+      outY = outHeight - 1 - outY;
+    }
+    return outY * outWidth + outX;
+  }
+
+  /** Returns whether the transform changes the image at all. */
+  public static boolean isIdentity(int rotationDegrees, boolean flipX, boolean flipY) {
+    return normalizeRotation(rotationDegrees) == 0 && !flipX && !flipY;
+  }
+
+  /** Maps any multiple of 90 degrees, including negative ones, into [0, 360). */
+  public static int normalizeRotation(int rotationDegrees) {
+    if (rotationDegrees % 90 != 0) {
+      throw new IllegalArgumentException("Unsupported rotation: " + rotationDegrees);
+    }
+    return ((rotationDegrees % 360) + 360) % 360;
+  }
+
+  private static boolean isTransposed(int rotationDegrees) {
+    int rotation = normalizeRotation(rotationDegrees);
+    return rotation == 90 || rotation == 270;
+  }
+
+  private ImageTransform() {}
+}
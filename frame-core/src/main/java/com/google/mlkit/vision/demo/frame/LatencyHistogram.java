@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds over a sliding time window.
+ *
+ * <p>Values are counted in log-linear buckets: every power of two is split into 16 buckets, so a
+ * percentile is reported within 6.25% of the recorded value, from nanoseconds up to about 18
+ * minutes. The window is split into intervals; recording goes into the interval of the current
+ * time, and an interval is cleared when it is reused, so the histogram covers the last {@code
+ * windowNanos} at interval granularity.
+ *
+ * <p>Recording is lock-free, does not allocate and may be called from any thread. A value recorded
+ * at the very moment its interval is cleared may be lost.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  // Values from 2^(MAX_EXPONENT + 1) on are counted in the last bucket.
+  private static final int MAX_EXPONENT = 40;
+  static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+  // Per interval: the bucket counts followed by the value count, value sum and maximum value.
+  private static final int COUNT_OFFSET = BUCKET_COUNT;
+  private static final int SUM_OFFSET = BUCKET_COUNT + 1;
+  private static final int MAX_OFFSET = BUCKET_COUNT + 2;
+  private static final int INTERVAL_STRIDE = BUCKET_COUNT + 3;
+
+  private final long intervalNanos;
+  private final int intervalCount;
+  private final AtomicLongArray intervalIds;
+  private final AtomicLongArray counts;
+
+  /** Creates a histogram over the last {@code windowNanos}, split into {@code intervalCount}. */
+  public LatencyHistogram(long windowNanos, int intervalCount) {
+    if (intervalCount <= 0 || windowNanos < intervalCount) {
+      throw new IllegalArgumentException("Invalid window: " + windowNanos + "/" + intervalCount);
+    }
+    this.intervalNanos = windowNanos / intervalCount;
+    this.intervalCount = intervalCount;
+    this.intervalIds = new AtomicLongArray(intervalCount);
+    this.counts = new AtomicLongArray(intervalCount * INTERVAL_STRIDE);
+    for (int i = 0; i < intervalCount; i++) {
+      intervalIds.set(i, Long.MIN_VALUE);
+    }
+  }
+
+  /** Records {@code valueNanos} at the current time. */
+  public void record(long valueNanos) {
+    record(valueNanos, System.nanoTime());
+  }
+
+  /** Records {@code valueNanos} at {@code nowNanos}, a {@link System#nanoTime()} timestamp. */
+  public void record(long valueNanos, long nowNanos) {
+    long intervalId = Math.floorDiv(nowNanos, intervalNanos);
+    int interval = (int) Math.floorMod(intervalId, (long) intervalCount);
+    long currentId = intervalIds.get(interval);
+    if (currentId != intervalId) {
+      if (currentId > intervalId) {
+        // The interval of this value already left the window.
+        return;
+      }
+      if (intervalIds.compareAndSet(interval, currentId, intervalId)) {
+        int start = interval * INTERVAL_STRIDE;
+        for (int i = start; i < start + INTERVAL_STRIDE; i++) {
+          counts.set(i, 0);
+        }
+      }
+    }
+
+    long value = Math.max(valueNanos, 0);
+    int start = interval * INTERVAL_STRIDE;
+    counts.incrementAndGet(start + getBucketIndex(value));
+    counts.incrementAndGet(start + COUNT_OFFSET);
+    counts.addAndGet(start + SUM_OFFSET, value);
+    long max;
+    do {
+      max = counts.get(start + MAX_OFFSET);
+    } while (value > max && !counts.compareAndSet(start + MAX_OFFSET, max, value));
+  }
+
+  /** Returns the values recorded within the window that ends now. */
+  public Snapshot snapshot() {
+    return snapshot(System.nanoTime());
+  }
+
+  /** Returns the values recorded within the window that ends at {@code nowNanos}. */
+  public Snapshot snapshot(long nowNanos) {
+    long currentId = Math.floorDiv(nowNanos, intervalNanos);
+    long[] bucketCounts = new long[BUCKET_COUNT];
+    long count = 0;
+    long sum = 0;
+    long max = 0;
+    for (int interval = 0; interval < intervalCount; interval++) {
+      long intervalId = intervalIds.get(interval);
+      if (intervalId > currentId || intervalId <= currentId - intervalCount) {
+        continue;
+      }
+      int start = interval * INTERVAL_STRIDE;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        bucketCounts[i] += counts.get(start + i);
+      }
+      count += counts.get(start + COUNT_OFFSET);
+      sum += counts.get(start + SUM_OFFSET);
+      max = Math.max(max, counts.get(start + MAX_OFFSET));
+    }
+    return new Snapshot(bucketCounts, count, sum, max);
+  }
+
+  static int getBucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** Returns the largest value counted in bucket {@code index}. */
+  static long getBucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  /** The values of a histogram at one point in time. */
+  public static final class Snapshot {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] bucketCounts, long count, long sum, long max) {
+      this.bucketCounts = bucketCounts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMaxNanos() {
+      return max;
+    }
+
+    public long getMeanNanos() {
+      return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * Returns the value that {@code percentile} percent of the values are at or below, or 0 if no
+     * values were recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          return Math.min(getBucketUpperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    /** Formats the p50, p90, p99, p99.9 and maximum values in milliseconds. */
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "p50=%.1f, p90=%.1f, p99=%.1f, p99.9=%.1f, max=%.1f ms (n=%d)",
+          toMillis(getValueAtPercentile(50)),
+          toMillis(getValueAtPercentile(90)),
+          toMillis(getValueAtPercentile(99)),
+          toMillis(getValueAtPercentile(99.9)),
+          toMillis(max),
+          count);
+    }
+
+    private static double toMillis(long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+}
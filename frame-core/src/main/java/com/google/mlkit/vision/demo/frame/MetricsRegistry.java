@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges, rates and latency histograms of the whole process.
+ *
+ * <p>Components register a {@link MetricSet} under their name, create their metrics in it once and
+ * unregister the set when they are done, e.g. when a processor is stopped. Updating a metric is
+ * lock-free and does not allocate. Rates and histograms are computed from timestamps, so no thread
+ * is needed to roll them over.
+ */
+public final class MetricsRegistry {
+
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  private final List<MetricSet> metricSets = new CopyOnWriteArrayList<>();
+
+  /** Returns the registry shared by the whole process. */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Adds a new, empty metric set. Several sets may have the same name, e.g. two instances of the
+   * same processor.
+   */
+  public MetricSet register(String name) {
+    MetricSet metricSet = new MetricSet(name);
+    metricSets.add(metricSet);
+    return metricSet;
+  }
+
+  /** Removes {@code metricSet}. Its metrics still work, but are no longer part of snapshots. */
+  public void unregister(MetricSet metricSet) {
+    metricSets.remove(metricSet);
+  }
+
+  /** Returns the values of all registered metrics, see {@link MetricSet#snapshot(long)}. */
+  public Map<String, Object> snapshot() {
+    return snapshot(System.nanoTime());
+  }
+
+  /**
+   * Returns the values of all registered metrics at {@code nowNanos}, keyed by {@code
+   * "<set>.<metric>"} in registration order.
+   */
+  public Map<String, Object> snapshot(long nowNanos) {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (MetricSet metricSet : metricSets) {
+      for (Map.Entry<String, Object> entry : metricSet.snapshot(nowNanos).entrySet()) {
+        values.put(metricSet.getName() + "." + entry.getKey(), entry.getValue());
+      }
+    }
+    return values;
+  }
+
+  /** Writes all registered metrics to {@code out}, one {@code "<set>.<metric>: <value>"} line. */
+  public void dump(Appendable out) throws IOException {
+    out.append(toString());
+  }
+
+  /** Formats all registered metrics like {@link #dump(Appendable)}. */
+  @Override
+  public String toString() {
+    return format(snapshot());
+  }
+
+  static String format(Map<String, Object> values) {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      builder.append(entry.getKey()).append(": ");
+      builder.append(formatValue(entry.getValue())).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static String formatValue(Object value) {
+    if (value instanceof Double) {
+      return String.format(Locale.US, "%.2f", (Double) value);
+    }
+    return String.valueOf(value);
+  }
+
+  /** A monotonically increasing count. */
+  public static final class Counter {
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+      count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      count.addAndGet(delta);
+    }
+
+    public long get() {
+      return count.get();
+    }
+  }
+
+  /** The latest value of a measurement, e.g. a temperature. */
+  public static final class Gauge {
+    private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+
+    public void set(double value) {
+      bits.set(Double.doubleToRawLongBits(value));
+    }
+
+    /** Returns the latest value, or {@link Double#NaN} if none was set. */
+    public double get() {
+      return Double.longBitsToDouble(bits.get());
+    }
+  }
+
+  /** The metrics of one component. */
+  public static final class MetricSet {
+    private final String name;
+    // Metrics are created when the component starts, so lookups and snapshots never contend.
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+    MetricSet(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the counter called {@code name}, creating it if needed. */
+    public Counter counter(String name) {
+      return get(name, Counter.class, new Counter());
+    }
+
+    /** Returns the gauge called {@code name}, creating it if needed. */
+    public Gauge gauge(String name) {
+      return get(name, Gauge.class, new Gauge());
+    }
+
+    /** Returns the rate called {@code name}, creating it over the given window if needed. */
+    public RateMeter rate(String name, long windowNanos, int intervalCount) {
+      return get(name, RateMeter.class, new RateMeter(windowNanos, intervalCount));
+    }
+
+    /** Returns the histogram called {@code name}, creating it over the given window if needed. */
+    public LatencyHistogram histogram(String name, long windowNanos, int intervalCount) {
+      return get(name, LatencyHistogram.class, new LatencyHistogram(windowNanos, intervalCount));
+    }
+
+    /**
+     * Returns the values of the metrics of this set at {@code nowNanos}, keyed by metric name: a
+     * {@link Long} for counters, a {@link Double} for gauges and rates, and a {@link
+     * LatencyHistogram.Snapshot} for histograms.
+     */
+    public synchronized Map<String, Object> snapshot(long nowNanos) {
+      Map<String, Object> values = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+        Object metric = entry.getValue();
+        Object value;
+        if (metric instanceof Counter) {
+          value = ((Counter) metric).get();
+        } else if (metric instanceof Gauge) {
+          value = ((Gauge) metric).get();
+        } else if (metric instanceof RateMeter) {
+          value = ((RateMeter) metric).getRate(nowNanos);
+        } else {
+          value = ((LatencyHistogram) metric).snapshot(nowNanos);
+        }
+        values.put(entry.getKey(), value);
+      }
+      return values;
+    }
+
+    /** Writes the metrics of this set to {@code out}, one {@code "<metric>: <value>"} line each. */
+    public void dump(Appendable out) throws IOException {
+      out.append(toString());
+    }
+
+    /** Formats the metrics of this set like {@link #dump(Appendable)}. */
+    @Override
+    public String toString() {
+      return format(snapshot(System.nanoTime()));
+    }
+
+    private synchronized <M> M get(String name, Class<M> type, M newMetric) {
+      Object metric = metrics.get(name);
+      if (metric == null) {
+        metric = newMetric;
+        metrics.put(name, metric);
+      } else if (!type.isInstance(metric)) {
+        throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+      }
+      return type.cast(metric);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts NV21 frames to ARGB pixels on several cores by splitting the frame into row bands.
+ *
+ * <p>Frames smaller than the configured threshold are converted on the calling thread, since for
+ * those the cost of forking and joining is comparable to the conversion itself.
+ */
+public final class ParallelFrameConverter {
+
+  /** Frames with at least this many pixels are converted in parallel by default (720p). */
+  public static final int DEFAULT_PARALLEL_THRESHOLD_PIXELS = 1280 * 720;
+
+  // Bands are kept at least this tall so each task does a meaningful amount of work.
+  private static final int MIN_BAND_ROWS = 64;
+
+  private static final int MAX_DEFAULT_PARALLELISM = 4;
+  private static final String CPU_MAX_FREQ_PATH =
+      "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq";
+
+  private static volatile ParallelFrameConverter defaultInstance;
+
+  private final int parallelism;
+  private final int parallelThresholdPixels;
+  private final ForkJoinPool pool;
+
+  public ParallelFrameConverter(int parallelism, int parallelThresholdPixels) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    this.parallelism = parallelism;
+    this.parallelThresholdPixels = parallelThresholdPixels;
+    this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+  }
+
+  /**
+   * Returns a shared converter with one worker per performance core, capped at {@value
+   * #MAX_DEFAULT_PARALLELISM}.
+   */
+  public static ParallelFrameConverter getDefault() {
+    if (defaultInstance == null) {
+      synchronized (ParallelFrameConverter.class) {
+        if (defaultInstance == null) {
+          defaultInstance =
+              new ParallelFrameConverter(
+                  Math.min(countPerformanceCores(), MAX_DEFAULT_PARALLELISM),
+                  DEFAULT_PARALLEL_THRESHOLD_PIXELS);
+        }
+      }
+    }
+    return defaultInstance;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Same as {@link YuvToRgbConverter#nv21ToArgb(byte[], int, int, int, boolean, boolean, int[])},
+   * but splits frames above the parallel threshold into row bands that are converted concurrently.
+   * Returns once the whole frame has been converted.
+   */
+  public void nv21ToArgb(
+      byte[] nv21,
+      int width,
+      int height,
+      int rotationDegrees,
+      boolean flipX,
+      boolean flipY,
+      int[] out) {
+    if (pool == null || pool.isShutdown() || width * height < parallelThresholdPixels) {
+      YuvToRgbConverter.nv21ToArgb(nv21, width, height, rotationDegrees, flipX, flipY, out);
+      return;
+    }
+    // Split into one band per worker, unless that would make the bands too small. Bands start on
+    // even rows so that each chroma row is read by a single band.
+    int bandRows = Math.max(MIN_BAND_ROWS, (height + parallelism - 1) / parallelism);
+    bandRows = (bandRows + 1) & ~1;
+    pool.invoke(
+        new ConvertBandsAction(
+            nv21, width, height, rotationDegrees, flipX, flipY, out, 0, height, bandRows));
+  }
+
+  /** Stops the worker threads. The converter falls back to the calling thread afterwards. */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Returns the number of cores that are not part of the slowest cluster, based on the maximum
+   * frequency each core reports. Falls back to all available processors if the frequencies can't
+   * be read or all cores are the same.
+   */
+  static int countPerformanceCores() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    long[] maxFrequencies = new long[cores];
+    long slowest = Long.MAX_VALUE;
+    for (int i = 0; i < cores; i++) {
+      maxFrequencies[i] = readMaxFrequency(i);
+      if (maxFrequencies[i] <= 0) {
+        return cores;
+      }
+      slowest = Math.min(slowest, maxFrequencies[i]);
+    }
+    int performanceCores = 0;
+    for (long frequency : maxFrequencies) {
+      if (frequency > slowest) {
+        performanceCores++;
+      }
+    }
+    return performanceCores > 0 ? performanceCores : cores;
+  }
+
+  private static long readMaxFrequency(int cpu) {
+    try (BufferedReader reader =
+        new BufferedReader(new FileReader(String.format(CPU_MAX_FREQ_PATH, cpu)))) {
+      String line = reader.readLine();
+      return line != null ? Long.parseLong(line.trim()) : -1;
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Converts a range of rows, splitting it in half until each part fits in one band. */
+  private static class ConvertBandsAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] nv21;
+    private final int width;
+    private final int height;
+    private final int rotationDegrees;
+    private final boolean flipX;
+    private final boolean flipY;
+    private final int[] out;
+    private final int startRow;
+    private final int endRow;
+    private final int bandRows;
+
+    ConvertBandsAction(
+        byte[] nv21,
+        int width,
+        int height,
+        int rotationDegrees,
+        boolean flipX,
+        boolean flipY,
+        int[] out,
+        int startRow,
+        int endRow,
+        int bandRows) {
+      this.nv21 = nv21;
+      this.width = width;
+      this.height = height;
+      this.rotationDegrees = rotationDegrees;
+      this.flipX = flipX;
+      this.flipY = flipY;
+      this.out = out;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.bandRows = bandRows;
+    }
+
+    @Override
+    protected void compute() {
+      int rows = endRow - startRow;
+      if (rows <= bandRows) {
+        YuvToRgbConverter.nv21ToArgb(
+            nv21, width, height, rotationDegrees, flipX, flipY, out, startRow, endRow);
+        return;
+      }
+      int bands = (rows + bandRows - 1) / bandRows;
+      int splitRow = startRow + (bands / 2) * bandRows;
+      invokeAll(subBand(startRow, splitRow), subBand(splitRow, endRow));
+    }
+
+    private ConvertBandsAction subBand(int fromRow, int toRow) {
+      return new ConvertBandsAction(
+          nv21, width, height, rotationDegrees, flipX, flipY, out, fromRow, toRow, bandRows);
+    }
+  }
+}
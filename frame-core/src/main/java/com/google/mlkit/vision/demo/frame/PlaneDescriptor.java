@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One plane of a YUV_420_888 image, as described by {@code android.media.Image.Plane}.
+ *
+ * <p>Keeps the conversion code independent of the Android camera classes, so it can also be driven
+ * by synthetic planes on a plain JVM.
+ */
+public interface PlaneDescriptor {
+
+  /** Returns the plane data. Readers may move its position, but rewind it when they are done. */
+  ByteBuffer getBuffer();
+
+  /** Returns the distance in bytes between the starts of two consecutive rows. */
+  int getRowStride();
+
+  /** Returns the distance in bytes between two consecutive pixels of a row. */
+  int getPixelStride();
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import androidx.annotation.GuardedBy;
+import java.nio.ByteBuffer;
+
+/**
+ * Remembers whether the U and V planes of a YUV_420_888 stream interleave in NV21 order.
+ *
+ * <p>Both planes must have a pixel stride of 2, the same tightly packed row stride and the sizes
+ * of an interleaved VU plane. Planes that pass are then compared byte by byte: the V buffer shifted
+ * by one must hold the same chroma as the U buffer. The comparison is slow, but the layout only
+ * depends on how the camera HAL allocates its buffers, so the check runs only when the frame size,
+ * strides or buffer sizes change, and periodically after that. The check never writes to the
+ * planes, which the detector and the frame recorder may be reading at the same time.
+ */
+public final class PlaneLayoutCache {
+
+  /** By default the layout is checked again every this many frames of the same stream. */
+  public static final int DEFAULT_RECHECK_INTERVAL = 300;
+
+  private final int recheckInterval;
+
+  @GuardedBy("this")
+  private boolean hasLayout;
+
+  @GuardedBy("this")
+  private int width;
+
+  @GuardedBy("this")
+  private int height;
+
+  @GuardedBy("this")
+  private int uRowStride;
+
+  @GuardedBy("this")
+  private int vRowStride;
+
+  @GuardedBy("this")
+  private int uPixelStride;
+
+  @GuardedBy("this")
+  private int vPixelStride;
+
+  @GuardedBy("this")
+  private int uCapacity;
+
+  @GuardedBy("this")
+  private int vCapacity;
+
+  @GuardedBy("this")
+  private boolean isNv21;
+
+  @GuardedBy("this")
+  private int framesSinceCheck;
+
+  @GuardedBy("this")
+  private long layoutCheckCount;
+
+  public PlaneLayoutCache() {
+    this(DEFAULT_RECHECK_INTERVAL);
+  }
+
+  public PlaneLayoutCache(int recheckInterval) {
+    this.recheckInterval = recheckInterval;
+  }
+
+  /** Returns whether the U and V planes of a {@code width} x {@code height} image are NV21. */
+  public synchronized boolean isNv21(PlaneDescriptor[] planes, int width, int height) {
+    PlaneDescriptor uPlane = planes[1];
+    PlaneDescriptor vPlane = planes[2];
+    ByteBuffer uBuffer = uPlane.getBuffer();
+    ByteBuffer vBuffer = vPlane.getBuffer();
+
+    if (!hasLayout
+        || this.width != width
+        || this.height != height
+        || uRowStride != uPlane.getRowStride()
+        || vRowStride != vPlane.getRowStride()
+        || uPixelStride != uPlane.getPixelStride()
+        || vPixelStride != vPlane.getPixelStride()
+        || uCapacity != uBuffer.capacity()
+        || vCapacity != vBuffer.capacity()) {
+      this.width = width;
+      this.height = height;
+      uRowStride = uPlane.getRowStride();
+      vRowStride = vPlane.getRowStride();
+      uPixelStride = uPlane.getPixelStride();
+      vPixelStride = vPlane.getPixelStride();
+      uCapacity = uBuffer.capacity();
+      vCapacity = vBuffer.capacity();
+      hasLayout = true;
+      return checkLayout(uPlane, vPlane, width, height);
+    }
+
+    if (++framesSinceCheck >= recheckInterval) {
+      return checkLayout(uPlane, vPlane, width, height);
+    }
+    return isNv21;
+  }
+
+  /** Forgets the cached layout, so the next frame is checked again. */
+  public synchronized void invalidate() {
+    hasLayout = false;
+  }
+
+  /** Returns how many times the layout has been checked. */
+  public synchronized long getLayoutCheckCount() {
+    return layoutCheckCount;
+  }
+
+  @GuardedBy("this")
+  private boolean checkLayout(
+      PlaneDescriptor uPlane, PlaneDescriptor vPlane, int width, int height) {
+    isNv21 = areUVPlanesNV21(uPlane, vPlane, width, height);
+    framesSinceCheck = 0;
+    layoutCheckCount++;
+    return isNv21;
+  }
+
+  /**
+   * Checks if the U and V planes of a YUV_420_888 image are a single NV21 VU plane, i.e. both have
+   * the structure of the interleaved samples of a tightly packed {@code width} x {@code height}
+   * image, and the V buffer one byte further on holds the same chroma as the U buffer. Only reads
+   * duplicates of the buffers, so the planes and their positions are left untouched.
+   */
+  static boolean areUVPlanesNV21(
+      PlaneDescriptor uPlane, PlaneDescriptor vPlane, int width, int height) {
+    // An interleaved VU plane seen from V has every sample but the last U; seen from U, every
+    // sample but the first V.
+    int planeLength = width * height / 2 - 1;
+    ByteBuffer uBuffer = uPlane.getBuffer().duplicate();
+    ByteBuffer vBuffer = vPlane.getBuffer().duplicate();
+    if (uPlane.getPixelStride() != 2
+        || vPlane.getPixelStride() != 2
+        || uPlane.getRowStride() != width
+        || vPlane.getRowStride() != width
+        || uBuffer.remaining() != planeLength
+        || vBuffer.remaining() != planeLength
+        || planeLength <= 0) {
+      return false;
+    }
+    // Skip the first V value, which U doesn't hold, and the last U value, which V doesn't hold.
+    vBuffer.position(vBuffer.position() + 1);
+    uBuffer.limit(uBuffer.limit() - 1);
+    return vBuffer.compareTo(uBuffer) == 0;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events per second over a sliding time window, computed from the event timestamps.
+ *
+ * <p>The window is split into intervals like in {@link LatencyHistogram}. The rate only covers
+ * complete intervals, so it does not dip at the start of every interval, and it is updated once per
+ * interval without any timer thread.
+ *
+ * <p>Marking is lock-free, does not allocate and may be called from any thread. An event marked at
+ * the very moment its interval is cleared may be lost.
+ */
+public final class RateMeter {
+
+  private final long intervalNanos;
+  private final int intervalCount;
+  // One interval more than the window, for the interval that is still being counted.
+  private final AtomicLongArray intervalIds;
+  private final AtomicLongArray counts;
+
+  /** Creates a meter over the last {@code windowNanos}, split into {@code intervalCount}. */
+  public RateMeter(long windowNanos, int intervalCount) {
+    if (intervalCount <= 0 || windowNanos < intervalCount) {
+      throw new IllegalArgumentException("Invalid window: " + windowNanos + "/" + intervalCount);
+    }
+    this.intervalNanos = windowNanos / intervalCount;
+    this.intervalCount = intervalCount;
+    this.intervalIds = new AtomicLongArray(intervalCount + 1);
+    this.counts = new AtomicLongArray(intervalCount + 1);
+    for (int i = 0; i <= intervalCount; i++) {
+      intervalIds.set(i, Long.MIN_VALUE);
+    }
+  }
+
+  /** Marks one event at the current time. */
+  public void mark() {
+    mark(1, System.nanoTime());
+  }
+
+  /** Marks {@code count} events at {@code nowNanos}, a {@link System#nanoTime()} timestamp. */
+  public void mark(long count, long nowNanos) {
+    long intervalId = Math.floorDiv(nowNanos, intervalNanos);
+    int interval = (int) Math.floorMod(intervalId, (long) intervalCount + 1);
+    long currentId = intervalIds.get(interval);
+    if (currentId != intervalId) {
+      if (currentId > intervalId) {
+        // The interval of this event already left the window.
+        return;
+      }
+      if (intervalIds.compareAndSet(interval, currentId, intervalId)) {
+        counts.set(interval, 0);
+      }
+    }
+    counts.addAndGet(interval, count);
+  }
+
+  /** Returns the events per second within the window that ends now. */
+  public double getRate() {
+    return getRate(System.nanoTime());
+  }
+
+  /**
+   * Returns the events per second within the complete intervals of the window that ends at {@code
+   * nowNanos}.
+   */
+  public double getRate(long nowNanos) {
+    long currentId = Math.floorDiv(nowNanos, intervalNanos);
+    long total = 0;
+    for (int interval = 0; interval <= intervalCount; interval++) {
+      long intervalId = intervalIds.get(interval);
+      if (intervalId < currentId && intervalId >= currentId - intervalCount) {
+        total += counts.get(interval);
+      }
+    }
+    return total * (double) TimeUnit.SECONDS.toNanos(1) / (intervalNanos * intervalCount);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent timed spans of the frame pipeline in a fixed-size ring, and exports them
+ * as Chrome trace JSON, which Perfetto and {@code chrome://tracing} can open.
+ *
+ * <p>Recording does not allocate and may be called from any thread: every span claims the next
+ * slot of the ring and overwrites the oldest span. Span names are stored by reference, so they
+ * should be constants. The export skips spans that are being overwritten while it runs.
+ */
+public final class SpanRecorder {
+
+  /** Frame id of spans that do not belong to a single frame. */
+  public static final long NO_FRAME = -1;
+
+  private final int mask;
+  private final AtomicLong nextIndex = new AtomicLong();
+  // Index + 1 of the span in each slot, or 0 while the slot is written.
+  private final AtomicLongArray sequences;
+  private final AtomicReferenceArray<String> names;
+  private final AtomicLongArray startNanos;
+  private final AtomicLongArray durationNanos;
+  private final AtomicLongArray threadIds;
+  private final AtomicLongArray frameIds;
+
+  /** Creates a recorder that keeps the last {@code capacity} spans, rounded up to a power of two. */
+  public SpanRecorder(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 24) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    mask = size - 1;
+    sequences = new AtomicLongArray(size);
+    names = new AtomicReferenceArray<>(size);
+    startNanos = new AtomicLongArray(size);
+    durationNanos = new AtomicLongArray(size);
+    threadIds = new AtomicLongArray(size);
+    frameIds = new AtomicLongArray(size);
+  }
+
+  /** Records a span of the calling thread, with nanosecond timestamps of one clock. */
+  public void record(String name, long beginNanos, long endNanos, long frameId) {
+    record(name, beginNanos, endNanos, frameId, Thread.currentThread().getId());
+  }
+
+  /** Records a span that ran on the thread with id {@code threadId}. */
+  public void record(String name, long beginNanos, long endNanos, long frameId, long threadId) {
+    long index = nextIndex.getAndIncrement();
+    int slot = (int) (index & mask);
+    sequences.set(slot, 0);
+    names.set(slot, name);
+    startNanos.set(slot, beginNanos);
+    durationNanos.set(slot, endNanos - beginNanos);
+    threadIds.set(slot, threadId);
+    frameIds.set(slot, frameId);
+    sequences.set(slot, index + 1);
+  }
+
+  /** Returns the number of spans recorded so far, including overwritten ones. */
+  public long getRecordedCount() {
+    return nextIndex.get();
+  }
+
+  /**
+   * Writes the spans in the ring, oldest first, as a Chrome trace JSON object. Timestamps are
+   * reported in microseconds of the recording clock. Returns the number of spans written.
+   */
+  public int writeChromeTrace(Appendable out, int processId) throws IOException {
+    long end = nextIndex.get();
+    long begin = Math.max(0, end - (mask + 1));
+    int written = 0;
+    out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    for (long index = begin; index < end; index++) {
+      int slot = (int) (index & mask);
+      if (sequences.get(slot) != index + 1) {
+        continue;
+      }
+      String name = names.get(slot);
+      long start = startNanos.get(slot);
+      long duration = durationNanos.get(slot);
+      long threadId = threadIds.get(slot);
+      long frameId = frameIds.get(slot);
+      if (sequences.get(slot) != index + 1) {
+        // Overwritten while it was read.
+        continue;
+      }
+      if (written > 0) {
+        out.append(',');
+      }
+      out.append("\n{\"name\":\"");
+      appendEscaped(out, name);
+      out.append(
+          String.format(
+              Locale.US,
+              "\",\"cat\":\"frame\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d",
+              start / 1000.0,
+              duration / 1000.0,
+              processId,
+              threadId));
+      if (frameId != NO_FRAME) {
+        out.append(",\"args\":{\"frame\":").append(Long.toString(frameId)).append('}');
+      }
+      out.append('}');
+      written++;
+    }
+    out.append("\n]}\n");
+    return written;
+  }
+
+  private static void appendEscaped(Appendable out, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format(Locale.US, "\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.nio.ByteBuffer;
+
+/** Packs the planes of a YUV_420_888 image into a single NV21 buffer. */
+public final class YuvPlaneUnpacker {
+
+  // Per-thread scratch row for unpacking interleaved planes.
+  private static final ThreadLocal<byte[]> rowScratch = new ThreadLocal<>();
+
+  /**
+   * Converts YUV_420_888 to an NV21 frame buffer.
+   *
+   * <p>The NV21 format consists of a single byte array containing the Y, U and V values. For an
+   * image of size S, the first S positions of the array contain all the Y values. The remaining
+   * positions contain interleaved V and U values. U and V are subsampled by a factor of 2 in both
+   * dimensions, so there are S/4 U values and S/4 V values. In summary, the NV21 array will contain
+   * S Y values followed by S/4 VU values: YYYYYYYYYYYYYY(...)YVUVUVUVU(...)VU
+   *
+   * <p>YUV_420_888 is a generic format that can describe any YUV image where U and V are subsampled
+   * by a factor of 2 in both dimensions. {@code planes} holds the Y, U and V planes. The Y plane is
+   * guaranteed not to be interleaved, so we can just copy its values into the first part of the
+   * NV21 array. The U and V planes may already have the representation in the NV21 format. This
+   * happens if the planes share the same buffer, the V buffer is one position before the U buffer
+   * and the planes have a pixelStride of 2. If this is case, we can just copy them to the NV21
+   * array. Whether that is the case is looked up in {@code layoutCache}.
+   *
+   * <p>The output is written into a buffer leased from {@code pool}. Callers must {@link
+   * FrameBuffer#release()} it once they are done with the NV21 data.
+   */
+  public static FrameBuffer toNv21(
+      PlaneDescriptor[] planes,
+      int width,
+      int height,
+      FrameBufferPool pool,
+      PlaneLayoutCache layoutCache) {
+    int imageSize = width * height;
+    FrameBuffer frameBuffer = pool.acquire(width, height);
+    byte[] out = frameBuffer.array();
+
+    // The Y plane may be padded at the end of each row, so it always goes through unpackPlane,
+    // which copies whole rows at once.
+    unpackPlane(planes[0], width, height, out, 0, 1);
+
+    if (layoutCache.isNv21(planes, width, height)) {
+      ByteBuffer uBuffer = planes[1].getBuffer();
+      ByteBuffer vBuffer = planes[2].getBuffer();
+      // Get the first V value from the V buffer, since the U buffer does not contain it.
+      vBuffer.rewind();
+      vBuffer.get(out, imageSize, 1);
+      vBuffer.rewind();
+      // Copy the first U value and the remaining VU values from the U buffer.
+      uBuffer.rewind();
+      uBuffer.get(out, imageSize + 1, 2 * imageSize / 4 - 1);
+      uBuffer.rewind();
+    } else {
+      // Fallback to unpacking the U and V planes separately, which is slower but also works.
+      // Unpack U.
+      unpackPlane(planes[1], width, height, out, imageSize + 1, 2);
+      // Unpack V.
+      unpackPlane(planes[2], width, height, out, imageSize, 2);
+    }
+
+    return frameBuffer;
+  }
+
+  /**
+   * Unpack an image plane into a byte array.
+   *
+   * <p>The input plane data will be copied in 'out', starting at 'offset' and every pixel will be
+   * spaced by 'pixelStride'. Note that there is no row padding on the output.
+   */
+  private static void unpackPlane(
+      PlaneDescriptor plane, int width, int height, byte[] out, int offset, int pixelStride) {
+    ByteBuffer buffer = plane.getBuffer();
+    buffer.rewind();
+
+    // Compute the size of the current plane.
+    // We assume that it has the aspect ratio as the original image.
+    int rowStride = plane.getRowStride();
+    int numRow = (buffer.limit() + rowStride - 1) / rowStride;
+    if (numRow == 0) {
+      return;
+    }
+    int scaleFactor = height / numRow;
+    int numCol = width / scaleFactor;
+    int inputPixelStride = plane.getPixelStride();
+
+    // Extract the data in the output buffer.
+    int outputPos = offset;
+    int rowStart = 0;
+    if (inputPixelStride == 1 && pixelStride == 1) {
+      // Both sides are tightly packed within a row, so each row is a single bulk copy.
+      for (int row = 0; row < numRow; row++) {
+        buffer.position(rowStart);
+        buffer.get(out, outputPos, numCol);
+        outputPos += numCol;
+        rowStart += rowStride;
+      }
+    } else {
+      // Read each row in bulk into a scratch array and scatter it from there, instead of going
+      // through the ByteBuffer once per pixel.
+      int rowLength = (numCol - 1) * inputPixelStride + 1;
+      byte[] rowBuffer = rowScratch.get();
+      if (rowBuffer == null || rowBuffer.length < rowLength) {
+        rowBuffer = new byte[rowLength];
+        rowScratch.set(rowBuffer);
+      }
+      for (int row = 0; row < numRow; row++) {
+        buffer.position(rowStart);
+        buffer.get(rowBuffer, 0, rowLength);
+        int inputPos = 0;
+        for (int col = 0; col < numCol; col++) {
+          out[outputPos] = rowBuffer[inputPos];
+          outputPos += pixelStride;
+          inputPos += inputPixelStride;
+        }
+        rowStart += rowStride;
+      }
+    }
+    buffer.rewind();
+  }
+
+  private YuvPlaneUnpacker() {}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+/**
+ * Converts NV21 frames to ARGB_8888 pixels in pure Java.
+ *
+ * <p>Uses the full-range BT.601 (JFIF) YCbCr to RGB transform, which is the same one {@code
+ * android.graphics.YuvImage#compressToJpeg} assumes for camera frames, evaluated in 16.16 fixed
+ * point so the inner loop has no floating point math.
+ */
+public final class YuvToRgbConverter {
+
+  private static final int SHIFT = 16;
+  private static final int HALF = 1 << (SHIFT - 1);
+
+  // 1.402, 0.344136, 0.714136 and 1.772 scaled by 2^16.
+  private static final int CR_TO_R = 91881;
+  private static final int CB_TO_G = 22554;
+  private static final int CR_TO_G = 46802;
+  private static final int CB_TO_B = 116130;
+
+  /**
+   * Converts an NV21 frame into ARGB_8888 pixels.
+   *
+   * @param nv21 the NV21 frame, with the Y plane followed by interleaved VU values
+   * @param width the width of the frame
+   * @param height the height of the frame
+   * @param out receives {@code width * height} pixels in row-major order
+   */
+  public static void nv21ToArgb(byte[] nv21, int width, int height, int[] out) {
+    nv21ToArgb(nv21, width, height, /* rotationDegrees= */ 0, false, false, out);
+  }
+
+  /**
+   * Converts an NV21 frame into ARGB_8888 pixels, rotating and mirroring it on the way as
+   * described in {@link ImageTransform}. The output is {@link ImageTransform#getOutputWidth}
+   * pixels wide and is written in a single pass, without an intermediate upright image.
+   */
+  public static void nv21ToArgb(
+      byte[] nv21,
+      int width,
+      int height,
+      int rotationDegrees,
+      boolean flipX,
+      boolean flipY,
+      int[] out) {
+    nv21ToArgb(nv21, width, height, rotationDegrees, flipX, flipY, out, 0, height);
+  }
+
+  /**
+   * Converts the source rows {@code [startRow, endRow)} of an NV21 frame, as part of {@link
+   * #nv21ToArgb(byte[], int, int, int, boolean, boolean, int[])}. Different row bands write to
+   * disjoint output pixels, so bands can be converted concurrently.
+   */
+  public static void nv21ToArgb(
+      byte[] nv21,
+      int width,
+      int height,
+      int rotationDegrees,
+      boolean flipX,
+      boolean flipY,
+      int[] out,
+      int startRow,
+      int endRow) {
+    int frameSize = width * height;
+    int origin = ImageTransform.getOutputIndex(0, 0, width, height, rotationDegrees, flipX, flipY);
+    int stepX =
+        ImageTransform.getOutputIndex(1, 0, width, height, rotationDegrees, flipX, flipY) - origin;
+    int stepY =
+        ImageTransform.getOutputIndex(0, 1, width, height, rotationDegrees, flipX, flipY) - origin;
+
+    for (int y = startRow; y < endRow; y++) {
+      int yIndex = y * width;
+      int uvRowStart = frameSize + (y >> 1) * width;
+      int outputPos = origin + y * stepY;
+      for (int x = 0; x < width; x++) {
+        int uvIndex = uvRowStart + (x & ~1);
+        int cr = (nv21[uvIndex] & 0xff) - 128;
+        int cb = (nv21[uvIndex + 1] & 0xff) - 128;
+        out[outputPos] = toArgb(nv21[yIndex + x] & 0xff, cb, cr);
+        outputPos += stepX;
+      }
+    }
+  }
+
+  /**
+   * Converts an NV21 frame into a downsampled ARGB_8888 image of {@code scaledWidth} x {@code
+   * scaledHeight} pixels (before rotation), rotating and mirroring it as described in {@link
+   * ImageTransform}.
+   *
+   * <p>Each output pixel covers a box of source pixels and is the average of all luma samples in
+   * the box and of all chroma samples that cover it, i.e. a box filter at any scale. Every source
+   * sample is read once, which is still much cheaper than converting every source pixel to RGB.
+   */
+  public static void nv21ToArgbScaled(
+      byte[] nv21,
+      int width,
+      int height,
+      int scaledWidth,
+      int scaledHeight,
+      int rotationDegrees,
+      boolean flipX,
+      boolean flipY,
+      int[] out) {
+    int frameSize = width * height;
+    int origin =
+        ImageTransform.getOutputIndex(
+            0, 0, scaledWidth, scaledHeight, rotationDegrees, flipX, flipY);
+    int stepX =
+        ImageTransform.getOutputIndex(
+                1, 0, scaledWidth, scaledHeight, rotationDegrees, flipX, flipY)
+            - origin;
+    int stepY =
+        ImageTransform.getOutputIndex(
+                0, 1, scaledWidth, scaledHeight, rotationDegrees, flipX, flipY)
+            - origin;
+
+    for (int scaledY = 0; scaledY < scaledHeight; scaledY++) {
+      int y0 = scaledY * height / scaledHeight;
+      int y1 = Math.max(y0 + 1, (scaledY + 1) * height / scaledHeight);
+      // The chroma rows that cover source rows [y0, y1).
+      int uvRow0 = y0 >> 1;
+      int uvRow1 = ((y1 - 1) >> 1) + 1;
+      int outputPos = origin + scaledY * stepY;
+      for (int scaledX = 0; scaledX < scaledWidth; scaledX++) {
+        int x0 = scaledX * width / scaledWidth;
+        int x1 = Math.max(x0 + 1, (scaledX + 1) * width / scaledWidth);
+
+        int lumaSum = 0;
+        for (int y = y0; y < y1; y++) {
+          int rowStart = y * width;
+          for (int x = x0; x < x1; x++) {
+            lumaSum += nv21[rowStart + x] & 0xff;
+          }
+        }
+        int lumaCount = (y1 - y0) * (x1 - x0);
+
+        int uvColumn0 = x0 >> 1;
+        int uvColumn1 = ((x1 - 1) >> 1) + 1;
+        int crSum = 0;
+        int cbSum = 0;
+        for (int uvRow = uvRow0; uvRow < uvRow1; uvRow++) {
+          int uvIndex = frameSize + uvRow * width + 2 * uvColumn0;
+          for (int uvColumn = uvColumn0; uvColumn < uvColumn1; uvColumn++) {
+            crSum += nv21[uvIndex] & 0xff;
+            cbSum += nv21[uvIndex + 1] & 0xff;
+            uvIndex += 2;
+          }
+        }
+        int chromaCount = (uvRow1 - uvRow0) * (uvColumn1 - uvColumn0);
+
+        int luma = (lumaSum + lumaCount / 2) / lumaCount;
+        int cr = (crSum + chromaCount / 2) / chromaCount - 128;
+        int cb = (cbSum + chromaCount / 2) / chromaCount - 128;
+        out[outputPos] = toArgb(luma, cb, cr);
+        outputPos += stepX;
+      }
+    }
+  }
+
+  /** Converts one full-range YCbCr sample, with chroma centered on zero, to an ARGB pixel. */
+  static int toArgb(int luma, int cb, int cr) {
+    int r = luma + ((CR_TO_R * cr + HALF) >> SHIFT);
+    int g = luma - ((CB_TO_G * cb + CR_TO_G * cr + HALF) >> SHIFT);
+    int b = luma + ((CB_TO_B * cb + HALF) >> SHIFT);
+    return 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+  }
+
+  private static int clamp(int value) {
+    if ((value & ~0xff) == 0) {
+      return value;
+    }
+    return value < 0 ? 0 : 0xff;
+  }
+
+  private YuvToRgbConverter() {}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the index math against hand-rotated images. The source is 3x2 with its pixels numbered in
+ * row-major order:
+ *
+ * <pre>
+ * 0 1 2
+ * 3 4 5
+ * </pre>
+ */
+public class ImageTransformTest {
+
+  private static final int WIDTH = 3;
+  private static final int HEIGHT = 2;
+
+  @Test
+  public void noRotation_keepsImage() {
+    assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, transform(0, false, false));
+  }
+
+  @Test
+  public void rotate90_turnsClockwise() {
+    assertArrayEquals(new int[] {3, 0, 4, 1, 5, 2}, transform(90, false, false));
+  }
+
+  @Test
+  public void rotate180_turnsUpsideDown() {
+    assertArrayEquals(new int[] {5, 4, 3, 2, 1, 0}, transform(180, false, false));
+  }
+
+  @Test
+  public void rotate270_turnsCounterClockwise() {
+    assertArrayEquals(new int[] {2, 5, 1, 4, 0, 3}, transform(270, false, false));
+  }
+
+  @Test
+  public void flipX_mirrorsRows() {
+    assertArrayEquals(new int[] {2, 1, 0, 5, 4, 3}, transform(0, true, false));
+  }
+
+  @Test
+  public void flipY_mirrorsColumns() {
+    assertArrayEquals(new int[] {3, 4, 5, 0, 1, 2}, transform(0, false, true));
+  }
+
+  @Test
+  public void rotate90FlipX_mirrorsAfterRotating() {
+    // Like the front camera preview: rotated, then mirrored along the rotated x axis.
+    assertArrayEquals(new int[] {0, 3, 1, 4, 2, 5}, transform(90, true, false));
+  }
+
+  @Test
+  public void rotate270FlipY_mirrorsAfterRotating() {
+    assertArrayEquals(new int[] {0, 3, 1, 4, 2, 5}, transform(270, false, true));
+  }
+
+  @Test
+  public void outputSize_swapsForQuarterTurns() {
+    assertEquals(2, ImageTransform.getOutputWidth(WIDTH, HEIGHT, 90));
+    assertEquals(3, ImageTransform.getOutputHeight(WIDTH, HEIGHT, 90));
+    assertEquals(3, ImageTransform.getOutputWidth(WIDTH, HEIGHT, 180));
+    assertEquals(2, ImageTransform.getOutputHeight(WIDTH, HEIGHT, 180));
+    assertEquals(2, ImageTransform.getOutputWidth(WIDTH, HEIGHT, -90));
+  }
+
+  @Test
+  public void normalizeRotation_mapsIntoOneTurn() {
+    assertEquals(270, ImageTransform.normalizeRotation(-90));
+    assertEquals(90, ImageTransform.normalizeRotation(450));
+    assertEquals(0, ImageTransform.normalizeRotation(-360));
+    assertArrayEquals(transform(270, false, false), transform(-90, false, false));
+  }
+
+  @Test
+  public void normalizeRotation_rejectsPartialTurns() {
+    assertThrows(IllegalArgumentException.class, () -> ImageTransform.normalizeRotation(45));
+  }
+
+  @Test
+  public void isIdentity_onlyWithoutRotationOrFlip() {
+    assertTrue(ImageTransform.isIdentity(0, false, false));
+    assertTrue(ImageTransform.isIdentity(360, false, false));
+    assertFalse(ImageTransform.isIdentity(90, false, false));
+    assertFalse(ImageTransform.isIdentity(0, true, false));
+    assertFalse(ImageTransform.isIdentity(0, false, true));
+  }
+
+  @Test
+  public void getOutputIndex_isAffine() {
+    // Callers step through the source with the differences of neighbouring indices.
+    int[] rotations = {0, 90, 180, 270};
+    for (int rotation : rotations) {
+      for (int flips = 0; flips < 4; flips++) {
+        boolean flipX = (flips & 1) != 0;
+        boolean flipY = (flips & 2) != 0;
+        int origin = ImageTransform.getOutputIndex(0, 0, WIDTH, HEIGHT, rotation, flipX, flipY);
+        int stepX =
+            ImageTransform.getOutputIndex(1, 0, WIDTH, HEIGHT, rotation, flipX, flipY) - origin;
+        int stepY =
+            ImageTransform.getOutputIndex(0, 1, WIDTH, HEIGHT, rotation, flipX, flipY) - origin;
+        for (int y = 0; y < HEIGHT; y++) {
+          for (int x = 0; x < WIDTH; x++) {
+            assertEquals(
+                "rotation " + rotation + " flips " + flips,
+                origin + x * stepX + y * stepY,
+                ImageTransform.getOutputIndex(x, y, WIDTH, HEIGHT, rotation, flipX, flipY));
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the source pixel numbers in the order of the transformed image. */
+  private static int[] transform(int rotationDegrees, boolean flipX, boolean flipY) {
+    int[] out = new int[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        out[ImageTransform.getOutputIndex(x, y, WIDTH, HEIGHT, rotationDegrees, flipX, flipY)] =
+            y * WIDTH + x;
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+/** Checks that converting in row bands gives exactly the single-threaded output. */
+public class ParallelFrameConverterTest {
+
+  private final ParallelFrameConverter converter = new ParallelFrameConverter(4, 0);
+
+  @After
+  public void tearDown() {
+    converter.shutdown();
+  }
+
+  @Test
+  public void nv21ToArgb_allTransforms_matchesSingleThreaded() {
+    // 200 rows split into bands of 64, so the last band is shorter than the others.
+    byte[] nv21 = randomNv21(320, 200);
+    int[] rotations = {0, 90, 180, 270};
+    for (int rotation : rotations) {
+      for (int flips = 0; flips < 4; flips++) {
+        assertMatchesSingleThreaded(nv21, 320, 200, rotation, (flips & 1) != 0, (flips & 2) != 0);
+      }
+    }
+  }
+
+  @Test
+  public void nv21ToArgb_tallFrame_matchesSingleThreaded() {
+    // Tall enough that each of the four bands is a quarter of the frame, not the minimum size.
+    assertMatchesSingleThreaded(randomNv21(96, 720), 96, 720, 90, false, false);
+  }
+
+  @Test
+  public void nv21ToArgb_belowThreshold_matchesSingleThreaded() {
+    ParallelFrameConverter thresholdConverter = new ParallelFrameConverter(4, 1280 * 720);
+    try {
+      byte[] nv21 = randomNv21(64, 48);
+      int[] expected = new int[64 * 48];
+      YuvToRgbConverter.nv21ToArgb(nv21, 64, 48, 0, false, false, expected);
+      int[] actual = new int[64 * 48];
+      thresholdConverter.nv21ToArgb(nv21, 64, 48, 0, false, false, actual);
+      assertArrayEquals(expected, actual);
+    } finally {
+      thresholdConverter.shutdown();
+    }
+  }
+
+  @Test
+  public void nv21ToArgb_afterShutdown_stillConverts() {
+    converter.shutdown();
+    assertMatchesSingleThreaded(randomNv21(128, 128), 128, 128, 0, false, false);
+  }
+
+  private void assertMatchesSingleThreaded(
+      byte[] nv21, int width, int height, int rotationDegrees, boolean flipX, boolean flipY) {
+    int[] expected = new int[width * height];
+    YuvToRgbConverter.nv21ToArgb(nv21, width, height, rotationDegrees, flipX, flipY, expected);
+    int[] actual = new int[width * height];
+    converter.nv21ToArgb(nv21, width, height, rotationDegrees, flipX, flipY, actual);
+    assertArrayEquals(
+        "rotation " + rotationDegrees + " flipX " + flipX + " flipY " + flipY, expected, actual);
+  }
+
+  private static byte[] randomNv21(int width, int height) {
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(width, height)];
+    new Random(width * 31L + height).nextBytes(nv21);
+    return nv21;
+  }
+}
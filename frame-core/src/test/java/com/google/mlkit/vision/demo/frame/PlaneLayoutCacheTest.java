@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.mlkit.vision.demo.frame.SyntheticPlanes.Layout;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/** Checks the NV21 detection and how often {@link PlaneLayoutCache} repeats it. */
+public class PlaneLayoutCacheTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  @Test
+  public void isNv21_sharedVuBuffer_isNv21() {
+    assertTrue(new PlaneLayoutCache().isNv21(planes(Layout.NV21), WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_separatePlanes_isNotNv21() {
+    assertFalse(new PlaneLayoutCache().isNv21(planes(Layout.I420), WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_paddedRows_isNotNv21() {
+    assertFalse(new PlaneLayoutCache().isNv21(planes(Layout.PADDED_NV21), WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_sharedUvBuffer_isNotNv21() {
+    assertFalse(new PlaneLayoutCache().isNv21(planes(Layout.NV12), WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_separatePlanesWithVuStructure_isNotNv21() {
+    // Same strides and sizes as NV21, but the chroma is not interleaved in VU order.
+    PlaneDescriptor[] planes = planes(Layout.NV21);
+    planes[2] = copy(planes[2]);
+    fill(planes[2].getBuffer(), (byte) 7);
+    assertFalse(new PlaneLayoutCache().isNv21(planes, WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_readOnlyBuffers_isNv21() {
+    PlaneDescriptor[] planes = planes(Layout.NV21);
+    planes[1] = readOnly(planes[1]);
+    planes[2] = readOnly(planes[2]);
+    assertTrue(new PlaneLayoutCache().isNv21(planes, WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void isNv21_leavesPlanesUnchanged() {
+    PlaneDescriptor[] planes = planes(Layout.NV21);
+    byte[] uBefore = contents(planes[1].getBuffer());
+    byte[] vBefore = contents(planes[2].getBuffer());
+    new PlaneLayoutCache().isNv21(planes, WIDTH, HEIGHT);
+    assertArrayEquals(uBefore, contents(planes[1].getBuffer()));
+    assertArrayEquals(vBefore, contents(planes[2].getBuffer()));
+    assertEquals(uBefore.length, planes[1].getBuffer().remaining());
+    assertEquals(vBefore.length, planes[2].getBuffer().remaining());
+  }
+
+  @Test
+  public void isNv21_sameStream_checksLayoutOnce() {
+    PlaneLayoutCache cache = new PlaneLayoutCache();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(cache.isNv21(planes(Layout.NV21), WIDTH, HEIGHT));
+    }
+    assertEquals(1, cache.getLayoutCheckCount());
+  }
+
+  @Test
+  public void isNv21_recheckInterval_checksAgain() {
+    PlaneLayoutCache cache = new PlaneLayoutCache(10);
+    PlaneDescriptor[] planes = planes(Layout.NV21);
+    for (int i = 0; i < 25; i++) {
+      cache.isNv21(planes, WIDTH, HEIGHT);
+    }
+    assertEquals(3, cache.getLayoutCheckCount());
+  }
+
+  @Test
+  public void isNv21_streamChanges_checksAgain() {
+    PlaneLayoutCache cache = new PlaneLayoutCache();
+    assertTrue(cache.isNv21(planes(Layout.NV21), WIDTH, HEIGHT));
+    assertFalse(cache.isNv21(planes(Layout.I420), WIDTH, HEIGHT));
+    assertFalse(cache.isNv21(SyntheticPlanes.create(32, 24, Layout.PADDED_NV21), 32, 24));
+    assertTrue(cache.isNv21(SyntheticPlanes.create(32, 24, Layout.NV21), 32, 24));
+    assertEquals(4, cache.getLayoutCheckCount());
+  }
+
+  @Test
+  public void invalidate_checksAgain() {
+    PlaneLayoutCache cache = new PlaneLayoutCache();
+    PlaneDescriptor[] planes = planes(Layout.NV21);
+    cache.isNv21(planes, WIDTH, HEIGHT);
+    cache.invalidate();
+    cache.isNv21(planes, WIDTH, HEIGHT);
+    assertEquals(2, cache.getLayoutCheckCount());
+  }
+
+  private static PlaneDescriptor[] planes(Layout layout) {
+    return SyntheticPlanes.create(WIDTH, HEIGHT, layout);
+  }
+
+  private static void fill(ByteBuffer buffer, byte value) {
+    for (int i = buffer.position(); i < buffer.limit(); i++) {
+      buffer.put(i, value);
+    }
+  }
+
+  private static byte[] contents(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.duplicate().get(data);
+    return data;
+  }
+
+  private static PlaneDescriptor readOnly(PlaneDescriptor plane) {
+    return withBuffer(plane, plane.getBuffer().asReadOnlyBuffer());
+  }
+
+  private static PlaneDescriptor copy(PlaneDescriptor plane) {
+    return withBuffer(plane, ByteBuffer.wrap(contents(plane.getBuffer())));
+  }
+
+  private static PlaneDescriptor withBuffer(PlaneDescriptor plane, ByteBuffer buffer) {
+    return new PlaneDescriptor() {
+      @Override
+      public ByteBuffer getBuffer() {
+        return buffer;
+      }
+
+      @Override
+      public int getRowStride() {
+        return plane.getRowStride();
+      }
+
+      @Override
+      public int getPixelStride() {
+        return plane.getPixelStride();
+      }
+    };
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.mlkit.vision.demo.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.mlkit.vision.demo.frame.SyntheticPlanes.Layout;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/** Checks that every chroma layout packs into the NV21 bytes read directly from the planes. */
+public class YuvPlaneUnpackerTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  @Test
+  public void toNv21_nv21Layout_matchesPlanes() {
+    assertUnpacksLikePlanes(Layout.NV21);
+  }
+
+  @Test
+  public void toNv21_i420Layout_matchesPlanes() {
+    assertUnpacksLikePlanes(Layout.I420);
+  }
+
+  @Test
+  public void toNv21_paddedNv21Layout_matchesPlanes() {
+    assertUnpacksLikePlanes(Layout.PADDED_NV21);
+  }
+
+  @Test
+  public void toNv21_nv12Layout_matchesPlanes() {
+    assertUnpacksLikePlanes(Layout.NV12);
+  }
+
+  @Test
+  public void toNv21_rewindsPlaneBuffers() {
+    PlaneDescriptor[] planes = SyntheticPlanes.create(WIDTH, HEIGHT, Layout.PADDED_NV21);
+    YuvPlaneUnpacker.toNv21(planes, WIDTH, HEIGHT, new FrameBufferPool(), new PlaneLayoutCache())
+        .release();
+    for (PlaneDescriptor plane : planes) {
+      assertEquals(0, plane.getBuffer().position());
+    }
+  }
+
+  @Test
+  public void toNv21_leasesFromPool() {
+    FrameBufferPool pool = new FrameBufferPool();
+    PlaneDescriptor[] planes = SyntheticPlanes.create(WIDTH, HEIGHT, Layout.NV21);
+    FrameBuffer first =
+        YuvPlaneUnpacker.toNv21(planes, WIDTH, HEIGHT, pool, new PlaneLayoutCache());
+    byte[] firstArray = first.array();
+    first.release();
+    FrameBuffer second =
+        YuvPlaneUnpacker.toNv21(planes, WIDTH, HEIGHT, pool, new PlaneLayoutCache());
+    assertEquals(firstArray, second.array());
+    second.release();
+  }
+
+  private static void assertUnpacksLikePlanes(Layout layout) {
+    PlaneDescriptor[] planes = SyntheticPlanes.create(WIDTH, HEIGHT, layout);
+    FrameBuffer frameBuffer =
+        YuvPlaneUnpacker.toNv21(
+            planes, WIDTH, HEIGHT, new FrameBufferPool(), new PlaneLayoutCache());
+    assertEquals(WIDTH, frameBuffer.getWidth());
+    assertEquals(HEIGHT, frameBuffer.getHeight());
+    assertArrayEquals(layout.name(), expectedNv21(planes), frameBuffer.array());
+    frameBuffer.release();
+  }
+
+  /** Reads every sample through the plane strides and lays it out as NV21. */
+  private static byte[] expectedNv21(PlaneDescriptor[] planes) {
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(WIDTH, HEIGHT)];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        nv21[y * WIDTH + x] = sample(planes[0], x, y);
+      }
+    }
+    for (int y = 0; y < HEIGHT / 2; y++) {
+      for (int x = 0; x < WIDTH / 2; x++) {
+        int index = WIDTH * HEIGHT + y * WIDTH + 2 * x;
+        nv21[index] = sample(planes[2], x, y);
+        nv21[index + 1] = sample(planes[1], x, y);
+      }
+    }
+    return nv21;
+  }
+
+  private static byte sample(PlaneDescriptor plane, int x, int y) {
+    ByteBuffer buffer = plane.getBuffer();
+    return buffer.get(y * plane.getRowStride() + x * plane.getPixelStride());
+  }
+}
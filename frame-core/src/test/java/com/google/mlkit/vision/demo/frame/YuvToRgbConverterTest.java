@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the fixed point conversion against a floating point evaluation of the full-range BT.601
+ * (JFIF) transform, which is what the {@code YuvImage} and JPEG decode path produces.
+ */
+public class YuvToRgbConverterTest {
+
+  // Per channel, in 8-bit steps. The 16.16 fixed point transform only differs by rounding.
+  private static final int TOLERANCE = 1;
+
+  @Test
+  public void nv21ToArgb_randomFrame_matchesReference() {
+    assertMatchesReference(randomNv21(64, 48, new Random(42)), 64, 48);
+  }
+
+  @Test
+  public void nv21ToArgb_nonSquareFrame_matchesReference() {
+    assertMatchesReference(randomNv21(38, 22, new Random(7)), 38, 22);
+  }
+
+  @Test
+  public void nv21ToArgb_extremeValues_clampLikeReference() {
+    int width = 16;
+    int height = 16;
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(width, height)];
+    int[] levels = {0, 16, 128, 235, 255};
+    for (int i = 0; i < nv21.length; i++) {
+      nv21[i] = (byte) levels[i % levels.length];
+    }
+    assertMatchesReference(nv21, width, height);
+  }
+
+  @Test
+  public void nv21ToArgb_neutralChroma_isGray() {
+    int width = 8;
+    int height = 8;
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(width, height)];
+    for (int i = 0; i < nv21.length; i++) {
+      nv21[i] = (byte) (i < width * height ? i * 4 : 128);
+    }
+    int[] argb = new int[width * height];
+    YuvToRgbConverter.nv21ToArgb(nv21, width, height, argb);
+    for (int i = 0; i < argb.length; i++) {
+      int gray = (i * 4) & 0xff;
+      assertEquals(0xff000000 | gray << 16 | gray << 8 | gray, argb[i]);
+    }
+  }
+
+  @Test
+  public void nv21ToArgb_rotatedAndFlipped_movesUnrotatedPixels() {
+    int width = 38;
+    int height = 22;
+    byte[] nv21 = randomNv21(width, height, new Random(11));
+    int[] unrotated = new int[width * height];
+    YuvToRgbConverter.nv21ToArgb(nv21, width, height, unrotated);
+    int[] rotations = {0, 90, 180, 270};
+    for (int rotation : rotations) {
+      for (int flips = 0; flips < 4; flips++) {
+        boolean flipX = (flips & 1) != 0;
+        boolean flipY = (flips & 2) != 0;
+        int[] expected = new int[width * height];
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            expected[ImageTransform.getOutputIndex(x, y, width, height, rotation, flipX, flipY)] =
+                unrotated[y * width + x];
+          }
+        }
+        int[] argb = new int[width * height];
+        YuvToRgbConverter.nv21ToArgb(nv21, width, height, rotation, flipX, flipY, argb);
+        assertArrayEquals("rotation " + rotation + " flips " + flips, expected, argb);
+      }
+    }
+  }
+
+  @Test
+  public void nv21ToArgbScaled_quarterScaleCheckerboard_averagesWholeBox() {
+    // Pixel-sized checkerboard, which point sampling at 1/4 scale would turn black or white.
+    int width = 32;
+    int height = 16;
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(width, height)];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        nv21[y * width + x] = (byte) (((x + y) & 1) == 0 ? 0 : 254);
+      }
+    }
+    for (int i = width * height; i < nv21.length; i++) {
+      nv21[i] = (byte) 128;
+    }
+    int[] argb = new int[(width / 4) * (height / 4)];
+    YuvToRgbConverter.nv21ToArgbScaled(
+        nv21, width, height, width / 4, height / 4, 0, false, false, argb);
+    for (int pixel : argb) {
+      assertEquals(0xff7f7f7f, pixel);
+    }
+  }
+
+  @Test
+  public void nv21ToArgbScaled_averagesLumaAndChromaOfEachBox() {
+    int width = 16;
+    int height = 8;
+    byte[] nv21 = randomNv21(width, height, new Random(3));
+    int factor = 4;
+    int scaledWidth = width / factor;
+    int scaledHeight = height / factor;
+    int[] argb = new int[scaledWidth * scaledHeight];
+    YuvToRgbConverter.nv21ToArgbScaled(
+        nv21, width, height, scaledWidth, scaledHeight, 0, false, false, argb);
+    for (int scaledY = 0; scaledY < scaledHeight; scaledY++) {
+      for (int scaledX = 0; scaledX < scaledWidth; scaledX++) {
+        double luma = 0;
+        double cr = 0;
+        double cb = 0;
+        for (int y = scaledY * factor; y < (scaledY + 1) * factor; y++) {
+          for (int x = scaledX * factor; x < (scaledX + 1) * factor; x++) {
+            int uvIndex = width * height + (y / 2) * width + (x / 2) * 2;
+            luma += nv21[y * width + x] & 0xff;
+            cr += (nv21[uvIndex] & 0xff) - 128;
+            cb += (nv21[uvIndex + 1] & 0xff) - 128;
+          }
+        }
+        int samples = factor * factor;
+        luma /= samples;
+        cr /= samples;
+        cb /= samples;
+        int pixel = argb[scaledY * scaledWidth + scaledX];
+        // The averages are rounded to whole steps before the transform, which can add up to two
+        // steps, e.g. half a chroma step times 1.772.
+        String where = "pixel " + scaledX + "," + scaledY;
+        assertChannel(where + " red", luma + 1.402 * cr, (pixel >> 16) & 0xff, 3);
+        assertChannel(
+            where + " green", luma - 0.344136 * cb - 0.714136 * cr, (pixel >> 8) & 0xff, 3);
+        assertChannel(where + " blue", luma + 1.772 * cb, pixel & 0xff, 3);
+      }
+    }
+  }
+
+  private static void assertMatchesReference(byte[] nv21, int width, int height) {
+    int[] argb = new int[width * height];
+    YuvToRgbConverter.nv21ToArgb(nv21, width, height, argb);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int luma = nv21[y * width + x] & 0xff;
+        int uvIndex = width * height + (y / 2) * width + (x / 2) * 2;
+        double cr = (nv21[uvIndex] & 0xff) - 128;
+        double cb = (nv21[uvIndex + 1] & 0xff) - 128;
+        int pixel = argb[y * width + x];
+        String where = "pixel " + x + "," + y;
+        assertEquals(where + " alpha", 0xff, pixel >>> 24);
+        assertChannel(where + " red", luma + 1.402 * cr, (pixel >> 16) & 0xff);
+        assertChannel(where + " green", luma - 0.344136 * cb - 0.714136 * cr, (pixel >> 8) & 0xff);
+        assertChannel(where + " blue", luma + 1.772 * cb, pixel & 0xff);
+      }
+    }
+  }
+
+  private static void assertChannel(String message, double expected, int actual) {
+    assertChannel(message, expected, actual, TOLERANCE);
+  }
+
+  private static void assertChannel(String message, double expected, int actual, int tolerance) {
+    long reference = Math.round(Math.min(255, Math.max(0, expected)));
+    assertTrue(
+        message + ": expected " + reference + " but was " + actual,
+        Math.abs(reference - actual) <= tolerance);
+  }
+
+  private static byte[] randomNv21(int width, int height, Random random) {
+    byte[] nv21 = new byte[FrameBufferPool.getNv21Size(width, height)];
+    random.nextBytes(nv21);
+    return nv21;
+  }
+}
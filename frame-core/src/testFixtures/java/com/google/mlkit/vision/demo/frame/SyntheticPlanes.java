@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.mlkit.vision.demo.frame;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Builds YUV_420_888 planes with the memory layouts camera HALs commonly produce, for the tests and
+ * benchmarks of the frame code.
+ */
+public final class SyntheticPlanes {
+
+  /** How the chroma planes are laid out. */
+  public enum Layout {
+    /** U and V share one buffer in VU order, so the planes can be copied as NV21 directly. */
+    NV21,
+    /** Separate, tightly packed U and V planes. */
+    I420,
+    /** Like {@link #NV21}, but every row is followed by padding. */
+    PADDED_NV21,
+    /** U and V share one buffer in UV order, so V starts one byte after U. */
+    NV12
+  }
+
+  private static final int ROW_PADDING = 64;
+
+  /** Parses a {@code "<width>x<height>"} benchmark parameter. */
+  public static int[] parseResolution(String resolution) {
+    int separator = resolution.indexOf('x');
+    return new int[] {
+      Integer.parseInt(resolution.substring(0, separator)),
+      Integer.parseInt(resolution.substring(separator + 1))
+    };
+  }
+
+  /** Returns the Y, U and V planes of a {@code width} x {@code height} image filled with noise. */
+  public static PlaneDescriptor[] create(int width, int height, Layout layout) {
+    Random random = new Random(width * 31L + height);
+    int chromaWidth = width / 2;
+    int chromaHeight = height / 2;
+    int rowStride = layout == Layout.PADDED_NV21 ? width + ROW_PADDING : width;
+
+    // Camera buffers don't include the padding after the last row.
+    ByteBuffer yBuffer = filledBuffer(rowStride * (height - 1) + width, random);
+    PlaneDescriptor yPlane = new Plane(yBuffer, rowStride, 1);
+    if (layout == Layout.I420) {
+      ByteBuffer uBuffer = filledBuffer(chromaWidth * chromaHeight, random);
+      ByteBuffer vBuffer = filledBuffer(chromaWidth * chromaHeight, random);
+      return new PlaneDescriptor[] {
+        yPlane, new Plane(uBuffer, chromaWidth, 1), new Plane(vBuffer, chromaWidth, 1)
+      };
+    }
+
+    // One plane starts one byte before the other in the same memory, and each plane ends at its
+    // last sample.
+    int chromaLength = rowStride * (chromaHeight - 1) + 2 * chromaWidth;
+    ByteBuffer chroma = filledBuffer(chromaLength, random);
+    int vOffset = layout == Layout.NV12 ? 1 : 0;
+    ByteBuffer vBuffer = slice(chroma, vOffset, chromaLength - 1);
+    ByteBuffer uBuffer = slice(chroma, 1 - vOffset, chromaLength - 1);
+    return new PlaneDescriptor[] {
+      yPlane, new Plane(uBuffer, rowStride, 2), new Plane(vBuffer, rowStride, 2)
+    };
+  }
+
+  private static ByteBuffer filledBuffer(int size, Random random) {
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+    buffer.put(data);
+    buffer.rewind();
+    return buffer;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    return duplicate.slice();
+  }
+
+  private static final class Plane implements PlaneDescriptor {
+    private final ByteBuffer buffer;
+    private final int rowStride;
+    private final int pixelStride;
+
+    Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+      this.buffer = buffer;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    @Override
+    public int getRowStride() {
+      return rowStride;
+    }
+
+    @Override
+    public int getPixelStride() {
+      return pixelStride;
+    }
+  }
+
+  private SyntheticPlanes() {}
+}